@@ -0,0 +1,151 @@
+package demandSide;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutionException;
+
+/*
+ * Checks that the bytes allocated per tick don't grow with the consumers nor
+ * with the firms
+ *
+ * AllocationCheck [path/to/parameters.xml] [name=value ...]
+ *
+ * Firms only enter at the start, thus the market keeps its size while it is
+ * measured. Markets are created one after the other, with one worker thread,
+ * and only the allocations of the thread stepping the market and of its worker
+ * are counted. After WARM_UP ticks, that create the firms and size the buffers,
+ * TICKS ticks are measured. The check fails when the large market allocates
+ * more than SLACK bytes per tick above the small one, which 32 bytes per firm
+ * and tick, or an object per consumer and tick, would exceed.
+ *
+ * Consumers are chosen in tasks of a bounded number of leaves (see
+ * Consumers.chooseFirms), that both markets already reach. Ticks with entry
+ * candidates allocate their firms, and synchronousFirmDecisions allocates a
+ * future per firm, thus neither is measured
+ */
+public class AllocationCheck {
+
+	private static final int WARM_UP = 100;
+	private static final int TICKS = 200;
+	private static final double SLACK = 256.;
+
+	// Consumers and firms entering at the start of the small and large markets
+	private static final String[] CONSUMERS = { "8000", "32000" };
+	private static final String[] ENTRANTS = { "10", "60" };
+
+	private static com.sun.management.ThreadMXBean threads;
+
+	private long allocated;
+	private double firmTicks;
+
+	public static void main(String[] args) throws IOException {
+
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported())
+			throw new IllegalStateException("The JVM doesn't count allocated bytes per thread");
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		ParametersFile file = CheckFixture.getParameters(args);
+		file.set("firmsEntryOnlyAtStart", "true");
+		file.set("synchronousFirmDecisions", "false");
+		file.set("stopAt", Integer.toString(WARM_UP + TICKS));
+
+		// The first market runs interpreted, and is not measured
+		file.set("numberOfConsumers", CONSUMERS[1]);
+		file.set("potencialFirmsPerPeriod", ENTRANTS[1]);
+		measure(file.getModelParams());
+
+		int growing = 0;
+
+		file.set("potencialFirmsPerPeriod", ENTRANTS[0]);
+		growing += compare("Consumers", file, "numberOfConsumers", CONSUMERS);
+
+		file.set("numberOfConsumers", CONSUMERS[0]);
+		growing += compare("Firms", file, "potencialFirmsPerPeriod", ENTRANTS);
+
+		CheckFixture.report("Sizes", 2, "growing allocation", growing);
+
+	}
+
+	/*
+	 * Returns 1 if the bytes per tick of the last size exceed the ones of the
+	 * first by more than SLACK
+	 */
+	private static int compare(String title, ParametersFile file, String param, String[] sizes) {
+
+		double[] bytesPerTick = new double[sizes.length];
+
+		for (int k = 0; k < sizes.length; k++) {
+			file.set(param, sizes[k]);
+			AllocationCheck m = measure(file.getModelParams());
+			bytesPerTick[k] = (double) m.allocated / TICKS;
+
+			System.out.printf("%s: %s=%s, firms %.1f, %.0f bytes per tick%n", title, param, sizes[k],
+					m.firmTicks / TICKS, bytesPerTick[k]);
+		}
+
+		double growth = bytesPerTick[sizes.length - 1] - bytesPerTick[0];
+		System.out.printf("%s: large - small %.0f bytes per tick, limit %.0f%n", title, growth, SLACK);
+
+		return growth <= SLACK ? 0 : 1;
+
+	}
+
+	private static AllocationCheck measure(ModelParams params) {
+
+		AllocationCheck retval = new AllocationCheck();
+		Market market = Market.create(params);
+
+		try {
+			for (int t = 0; t < WARM_UP; t++)
+				market.step();
+
+			long[] ids = { Thread.currentThread().getId(), getWorkerID(market) };
+			long start = getAllocatedBytes(ids);
+
+			for (int t = 0; t < TICKS; t++) {
+				market.step();
+				retval.firmTicks += market.firms.size();
+			}
+
+			retval.allocated = getAllocatedBytes(ids) - start;
+
+			// A worker that was replaced would not be counted
+			if (market.workers.getPoolSize() != 1)
+				throw new IllegalStateException("The market has " + market.workers.getPoolSize() + " workers");
+
+		} finally {
+			market.shutdown();
+		}
+
+		return retval;
+
+	}
+
+	private static long getWorkerID(Market market) {
+
+		try {
+			return market.workers.submit(() -> Thread.currentThread().getId()).get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+
+	}
+
+	private static long getAllocatedBytes(long[] ids) {
+
+		long retval = 0L;
+		for (long bytes : threads.getThreadAllocatedBytes(ids)) {
+			if (bytes < 0)
+				throw new IllegalStateException("A thread of the market ended");
+			retval += bytes;
+		}
+
+		return retval;
+
+	}
+
+}
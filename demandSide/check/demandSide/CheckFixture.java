@@ -0,0 +1,51 @@
+package demandSide;
+
+import java.io.IOException;
+
+/*
+ * Parameters and reports shared by the checks and benchmarks
+ *
+ * Checks are the main classes of the check source folder, which is built apart
+ * from the model and is not part of it. They run from the demandSide
+ * directory, with the arguments of HeadlessDriver:
+ *
+ * SomeCheck [path/to/parameters.xml] [name=value ...]
+ *
+ * A check prints what it compared, and fails by throwing when something
+ * differs
+ */
+public class CheckFixture {
+
+	private static final String DEFAULT_PARAMETERS = "demandSide.rs/parameters.xml";
+
+	/*
+	 * Parameters of the command line, for runs on one worker thread, without
+	 * checkpoints nor convergence, and with seed 1 unless one is given
+	 */
+	public static ParametersFile getParameters(String[] args) throws IOException {
+
+		ParametersFile retval = ParametersFile.fromArgs(args, DEFAULT_PARAMETERS);
+		retval.set("workerThreads", "1");
+		retval.set("checkpointEvery", "0");
+		retval.set("convergenceWindow", "0");
+		if (retval.get("randomSeed") == null)
+			retval.set("randomSeed", "1");
+
+		return retval;
+
+	}
+
+	/*
+	 * Prints the things checked and the ones that differ, and fails if any
+	 * does
+	 */
+	public static void report(String checked, int count, String differ, int differing) {
+
+		System.out.println(checked + ": " + count + ", " + differ + ": " + differing);
+
+		if (differing > 0)
+			throw new IllegalStateException(differing + " of " + count + " " + checked.toLowerCase() + " differ");
+
+	}
+
+}
@@ -0,0 +1,229 @@
+package demandSide;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import consumers.Consumer;
+import consumers.Consumers;
+import firms.Firm;
+import firms.Firms;
+import repast.simphony.engine.schedule.ScheduledMethod;
+
+/*
+ * Ticks per second of the headless and Repast drivers on the same run
+ *
+ * DriverBenchmark [path/to/parameters.xml] [name=value ...]
+ *
+ * Parameters are the ones of batch/speed_params.xml, but for those given. The
+ * headless driver calls Market.step. The Repast runtime is not on the class
+ * path of the checks, thus its schedule is stood in for: each method with a
+ * ScheduledMethod annotation is an action of every agent of its class in the
+ * market, invoked by reflection, in decreasing priority between startTick and
+ * endTick, as Market.build schedules them. Actions go through the agents in
+ * the market when their priority comes, thus firms that enter in the tick are
+ * included.
+ *
+ * Both drivers run WARM_UP and then RUNS times, one after the other, and the
+ * median of ticks per second of the latter is printed. The check fails if a
+ * run ends with other firms, offers, profits or choices than the first one
+ */
+public class DriverBenchmark {
+
+	private static final String SPEED_PARAMS = "batch/speed_params.xml";
+	private static final int WARM_UP = 3;
+	private static final int RUNS = 7;
+
+	private static final String[] DRIVERS = { "Headless", "Repast dispatch" };
+
+	/*
+	 * Method called on each agent of an Iterable at a priority
+	 */
+	private static class Action {
+
+		double priority;
+		Method method;
+		Iterable<?> agents;
+
+		Action(double priority, Method method, Iterable<?> agents) {
+			this.priority = priority;
+			this.method = method;
+			this.agents = agents;
+		}
+
+		void run() {
+			for (Object agent : agents)
+				invoke(method, agent);
+		}
+
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		ParametersFile file = CheckFixture.getParameters(args);
+
+		Set<String> given = new HashSet<String>();
+		for (String arg : args)
+			if (arg.contains("="))
+				given.add(arg.split("=", 2)[0]);
+
+		for (Map.Entry<String, Object> e : new Sweep(new File(SPEED_PARAMS)).getRuns().get(0).entrySet())
+			if (!given.contains(e.getKey()))
+				file.set(e.getKey(), String.valueOf(e.getValue()));
+
+		ModelParams params = file.getModelParams();
+
+		double[][] inStep = new double[DRIVERS.length][RUNS];
+		double[][] wall = new double[DRIVERS.length][RUNS];
+		String first = null;
+		int differ = 0;
+
+		for (int r = -WARM_UP; r < RUNS; r++)
+			for (int d = 0; d < DRIVERS.length; d++) {
+				Market market = Market.create(params);
+
+				try {
+					if (d == 0)
+						while (!market.isFinished())
+							market.step();
+					else
+						dispatch(market);
+				} finally {
+					market.shutdown();
+				}
+
+				if (r >= 0) {
+					inStep[d][r] = market.getTicksPerSecond();
+					wall[d][r] = market.getWallTicksPerSecond();
+				}
+
+				String state = getState(market);
+				if (first == null)
+					first = state;
+				else if (!state.equals(first)) {
+					differ++;
+					System.out.println("Differs: " + DRIVERS[d] + ", run " + (WARM_UP + r + 1));
+				}
+			}
+
+		for (int d = 0; d < DRIVERS.length; d++)
+			System.out.printf("%s: ticks per second %.1f, with time between steps %.1f, runs %s%n", DRIVERS[d],
+					median(inStep[d]), median(wall[d]), Arrays.toString(round(inStep[d])));
+
+		CheckFixture.report("Runs", DRIVERS.length * (WARM_UP + RUNS), "in another state than the first", differ);
+
+	}
+
+	/*
+	 * Runs the market as the Repast schedule does
+	 */
+	private static void dispatch(Market market) {
+
+		List<Action> actions = new ArrayList<Action>();
+
+		List<Market> markets = Collections.singletonList(market);
+		actions.add(new Action(RunPriority.START_TICK_PRIORITY, getMethod(Market.class, "startTick"), markets));
+		actions.add(new Action(RunPriority.END_TICK_PRIORITY, getMethod(Market.class, "endTick"), markets));
+
+		addScheduled(actions, Firms.class, Collections.singletonList(market.firms));
+		addScheduled(actions, Firm.class, market.firms);
+		addScheduled(actions, Consumers.class, Collections.singletonList(market.consumers));
+		addScheduled(actions, Consumer.class, market.consumers);
+
+		actions.sort(Comparator.comparingDouble((Action a) -> a.priority).reversed());
+
+		while (!market.isFinished())
+			for (Action a : actions)
+				a.run();
+
+	}
+
+	private static void addScheduled(List<Action> actions, Class<?> type, Iterable<?> agents) {
+
+		for (Method m : type.getMethods()) {
+			ScheduledMethod scheduled = m.getAnnotation(ScheduledMethod.class);
+			if (scheduled == null)
+				continue;
+
+			if ((scheduled.start() != 1) || (scheduled.interval() != 1))
+				throw new IllegalStateException(m + " is not run on every tick");
+
+			actions.add(new Action(scheduled.priority(), m, agents));
+		}
+
+	}
+
+	private static Method getMethod(Class<?> type, String name) {
+
+		try {
+			return type.getMethod(name);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+
+	}
+
+	private static void invoke(Method method, Object agent) {
+
+		try {
+			method.invoke(agent);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			else if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			else
+				throw new IllegalStateException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+
+	}
+
+	/*
+	 * Firms with their offers and profits, and the firm chosen by each
+	 * consumer. Free slots of the firms table are not compared, as under Repast
+	 * only the firms in the market take their profits
+	 */
+	private static String getState(Market market) {
+
+		StringBuilder retval = new StringBuilder();
+		retval.append(market.getTick()).append('\n');
+
+		List<Firm> firms = new ArrayList<Firm>(market.firms);
+		firms.sort(Comparator.comparingLong(Firm::getFirmIntID));
+		for (Firm f : firms)
+			retval.append(f.getFirmIntID()).append(' ').append(f.getPrice()).append(' ').append(f.getQuality())
+					.append(' ').append(f.getDemand()).append(' ').append(f.getAccumProfit()).append(' ')
+					.append(f.getAutoRegressiveProfit()).append('\n');
+
+		for (Consumer c : market.consumers)
+			retval.append(c.getChosenFirmIntID()).append(' ');
+
+		return retval.toString();
+
+	}
+
+	private static double median(double[] values) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	private static String[] round(double[] values) {
+		String[] retval = new String[values.length];
+		for (int k = 0; k < values.length; k++)
+			retval[k] = String.format("%.1f", values[k]);
+		return retval;
+	}
+
+}
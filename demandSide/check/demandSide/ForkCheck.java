@@ -0,0 +1,57 @@
+package demandSide;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Checks that Replications.runForked ends every run in the same state as
+ * Replications.run, random streams included
+ *
+ * ForkCheck [path/to/parameters.xml] [name=value ...]
+ *
+ * Each seed is run without and with a recession, at two starts, with
+ * convergence off, stopping and fast forwarding. A run that differs fails the
+ * check
+ */
+public class ForkCheck {
+
+	private static final int SEEDS = 4;
+	private static final String[] MAGNITUDES = { "0.0", "0.5" };
+	private static final String[] STARTS = { "30", "50" };
+	private static final String[][] CONVERGENCE = { { "0", "STOP" }, { "3", "STOP" }, { "3", "FAST_FORWARD" } };
+
+	public static void main(String[] args) throws IOException {
+
+		ParametersFile file = CheckFixture.getParameters(args);
+
+		List<ModelParams> runs = new ArrayList<ModelParams>();
+		for (String[] convergence : CONVERGENCE)
+			for (int seed = 1; seed <= SEEDS; seed++)
+				for (String start : STARTS)
+					for (String magnitude : MAGNITUDES) {
+						file.set("randomSeed", Integer.toString(seed));
+						file.set("convergenceWindow", convergence[0]);
+						file.set("convergenceAction", convergence[1]);
+						file.set("recessionStart", start);
+						file.set("recessionMagnitude", magnitude);
+						runs.add(file.getModelParams());
+					}
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<MarketSnapshot> alone = Replications.run(runs, threads, MarketSnapshot::take);
+		List<MarketSnapshot> forked = Replications.runForked(runs, threads, MarketSnapshot::take);
+
+		int differ = 0;
+		for (int k = 0; k < runs.size(); k++)
+			if (!alone.get(k).isSameState(forked.get(k))) {
+				differ++;
+				System.out.println("Differs: " + runs.get(k).getValues() + ", ticks " + alone.get(k).getTick()
+						+ " and " + forked.get(k).getTick());
+			}
+
+		CheckFixture.report("Runs", runs.size(), "different when forked", differ);
+
+	}
+
+}
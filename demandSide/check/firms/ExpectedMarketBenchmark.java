@@ -0,0 +1,159 @@
+package firms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.math3.util.FastMath;
+
+import demandSide.CheckFixture;
+import demandSide.Market;
+import demandSide.ModelParams;
+import demandSide.ParametersFile;
+import firmTypes.FirmTypes;
+
+/*
+ * Time to build the expected market of a firm, by ExpectedMarket and by adding
+ * competitors one by one, see ExpectedMarketCheck
+ *
+ * ExpectedMarketBenchmark [path/to/parameters.xml] [name=value ...]
+ *
+ * Markets have from 100 to 20000 firms with random offers, with prices spread
+ * by each NOISES around a convex curve. Each market is timed on the expected
+ * markets of OWNERS firms, repeated for at least MIN_SECONDS after a first
+ * untimed round. Adding firms one by one is only timed up to ONE_BY_ONE_FIRMS,
+ * as it grows with the square of the competitors kept.
+ *
+ * A build goes through all the firms, but with a spread of 0.001, larger than
+ * the price gaps between neighbors, few of them ever get a segment. A smaller
+ * spread keeps most of them, and without spread all of them are kept, with
+ * expulsion lines that nearly cross. That is the worst case of the build, see
+ * ExpectedMarket.buildByEntry
+ */
+public class ExpectedMarketBenchmark {
+
+	private static final int[] FIRMS = { 100, 1000, 5000, 20000 };
+	private static final double[] NOISES = { 0.2, 0.001, 1e-7, 0.0 };
+	private static final int OWNERS = 10;
+	private static final double MIN_SECONDS = 1.0;
+	private static final int ONE_BY_ONE_FIRMS = 5000;
+
+	public static void main(String[] args) throws IOException {
+
+		ParametersFile file = CheckFixture.getParameters(args);
+
+		System.out.println("Firms, price noise, competitors kept, build us, build ns per firm, one by one us, "
+				+ "one by one / build");
+
+		for (double noise : NOISES)
+			for (int firms : FIRMS)
+				run(file, firms, noise);
+
+	}
+
+	private static void run(ParametersFile file, int firms, double noise) {
+
+		Market market = createMarket(file, firms, noise, firms);
+
+		try {
+			List<Firm> owners = getOwners(market, OWNERS);
+
+			// Markets are reused as in decisions, and give the prices to expel
+			// to the ones built one by one
+			List<ExpectedMarket> expMkts = new ArrayList<ExpectedMarket>();
+			double kept = 0.0;
+			for (Firm owner : owners) {
+				owner.getCompetitorOffers().refresh(owner);
+				expMkts.add(new ExpectedMarket(owner));
+				kept += expMkts.get(expMkts.size() - 1).size();
+			}
+
+			double built = time(owners, expMkts, (owner, expMkt) -> expMkt.build(owner).size());
+			double added = (firms > ONE_BY_ONE_FIRMS) ? Double.NaN
+					: time(owners, expMkts, (owner, expMkt) -> ExpectedMarketCheck.addOneByOne(owner, expMkt).size());
+
+			System.out.printf("%d, %.0e, %.1f, %.1f, %.1f, %.1f, %.1f%n", firms, noise, kept / owners.size(), built,
+					1e3 * built / firms, added, added / built);
+
+		} finally {
+			market.shutdown();
+		}
+
+	}
+
+	private interface Build {
+		int run(Firm owner, ExpectedMarket expMkt);
+	}
+
+	/*
+	 * Microseconds per market
+	 */
+	private static double time(List<Firm> owners, List<ExpectedMarket> expMkts, Build build) {
+
+		// Markets are built once before timing, for the JIT. Competitor offers
+		// were refreshed when the markets were first built
+		long sink = 0;
+		for (int k = 0; k < owners.size(); k++)
+			sink += build.run(owners.get(k), expMkts.get(k));
+
+		long start = System.nanoTime();
+		long markets = 0;
+		do {
+			for (int k = 0; k < owners.size(); k++) {
+				sink += build.run(owners.get(k), expMkts.get(k));
+				markets++;
+			}
+		} while (System.nanoTime() - start < MIN_SECONDS * 1e9);
+
+		if (sink < 0)
+			throw new IllegalStateException();
+
+		return (System.nanoTime() - start) / 1e3 / markets;
+
+	}
+
+	/*
+	 * A market without ticks run and the given firms, whose offers are random
+	 * 
+	 * Prices grow with the square of the utility of quality, thus most firms
+	 * would have a segment if they were alone with their neighbors. They are
+	 * moved at random up to noise times the price
+	 */
+	static Market createMarket(ParametersFile file, int firms, double noise, long seed) {
+
+		ModelParams params = file.getModelParams();
+		Market market = Market.create(params);
+		Random random = new Random(seed);
+
+		for (int k = 0; k < firms; k++) {
+			Firm f = FirmTypes.STANDARD_FIRM.createFirm(market);
+
+			double q = 1.0 + 99.0 * random.nextDouble();
+			double powQ = FastMath.pow(q, params.utilityQualityExponent);
+			double p = 0.1 * powQ * powQ * (1.0 + noise * (2.0 * random.nextDouble() - 1.0));
+
+			f.enter(new Decision(new Offer(p, q), new ExpectedInfo()));
+		}
+
+		return market;
+
+	}
+
+	/*
+	 * Some firms spread over the market
+	 */
+	static List<Firm> getOwners(Market market, int owners) {
+
+		List<Firm> all = new ArrayList<Firm>(market.firms);
+		List<Firm> retval = new ArrayList<Firm>();
+
+		int step = FastMath.max(1, all.size() / owners);
+		for (int k = 0; k < all.size(); k += step)
+			retval.add(all.get(k));
+
+		return retval;
+
+	}
+
+}
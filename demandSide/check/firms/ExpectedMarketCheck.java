@@ -0,0 +1,136 @@
+package firms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+import consumers.Consumers;
+import demandSide.CheckFixture;
+import demandSide.Market;
+import demandSide.ParametersFile;
+
+/*
+ * Checks that ExpectedMarket keeps the same competitors as adding them one by
+ * one, as it was built before the sweep
+ *
+ * ExpectedMarketCheck [path/to/parameters.xml] [name=value ...]
+ *
+ * Competitors are added in order of ID, the order they entered the market.
+ * One gets in if it has a segment between its neighbors, and then takes out
+ * every firm that its price expels. The expected market of every firm is
+ * checked on each tick of runs with and without a recession, and the ones of
+ * some firms on markets of random offers. A market that differs fails the
+ * check
+ */
+public class ExpectedMarketCheck {
+
+	private static final int SEEDS = 4;
+	private static final String[] MAGNITUDES = { "0.0", "0.5" };
+	private static final int[] RANDOM_FIRMS = { 10, 100, 1000 };
+	private static final double[] RANDOM_NOISES = { 0.2, 0.001, 1e-7, 0.0 };
+	private static final int OWNERS = 20;
+
+	private static int checked = 0, differ = 0;
+
+	public static void main(String[] args) throws IOException {
+
+		ParametersFile file = CheckFixture.getParameters(args);
+		file.set("firmsEntryOnlyAtStart", "false");
+		file.set("potencialFirmsPerPeriod", "10");
+		file.set("stopAt", "60");
+		file.set("recessionStart", "20");
+		file.set("recessionDuration", "20");
+
+		for (int seed = 1; seed <= SEEDS; seed++)
+			for (String magnitude : MAGNITUDES) {
+				file.set("randomSeed", Integer.toString(seed));
+				file.set("recessionMagnitude", magnitude);
+
+				Market market = Market.create(file.getModelParams());
+				try {
+					while (!market.isFinished()) {
+						market.step();
+						for (Firm f : market.firms)
+							check(f);
+					}
+				} finally {
+					market.shutdown();
+				}
+			}
+
+		file.set("randomSeed", "1");
+		for (double noise : RANDOM_NOISES)
+			for (int firms : RANDOM_FIRMS) {
+				Market market = ExpectedMarketBenchmark.createMarket(file, firms, noise, firms);
+				try {
+					for (Firm f : ExpectedMarketBenchmark.getOwners(market, OWNERS))
+						check(f);
+				} finally {
+					market.shutdown();
+				}
+			}
+
+		CheckFixture.report("Expected markets", checked, "different from adding one by one", differ);
+
+	}
+
+	private static void check(Firm owner) {
+
+		owner.getCompetitorOffers().refresh(owner);
+
+		ExpectedMarket swept = new ExpectedMarket(owner);
+		List<Firm> added = addOneByOne(owner, swept);
+
+		checked++;
+		if (!Arrays.asList(swept.stream().toArray()).equals(added)) {
+			differ++;
+			System.out.println("Differs: " + owner.getFirmIntID() + " at tick " + owner.market.getTick() + ", "
+					+ swept.size() + " and " + added.size() + " competitors");
+		}
+
+	}
+
+	/*
+	 * Competitors kept by adding them one by one. market is only used for the
+	 * prices to expel, which don't depend on the firms in it
+	 */
+	static List<Firm> addOneByOne(Firm owner, ExpectedMarket market) {
+
+		CompetitorOffers offers = owner.getCompetitorOffers();
+		Consumers consumers = owner.market.consumers;
+
+		OfferSnapshot snapshot = owner.market.firms.getOfferSnapshot();
+		Firm[] byID = Arrays.copyOf(snapshot.getFirms(), snapshot.size());
+		Arrays.sort(byID, Comparator.comparingLong(Firm::getFirmIntID));
+
+		TreeSet<Firm> added = new TreeSet<Firm>(
+				(f1, f2) -> OfferSnapshot.compare(offers.getQuality(f1), f1, offers.getQuality(f2), f2));
+		List<Firm> expelled = new ArrayList<Firm>();
+
+		for (Firm f : byID) {
+			if ((f == owner) || (consumers.limitingWelfareParamPerceivedBy(owner, added.lower(f),
+					f) >= consumers.limitingWelfareParamPerceivedBy(owner, f, added.higher(f))))
+				continue;
+
+			// Limits are the ones of the neighbors before any firm is taken out
+			double q = offers.getQuality(f);
+			double p = offers.getPrice(f);
+			for (Firm g : added) {
+				double pToE = market.priceToExpel(q, g, added.lower(g), added.higher(g));
+				if ((pToE != Double.POSITIVE_INFINITY) && (p <= pToE))
+					expelled.add(g);
+			}
+
+			added.removeAll(expelled);
+			expelled.clear();
+			added.add(f);
+		}
+
+		return new ArrayList<Firm>(added);
+
+	}
+
+}
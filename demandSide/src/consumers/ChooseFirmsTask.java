@@ -0,0 +1,71 @@
+package consumers;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Lets a range of consumers choose a firm
+ *
+ * Consumers are split in leaves of leafSize consumers. Each leaf counts demand
+ * and first time buyers in its own arrays, indexed by firm slot, thus firms
+ * are never written by more than one thread. Counts are kept between ticks, so
+ * choosing allocates no arrays once slots stop growing
+ */
+class ChooseFirmsTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	static class Counts {
+		int[] demand = new int[0];
+		int[] newConsumers = new int[0];
+
+		void reset(int slots) {
+			if (demand.length < slots) {
+				demand = new int[slots];
+				newConsumers = new int[slots];
+			} else {
+				Arrays.fill(demand, 0, slots, 0);
+				Arrays.fill(newConsumers, 0, slots, 0);
+			}
+		}
+	}
+
+	private List<Consumer> population;
+	private Counts[] counts;
+	private int fromLeaf, toLeaf;
+	private int slots;
+	private int leafSize;
+
+	ChooseFirmsTask(List<Consumer> population, Counts[] counts, int fromLeaf, int toLeaf, int slots,
+			int leafSize) {
+		this.population = population;
+		this.counts = counts;
+		this.fromLeaf = fromLeaf;
+		this.toLeaf = toLeaf;
+		this.slots = slots;
+		this.leafSize = leafSize;
+	}
+
+	@Override
+	protected void compute() {
+
+		if (toLeaf - fromLeaf == 1) {
+			Counts c = counts[fromLeaf];
+			c.reset(slots);
+
+			int from = fromLeaf * leafSize;
+			int to = Math.min(population.size(), from + leafSize);
+			for (int i = from; i < to; i++)
+				population.get(i).chooseFirm(c.demand, c.newConsumers);
+
+			return;
+		}
+
+		int mid = (fromLeaf + toLeaf) >>> 1;
+		invokeAll(new ChooseFirmsTask(population, counts, fromLeaf, mid, slots, leafSize),
+				new ChooseFirmsTask(population, counts, mid, toLeaf, slots, leafSize));
+
+	}
+
+}
@@ -1,10 +1,6 @@
 package consumers;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Optional;
-import java.lang.Double;
 import java.lang.Long;
 import java.lang.String;
 
@@ -12,44 +8,52 @@ import org.apache.commons.math3.util.FastMath;
 
 import firms.Firm;
 import demandSide.Market;
-import demandSide.RecessionsHandler;
 import demandSide.RunPriority;
 import repast.simphony.engine.schedule.ScheduledMethod;
 
+/*
+ * View of a consumer stored in the ConsumerTable of Consumers
+ */
 public class Consumer {
 
 	private Market market;
+	private UtilityFunction utility;
+	private ConsumerTable table;
 
-	private double rawWelfareParam;
-	private double qualityDiscount;
-	private Optional<Firm> chosenFirm;
-	private ExpectedUtilityComparator expUtilComp;
+	// Position in the table
+	private int index;
 
-	// This map collects the known firms, and provides a quality discount
-	// Quality discount is used in case consumer has not yet tried the firm
-	private HashMap<Firm, Double> knownFirmsQualityDiscount;
-
-	protected static long consumerIDCounter = 1;
-
-	protected long consumerIntID = consumerIDCounter++;
-	protected String ID = "Cons. " + consumerIntID;
-
-	public static void resetCounter() {
-		consumerIDCounter = 1;
-	}
+	protected long consumerIntID;
+	protected String ID;
 
 	public Consumer(Market market) {
 		this.market = market;
+		consumerIntID = market.nextConsumerID();
+		ID = "Cons. " + consumerIntID;
+
+		utility = market.consumers.getUtilityFunction();
+		table = market.consumers.getTable();
+
+		assignPreferences();
 
 		market.consumers.add(this);
 
-		chosenFirm = Optional.empty();
+	}
 
-		knownFirmsQualityDiscount = new HashMap<Firm, Double>();
+	/*
+	 * Consumer already in the table, see Consumers.readState
+	 */
+	Consumer(Market market, long id, int index) {
+		this.market = market;
+		consumerIntID = id;
+		ID = "Cons. " + consumerIntID;
 
-		assignPreferences();
+		utility = market.consumers.getUtilityFunction();
+		table = market.consumers.getTable();
 
-		expUtilComp = new ExpectedUtilityComparator(this);
+		this.index = index;
+
+		market.consumers.add(this);
 
 	}
 
@@ -58,130 +62,222 @@ public class Consumer {
 
 		// We need to introduce randomness
 
-		setRawWelfareParam();
+		double rawWelfareParam = market.consumers.getWelfareParamDistrib().nextDouble();
+
+		// 1.0 could not being assigned because a value of 1.0 is considered
+		// the consumer has already tried the firm
+		double qualityDiscount = market.consumers.getQualityDicountDistrib().nextDouble();
 
-		setQualityDiscount();
+		if (qualityDiscount == 1.0)
+			qualityDiscount = FastMath.nextDown(qualityDiscount);
+
+		index = table.add(rawWelfareParam, qualityDiscount, utility.powQuality(qualityDiscount));
 
 	}
 
-	private void setRawWelfareParam() {
+	/*
+	 * Under Repast each consumer is scheduled, and counts its choice in the
+	 * counts of Consumers.startChoice. Without Repast Consumers.chooseFirms lets
+	 * all of them choose
+	 */
+	@ScheduledMethod(start = 1, priority = RunPriority.CHOOSE_FIRM_PRIORITY, interval = 1)
+	public void chooseFirm() {
+		ChooseFirmsTask.Counts counts = market.consumers.getScheduledCounts();
+		chooseFirm(counts.demand, counts.newConsumers);
+	}
 
-		rawWelfareParam = market.consumers.getWelfareParamDistrib().nextDouble();
+	/*
+	 * Demand and first time choices are counted by firm slot, instead of
+	 * updating the firm, so consumers can choose in parallel
+	 */
+	void chooseFirm(int[] demand, int[] newConsumers) {
 
-	}
+		Firm f;
+		if (table.isDirty(index) || chosenFirmChanged())
+			f = chooseMaximizingFirm();
+		else
+			f = chooseAmongChangedFirms();
 
-	private void setQualityDiscount() {
-		// 1.0 could not being assigned because a value of 1.0 is considered
-		// the consumer has already tried the firm
-		qualityDiscount = market.consumers.getQualityDicountDistrib().nextDouble();
+		table.clearDirty(index);
+
+		if (f == null) {
+			table.clearChosen(index);
+			return;
+		}
 
-		if (getQualityDiscount() == 1.0)
-			qualityDiscount = FastMath.nextDown(getQualityDiscount());
+		int slot = f.getSlot();
+		table.setChosen(index, slot);
+
+		// Increase Demand
+		demand[slot]++;
+
+		// Check if first time chosen
+		if (firstTimeChosen(slot)) {
+			newConsumers[slot]++;
+			table.setTried(index, slot);
+		}
 
 	}
 
-	public void addToKnownFirms(Firm f) {
-		// It is assumed that firm was not known,
-		knownFirmsQualityDiscount.put(f, getQualityDiscount());
+	private boolean chosenFirmChanged() {
+		return table.hasChosen(index) && market.consumers.isOfferChanged(table.chosenSlot[index]);
 	}
 
-	@ScheduledMethod(start = 1, priority = RunPriority.CHOOSE_FIRM_PRIORITY, interval = 1)
-	public void chooseFirm() {
+	/*
+	 * Known firms that didn't change were worse than the chosen one last time,
+	 * and still are, because neither their offers nor the welfare parameter
+	 * changed. Trying the chosen firm only makes it better. Thus it is enough
+	 * to compare the chosen firm with the known firms that changed
+	 */
+	private Firm chooseAmongChangedFirms() {
+
+		Firm best = null;
+		double bestUtility = 0.0;
+
+		if (table.hasChosen(index)) {
+			best = market.firms.getFirmAtSlot(table.chosenSlot[index]);
+			bestUtility = expectedUtility(best);
+		}
+
+		int[] changed = market.consumers.getChangedSlots();
+		int changedCount = market.consumers.getChangedCount();
 
-		chosenFirm = chooseMaximizingFirm();
+		for (int k = 0; k < changedCount; k++) {
 
-		chosenFirm.ifPresent(f -> {
-			// Increase Demand
-			f.setDemand(f.getDemand() + 1);
+			int slot = changed[k];
+			if (!table.isKnown(index, slot))
+				continue;
 
-			// Check if first time chosen
-			if (firstTimeChosen(f)) {
-				f.addNewConsumer();
-				addToTriedFirms(f);
+			Firm f = market.firms.getFirmAtSlot(slot);
+			double u = expectedUtility(f);
 
+			if (u > bestUtility) {
+				best = f;
+				bestUtility = u;
 			}
-		});
+		}
 
-	}
+		return (bestUtility > 0.0) ? best : null;
 
-	private void addToTriedFirms(Firm f) {
-		// Sets quality discount to 1
-		knownFirmsQualityDiscount.put(f, 1.0);
 	}
 
-	private boolean firstTimeChosen(Firm f) {
-		return (knownFirmsQualityDiscount.get(f) != 1.0);
+	private boolean firstTimeChosen(int slot) {
+		return !table.isTried(index, slot);
 	}
 
 	// Returns the firm from the known firms that maximizes utility
-	// if no firm is chosen returns empty (all utilities are below 0)
-	private Optional<Firm> chooseMaximizingFirm() {
+	// if no firm is chosen returns null (all utilities are below 0)
+	private Firm chooseMaximizingFirm() {
+
+		Firm f = chooseFromEnvelope();
 
-		return knownFirmsQualityDiscount.entrySet().stream().max(expUtilComp).filter(kF -> expectedUtility(kF) > 0.0)
-				.map(Map.Entry::getKey);
+		if (f == null)
+			return chooseFromKnownFirms();
+		else
+			return (expectedUtility(f) > 0.0) ? f : null;
 
 	}
 
-	public double expectedUtility(Entry<Firm, Double> knownFirm) {
+	/*
+	 * Uses the envelope of all firms when the answer does not depend on which
+	 * firms were tried. Returns null when the known firms should be scanned
+	 */
+	private Firm chooseFromEnvelope() {
+
+		UtilityEnvelope envelope = market.consumers.getEnvelope();
 
-		assert (knownFirm != null);
+		// The envelope includes firms the consumer doesn't know
+		if (table.getKnownCount(index) != envelope.getFirmsCount())
+			return null;
 
-		double welfareParam = RecessionsHandler.getWelfareParamForConsumers(getRawWelfareParam());
+		double welfareParam = getWelfareParam();
+
+		// Best firm if all were tried. If it was actually tried, no other firm
+		// could give more utility, because discounts only reduce it
+		Firm f = envelope.best(welfareParam);
+		if ((f == null) || !firstTimeChosen(f.getSlot()))
+			return f;
+
+		// Nothing tried, all firms are discounted the same way
+		if (table.triedCount[index] == 0)
+			return envelope.best(welfareParam * table.powQualityDiscount[index]);
+
+		return null;
 
-		double price = knownFirm.getKey().getPrice();
-		double quality = knownFirm.getKey().getQuality();
-		double qualityDiscount = knownFirm.getValue();
-		
-		return UtilityFunction.realUtility(welfareParam, price, quality * qualityDiscount);
 	}
 
-	private double realUtility(Firm f) {
+	private Firm chooseFromKnownFirms() {
+
+		Firm best = null;
+		double bestUtility = 0.0;
+
+		for (int slot = table.nextKnown(index, 0); slot >= 0; slot = table.nextKnown(index, slot + 1)) {
 
-		double welfareParam = RecessionsHandler.getWelfareParamForConsumers(getRawWelfareParam());
+			Firm f = market.firms.getFirmAtSlot(slot);
+			double u = expectedUtility(f);
+
+			if ((best == null) || (u > bestUtility)) {
+				best = f;
+				bestUtility = u;
+			}
+		}
+
+		return (bestUtility > 0.0) ? best : null;
 
-		return UtilityFunction.realUtility(welfareParam, f.getPrice(), f.getQuality());
 	}
 
-	public void removeTraceOfFirm(Firm firm) {
-		knownFirmsQualityDiscount.remove(firm);
+	public double expectedUtility(Firm f) {
+
+		assert (f != null);
+
+		double price = f.getPrice();
+		double quality = f.getQuality();
+
+		// Quality discount is used in case consumer has not yet tried the firm
+		double qualityDiscount = table.isTried(index, f.getSlot()) ? 1.0 : getQualityDiscount();
 
-		chosenFirm.ifPresent(f -> {
-			if (f.equals(firm))
-				chosenFirm = Optional.empty();
-		});
+		return utility.realUtility(getWelfareParam(), price, quality * qualityDiscount);
+	}
+
+	private double realUtility(Firm f) {
 
+		return utility.realUtility(getWelfareParam(), f.getPrice(), f.getQuality());
 	}
 
 	public double getRawWelfareParam() {
-		return rawWelfareParam;
+		return table.rawWelfareParam[index];
 	}
 
 	//
 	// Procedures for inspecting values
 	//
 	public double getWelfareParam() {
-		return RecessionsHandler.getWelfareParamForConsumers(getRawWelfareParam());
+		return market.recessionsHandler.getWelfareParamForConsumers(getRawWelfareParam());
 	}
 
 	public Optional<Firm> getChosenFirm() {
-		return chosenFirm;
+
+		if (table.hasChosen(index))
+			return Optional.of(market.firms.getFirmAtSlot(table.chosenSlot[index]));
+		else
+			return Optional.empty();
+
 	}
 
 	public String getChosenFirmID() {
-		return chosenFirm.map(Firm::toString).orElse("Substitute");
+		return getChosenFirm().map(Firm::toString).orElse("Substitute");
 	}
 
 	public double getChosenFirmIntID() {
-		return chosenFirm.map(Firm::getFirmIntID).orElse((long) 0);
+		return getChosenFirm().map(Firm::getFirmIntID).orElse((long) 0);
 	}
 
 	public double getExpectedUtility() {
-
-		return chosenFirm.map(f -> expectedUtility(Map.entry(f, knownFirmsQualityDiscount.get(f)))).orElse(0.0);
+		return getChosenFirm().map(f -> expectedUtility(f)).orElse(0.0);
 	}
 
 	public double getRealUtility() {
-		return chosenFirm.map(f -> realUtility(f)).orElse(0.0);
+		return getChosenFirm().map(f -> realUtility(f)).orElse(0.0);
 	}
 
 	public double getConsumerIntID() {
@@ -201,7 +297,7 @@ public class Consumer {
 	}
 
 	public double getQualityDiscount() {
-		return qualityDiscount;
+		return table.qualityDiscount[index];
 	}
 
-}
\ No newline at end of file
+}
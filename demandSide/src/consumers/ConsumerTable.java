@@ -0,0 +1,444 @@
+package consumers;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.math3.util.FastMath;
+
+/*
+ * Consumers state stored by column
+ *
+ * Consumer i has its preferences at position i of the arrays, and two bit sets
+ * indexed by firm slot: the firms it knows and the ones it has already tried.
+ * Bit sets of consumer i are the words [i * stride, (i + 1) * stride) of known
+ * and tried
+ */
+class ConsumerTable {
+
+	private static final int NO_FIRM = -1;
+
+	// A slot known by more than size / SCAN_RATIO consumers drops its list of
+	// knowers, and its bit column is scanned when its firm leaves
+	private static final int SCAN_RATIO = 16;
+	private static final int SCAN_COLUMN = -1;
+
+	private int size = 0;
+
+	double[] rawWelfareParam;
+	double[] qualityDiscount;
+	double[] powQualityDiscount;
+
+	// Slot of the chosen firm, NO_FIRM when the substitute is chosen
+	int[] chosenSlot;
+
+	// Known slots not counting the ones known by all
+	int[] knownCount;
+	int[] triedCount;
+
+	// Consumers that should consider all known firms on next choice, because
+	// they learned of a firm or their chosen firm left the market
+	private boolean[] dirty;
+
+	// Words of each consumer's bit sets
+	private int stride = 1;
+	private long[] known;
+	private long[] tried;
+
+	// Slots known by every consumer are not stored in each consumer's set
+	private long[] knownByAll = new long[stride];
+	private int knownByAllCount = 0;
+
+	// Consumers that know each slot, or SCAN_COLUMN in knowersCount
+	private int[][] knowers = new int[0][];
+	private int[] knowersCount = new int[0];
+
+	ConsumerTable(int capacity) {
+
+		rawWelfareParam = new double[capacity];
+		qualityDiscount = new double[capacity];
+		powQualityDiscount = new double[capacity];
+
+		chosenSlot = new int[capacity];
+		Arrays.fill(chosenSlot, NO_FIRM);
+
+		knownCount = new int[capacity];
+		triedCount = new int[capacity];
+
+		dirty = new boolean[capacity];
+		Arrays.fill(dirty, true);
+
+		known = new long[capacity * stride];
+		tried = new long[capacity * stride];
+
+	}
+
+	int add(double rawWP, double qDiscount, double powQDiscount) {
+
+		int i = size++;
+
+		rawWelfareParam[i] = rawWP;
+		qualityDiscount[i] = qDiscount;
+		powQualityDiscount[i] = powQDiscount;
+
+		return i;
+
+	}
+
+	int size() {
+		return size;
+	}
+
+	/*
+	 * Makes room in the bit sets for firm slots up to slots (excluded)
+	 */
+	void ensureSlots(int slots) {
+
+		if (knowers.length < slots) {
+			knowers = Arrays.copyOf(knowers, slots);
+			knowersCount = Arrays.copyOf(knowersCount, slots);
+		}
+
+		int newStride = (slots + 63) >>> 6;
+		if (newStride <= stride)
+			return;
+
+		int capacity = rawWelfareParam.length;
+		known = widen(known, capacity, newStride);
+		tried = widen(tried, capacity, newStride);
+		knownByAll = Arrays.copyOf(knownByAll, newStride);
+		stride = newStride;
+
+	}
+
+	private long[] widen(long[] words, int capacity, int newStride) {
+
+		long[] retval = new long[capacity * newStride];
+		for (int i = 0; i < size; i++)
+			System.arraycopy(words, i * stride, retval, i * newStride, stride);
+
+		return retval;
+
+	}
+
+	boolean isKnown(int i, int slot) {
+		return isKnownByAll(slot) || isSet(known, i, slot);
+	}
+
+	private boolean isKnownByAll(int slot) {
+		int w = slot >>> 6;
+		return (w < stride) && ((knownByAll[w] & (1L << slot)) != 0);
+	}
+
+	int getKnownCount(int i) {
+		return knownCount[i] + knownByAllCount;
+	}
+
+	boolean isTried(int i, int slot) {
+		return isSet(tried, i, slot);
+	}
+
+	void setKnown(int i, int slot) {
+		if (set(known, i, slot)) {
+			knownCount[i]++;
+			dirty[i] = true;
+			addKnower(i, slot);
+		}
+	}
+
+	/*
+	 * Consumers' sets are not touched. Tried bits and choices are cleared by a
+	 * column scan when the firm leaves
+	 */
+	void setKnownByAll(int slot) {
+
+		assert !isKnownByAll(slot);
+
+		knownByAll[slot >>> 6] |= 1L << slot;
+		knownByAllCount++;
+
+		knowersCount[slot] = SCAN_COLUMN;
+		knowers[slot] = null;
+
+	}
+
+	private void addKnower(int i, int slot) {
+
+		int count = knowersCount[slot];
+		if (count == SCAN_COLUMN)
+			return;
+
+		if (count >= FastMath.max(64, size / SCAN_RATIO)) {
+			// Scanning the column is cheaper than keeping the list
+			knowersCount[slot] = SCAN_COLUMN;
+			knowers[slot] = null;
+			return;
+		}
+
+		if (knowers[slot] == null)
+			knowers[slot] = new int[16];
+		else if (knowers[slot].length == count)
+			knowers[slot] = Arrays.copyOf(knowers[slot], 2 * count);
+
+		knowers[slot][count] = i;
+		knowersCount[slot] = count + 1;
+
+	}
+
+	void setTried(int i, int slot) {
+		if (set(tried, i, slot))
+			triedCount[i]++;
+	}
+
+	/*
+	 * Takes the firm in slot out of consumer's sets and choice
+	 */
+	void forget(int i, int slot) {
+
+		if (clear(known, i, slot))
+			knownCount[i]--;
+
+		if (clear(tried, i, slot))
+			triedCount[i]--;
+
+		if (chosenSlot[i] == slot) {
+			chosenSlot[i] = NO_FIRM;
+			dirty[i] = true;
+		}
+
+	}
+
+	/*
+	 * Takes the firms in slots out of the sets and choices of the consumers that
+	 * know them
+	 * 
+	 * Slots with a list of knowers cost as much as the list. Slots known by
+	 * many consumers are cleared together in one pass over the table, masking
+	 * all their bits at once
+	 */
+	void forgetSlots(int[] slots, int n) {
+
+		long[] mask = null;
+
+		for (int k = 0; k < n; k++) {
+			int slot = slots[k];
+
+			if (knowersCount[slot] == SCAN_COLUMN) {
+				if (mask == null)
+					mask = new long[stride];
+				mask[slot >>> 6] |= 1L << slot;
+
+				if (isKnownByAll(slot)) {
+					knownByAll[slot >>> 6] &= ~(1L << slot);
+					knownByAllCount--;
+				}
+
+			} else {
+				int[] list = knowers[slot];
+				for (int j = 0; j < knowersCount[slot]; j++)
+					forget(list[j], slot);
+			}
+
+			knowersCount[slot] = 0;
+		}
+
+		if (mask != null)
+			for (int i = 0; i < size; i++)
+				forgetMasked(i, mask);
+
+	}
+
+	private void forgetMasked(int i, long[] mask) {
+
+		int base = i * stride;
+
+		for (int w = 0; w < stride; w++) {
+			if (mask[w] == 0)
+				continue;
+
+			long k = known[base + w] & mask[w];
+			if (k != 0) {
+				knownCount[i] -= Long.bitCount(k);
+				known[base + w] &= ~mask[w];
+			}
+
+			long t = tried[base + w] & mask[w];
+			if (t != 0) {
+				triedCount[i] -= Long.bitCount(t);
+				tried[base + w] &= ~mask[w];
+			}
+		}
+
+		int chosen = chosenSlot[i];
+		if ((chosen != NO_FIRM) && ((mask[chosen >>> 6] & (1L << chosen)) != 0)) {
+			chosenSlot[i] = NO_FIRM;
+			dirty[i] = true;
+		}
+
+	}
+
+	/*
+	 * Returns the first known slot from slot (included), or -1 if there is none
+	 */
+	int nextKnown(int i, int slot) {
+
+		int base = i * stride;
+		int w = slot >>> 6;
+
+		if (w >= stride)
+			return -1;
+
+		long word = (known[base + w] | knownByAll[w]) & (-1L << (slot & 63));
+
+		while (true) {
+			if (word != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+
+			if (++w == stride)
+				return -1;
+
+			word = known[base + w] | knownByAll[w];
+		}
+
+	}
+
+	boolean hasChosen(int i) {
+		return chosenSlot[i] != NO_FIRM;
+	}
+
+	void setChosen(int i, int slot) {
+		chosenSlot[i] = slot;
+	}
+
+	void clearChosen(int i) {
+		chosenSlot[i] = NO_FIRM;
+	}
+
+	boolean isDirty(int i) {
+		return dirty[i];
+	}
+
+	void clearDirty(int i) {
+		dirty[i] = false;
+	}
+
+	void setAllDirty() {
+		Arrays.fill(dirty, 0, size, true);
+	}
+
+	/*
+	 * State of the first size consumers, see MarketSnapshot
+	 */
+	void writeState(DataOutput out) throws IOException {
+
+		out.writeInt(size);
+		out.writeInt(stride);
+
+		for (int i = 0; i < size; i++) {
+			out.writeDouble(rawWelfareParam[i]);
+			out.writeDouble(qualityDiscount[i]);
+			out.writeDouble(powQualityDiscount[i]);
+			out.writeInt(chosenSlot[i]);
+			out.writeInt(knownCount[i]);
+			out.writeInt(triedCount[i]);
+			out.writeBoolean(dirty[i]);
+		}
+
+		for (int k = 0; k < size * stride; k++) {
+			out.writeLong(known[k]);
+			out.writeLong(tried[k]);
+		}
+
+		for (int w = 0; w < stride; w++)
+			out.writeLong(knownByAll[w]);
+		out.writeInt(knownByAllCount);
+
+		out.writeInt(knowersCount.length);
+		for (int slot = 0; slot < knowersCount.length; slot++) {
+			out.writeInt(knowersCount[slot]);
+			for (int j = 0; j < knowersCount[slot]; j++)
+				out.writeInt(knowers[slot][j]);
+		}
+
+	}
+
+	/*
+	 * Reads the state into a table with the same capacity
+	 */
+	void readState(DataInput in) throws IOException {
+
+		size = in.readInt();
+		stride = in.readInt();
+
+		int capacity = rawWelfareParam.length;
+		if (size > capacity)
+			throw new IOException("Snapshot has " + size + " consumers, table has room for " + capacity);
+
+		for (int i = 0; i < size; i++) {
+			rawWelfareParam[i] = in.readDouble();
+			qualityDiscount[i] = in.readDouble();
+			powQualityDiscount[i] = in.readDouble();
+			chosenSlot[i] = in.readInt();
+			knownCount[i] = in.readInt();
+			triedCount[i] = in.readInt();
+			dirty[i] = in.readBoolean();
+		}
+
+		known = new long[capacity * stride];
+		tried = new long[capacity * stride];
+		for (int k = 0; k < size * stride; k++) {
+			known[k] = in.readLong();
+			tried[k] = in.readLong();
+		}
+
+		knownByAll = new long[stride];
+		for (int w = 0; w < stride; w++)
+			knownByAll[w] = in.readLong();
+		knownByAllCount = in.readInt();
+
+		int slots = in.readInt();
+		knowers = new int[slots][];
+		knowersCount = new int[slots];
+		for (int slot = 0; slot < slots; slot++) {
+			int count = in.readInt();
+			knowersCount[slot] = count;
+			if (count > 0) {
+				knowers[slot] = new int[FastMath.max(16, count)];
+				for (int j = 0; j < count; j++)
+					knowers[slot][j] = in.readInt();
+			}
+		}
+
+	}
+
+	private boolean isSet(long[] words, int i, int slot) {
+		int w = slot >>> 6;
+		return (w < stride) && ((words[i * stride + w] & (1L << slot)) != 0);
+	}
+
+	/*
+	 * Returns true if the bit was not set before
+	 */
+	private boolean set(long[] words, int i, int slot) {
+		int k = i * stride + (slot >>> 6);
+		long before = words[k];
+		words[k] = before | (1L << slot);
+		return before != words[k];
+	}
+
+	/*
+	 * Returns true if the bit was set before
+	 */
+	private boolean clear(long[] words, int i, int slot) {
+		int w = slot >>> 6;
+		if (w >= stride)
+			return false;
+
+		int k = i * stride + w;
+		long before = words[k];
+		words[k] = before & ~(1L << slot);
+		return before != words[k];
+	}
+
+}
@@ -1,23 +1,35 @@
 package consumers;
 
-import static repast.simphony.essentials.RepastEssentials.GetParameter;
-
-import java.util.Optional;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.math3.util.FastMath;
 
 import cern.jet.random.Beta;
-import cern.jet.random.engine.MersenneTwister;
 import cern.jet.random.engine.RandomEngine;
+import demandSide.FastPow;
 import demandSide.Market;
+import demandSide.ModelParams;
+import demandSide.RandomStreams.Purpose;
 import demandSide.RecessionsHandler;
+import demandSide.RunPriority;
+import firms.CompetitorOffers;
 import firms.Firm;
 import firms.Offer;
 import repast.simphony.context.DefaultContext;
+import repast.simphony.engine.schedule.ScheduledMethod;
 
 public class Consumers extends DefaultContext<Consumer> {
 
 	private Market market;
+	private ModelParams params;
+
+	private UtilityFunction utility;
 
 	// Distribution of consumer's utility parameters
 	private double rawMinWelfareParam;
@@ -29,39 +41,77 @@ public class Consumers extends DefaultContext<Consumer> {
 	private double probabilityForRichestConsumer;
 	private int mktSize;
 
+	// Firms as seen by consumers when choosing
+	private UtilityEnvelope envelope;
+
+	// Consumers in creation order, to split them among workers
+	private ArrayList<Consumer> population;
+	private ConsumerTable table;
+	private ForkJoinPool pool;
+
+	// Incremental choice: only firms whose offer changed since last choice
+	// are compared with the chosen one
+	private boolean incrementalChoice;
+	private boolean[] offerChanged = new boolean[0];
+	private int[] changedSlots = new int[0];
+	private int changedCount = 0;
+	private double lastRecesMagnitude = Double.NaN;
+
+	// Demand counted by each leaf of ChooseFirmsTask, reused every tick
+	private ChooseFirmsTask.Counts[] leafCounts = new ChooseFirmsTask.Counts[0];
+
+	// Slots of the firms being forgotten, reused every tick
+	private int[] forgottenSlots = new int[0];
+
 	public Consumers(Market market) {
 		super("Consumers_Context");
 
 		this.market = market;
+		params = market.params;
 
 		// read Parameters
-		mktSize = (int) GetParameter("numberOfConsumers");
-		probabilityForRichestConsumer = (double) GetParameter("richestProbability");
+		mktSize = params.numberOfConsumers;
+		probabilityForRichestConsumer = params.richestProbability;
+		incrementalChoice = params.incrementalChoice;
+
+		utility = new UtilityFunction(params, market.recessionsHandler);
 
 		createProbabilityDistrib();
 
+		envelope = new UtilityEnvelope();
+
+		population = new ArrayList<Consumer>(mktSize);
+		table = new ConsumerTable(mktSize);
+		pool = market.workers;
+
+	}
+
+	@Override
+	public boolean add(Consumer c) {
+		population.add(c);
+		return super.add(c);
 	}
 
 	private void createProbabilityDistrib() {
 
 
 		// Welfare Parameter Distribution
-		rawMinWelfareParam = (double) GetParameter("minWelfareParam");
+		rawMinWelfareParam = params.minWelfareParam;
 
-		double gini = (double) GetParameter("gini");
-		lambda = (1.0 + gini) / (2.0 * gini);
-		
-		welfareParamDistrib = Pareto.getPareto(lambda, rawMinWelfareParam);
+		lambda = params.getLambda();
+
+		welfareParamDistrib = Pareto.getPareto(lambda, rawMinWelfareParam,
+				market.randomStreams.get(Purpose.WELFARE_PARAM));
 
 		
 		// Quality Discount Distribution
-		double mean = (Double) GetParameter("qualityDiscountMean");
-		double mode = (Double) GetParameter("qualityDiscountMostLikely");
+		double mean = params.qualityDiscountMean;
+		double mode = params.qualityDiscountMostLikely;
 		double alpha = mean * (1 - 2 * mode) / (mean - mode);
 		double beta = alpha * (1 - mean) / mean;
 //		qualityDiscountDistrib = RandomHelper.createBeta(alpha, beta);
 
-		RandomEngine engine = new MersenneTwister(Market.seed);
+		RandomEngine engine = market.randomStreams.get(Purpose.QUALITY_DISCOUNT);
 		qualityDiscountDistrib = new Beta(alpha, beta, engine);
 	}
 
@@ -81,26 +131,281 @@ public class Consumers extends DefaultContext<Consumer> {
 		return lambda;
 	}
 
-	public static double getMinRawWelfareParam() {
-		return (double) GetParameter("minWelfareParam");
+	RecessionsHandler getRecessionsHandler() {
+		return market.recessionsHandler;
+	}
+
+	public double getMinRawWelfareParam() {
+		return rawMinWelfareParam;
+	}
+
+	public UtilityFunction getUtilityFunction() {
+		return utility;
+	}
+
+	ConsumerTable getTable() {
+		return table;
+	}
+
+	/*
+	 * Makes room for firm slots up to slots (excluded) in consumers' known and
+	 * tried sets
+	 */
+	public void ensureFirmSlots(int slots) {
+		table.ensureSlots(slots);
+
+		if (offerChanged.length < slots) {
+			offerChanged = Arrays.copyOf(offerChanged, slots);
+			changedSlots = new int[slots];
+		}
+	}
+
+	/*
+	 * Lets the consumer created in the given order know the firm
+	 */
+	public void letKnow(int consumer, Firm f) {
+		table.setKnown(consumer, f.getSlot());
+	}
+
+	/*
+	 * Lets every consumer know the firm, without touching each one
+	 */
+	public void letAllKnow(Firm f) {
+		table.setKnownByAll(f.getSlot());
+	}
+
+	/*
+	 * Takes the firms out of the consumers that know them. It should be called
+	 * before their slots are released
+	 */
+	public void forgetFirms(List<Firm> firms) {
+
+		if (firms.isEmpty())
+			return;
+
+		int n = firms.size();
+		if (forgottenSlots.length < n)
+			forgottenSlots = new int[n];
+
+		for (int k = 0; k < n; k++)
+			forgottenSlots[k] = firms.get(k).getSlot();
+
+		table.forgetSlots(forgottenSlots, n);
+
+	}
+
+	/*
+	 * Firms call it when they enter or their offer changes, so consumers
+	 * reconsider them on next choice
+	 */
+	public void markOfferChanged(Firm f) {
+		offerChanged[f.getSlot()] = true;
+	}
+
+	boolean isOfferChanged(int slot) {
+		return offerChanged[slot];
+	}
+
+	int[] getChangedSlots() {
+		return changedSlots;
+	}
+
+	int getChangedCount() {
+		return changedCount;
 	}
 
 	public void createConsumers() {
 
-		for (int i = 1; i <= (Integer) GetParameter("numberOfConsumers"); i++) {
+		for (int i = 1; i <= mktSize; i++) {
 			new Consumer(market);
 		}
 
 	}
 
-	public double getExpectedQuantity(Offer segOffer, Optional<Offer> loOffer, Optional<Offer> hiOffer) {
+	/*
+	 * State of the consumers, see MarketSnapshot. Utility envelope and counts
+	 * are rebuilt on every choice
+	 */
+	public void writeState(DataOutput out) throws IOException {
+
+		out.writeInt(population.size());
+		for (Consumer c : population)
+			out.writeLong(c.consumerIntID);
+
+		table.writeState(out);
+
+		out.writeInt(offerChanged.length);
+		for (boolean changed : offerChanged)
+			out.writeBoolean(changed);
+
+		out.writeDouble(lastRecesMagnitude);
+
+	}
+
+	/*
+	 * Creates the consumers of the state, instead of drawing them
+	 */
+	public void readState(DataInput in) throws IOException {
+
+		assert population.isEmpty();
+
+		int n = in.readInt();
+		if (n != mktSize)
+			throw new IOException("Snapshot has " + n + " consumers, numberOfConsumers is " + mktSize);
+
+		long[] ids = new long[n];
+		for (int i = 0; i < n; i++)
+			ids[i] = in.readLong();
+
+		table.readState(in);
+
+		for (int i = 0; i < n; i++)
+			new Consumer(market, ids[i], i);
+
+		offerChanged = new boolean[in.readInt()];
+		changedSlots = new int[offerChanged.length];
+		for (int slot = 0; slot < offerChanged.length; slot++)
+			offerChanged[slot] = in.readBoolean();
+
+		lastRecesMagnitude = in.readDouble();
+
+	}
+
+	/*
+	 * All consumers choose a firm, split among the worker threads. Under Repast
+	 * each consumer is scheduled instead, see Consumer.chooseFirm
+	 */
+	public void chooseFirms() {
+
+		int slots = prepareChoice();
+		int leafSize = FastMath.max(1024, population.size() / (8 * pool.getParallelism()));
+		int leaves = FastMath.max(1, (population.size() + leafSize - 1) / leafSize);
+
+		ensureLeafCounts(leaves);
+
+		pool.invoke(new ChooseFirmsTask(population, leafCounts, 0, leaves, slots, leafSize));
+
+		countChoices(slots, leaves);
+
+	}
+
+	/*
+	 * Before consumers choose one by one under Repast. They count their choices
+	 * in the first leaf
+	 */
+	@ScheduledMethod(start = 1, priority = RunPriority.START_CHOICE_PRIORITY, interval = 1)
+	public void startChoice() {
+
+		int slots = prepareChoice();
+
+		ensureLeafCounts(1);
+		leafCounts[0].reset(slots);
+
+	}
+
+	/*
+	 * After consumers choose one by one under Repast
+	 */
+	@ScheduledMethod(start = 1, priority = RunPriority.END_CHOICE_PRIORITY, interval = 1)
+	public void endChoice() {
+		countChoices(market.firms.getSlotsCount(), 1);
+	}
+
+	ChooseFirmsTask.Counts getScheduledCounts() {
+		return leafCounts[0];
+	}
+
+	/*
+	 * Returns the firm slots to count
+	 */
+	private int prepareChoice() {
+
+		// Offers are already made, thus they won't change until next tick
+		envelope.build(market.firms, utility);
+
+		int slots = market.firms.getSlotsCount();
+
+		// A recession changes the utility of every firm
+		double recesMagnitude = market.recessionsHandler.getRecesMagnitude();
+		if (!incrementalChoice || (recesMagnitude != lastRecesMagnitude))
+			table.setAllDirty();
+		lastRecesMagnitude = recesMagnitude;
+
+		collectChangedSlots(slots);
+
+		return slots;
+
+	}
+
+	/*
+	 * Adds the demand counted by the leaves to the firms
+	 */
+	private void countChoices(int slots, int leaves) {
+
+		for (int slot = 0; slot < slots; slot++) {
+			Firm f = market.firms.getFirmAtSlot(slot);
+			if (f == null)
+				continue;
+
+			int demand = 0, newConsumers = 0;
+			for (int l = 0; l < leaves; l++) {
+				demand += leafCounts[l].demand[slot];
+				newConsumers += leafCounts[l].newConsumers[slot];
+			}
+
+			f.setDemand(f.getDemand() + demand);
+			f.addNewConsumers(newConsumers);
+		}
+
+		for (int k = 0; k < changedCount; k++)
+			offerChanged[changedSlots[k]] = false;
+
+	}
+
+	private void collectChangedSlots(int slots) {
+
+		changedCount = 0;
+		for (int slot = 0; slot < slots; slot++) {
+			if (!offerChanged[slot])
+				continue;
+
+			if (market.firms.getFirmAtSlot(slot) == null)
+				// The firm left, consumers that chose it are already dirty
+				offerChanged[slot] = false;
+			else
+				changedSlots[changedCount++] = slot;
+		}
+
+	}
+
+	private void ensureLeafCounts(int leaves) {
+
+		if (leafCounts.length >= leaves)
+			return;
+
+		int old = leafCounts.length;
+		leafCounts = Arrays.copyOf(leafCounts, leaves);
+		for (int l = old; l < leaves; l++)
+			leafCounts[l] = new ChooseFirmsTask.Counts();
+
+	}
+
+	UtilityEnvelope getEnvelope() {
+		return envelope;
+	}
+
+	/*
+	 * Expected quantity of an offer with price and perceivedQ between two
+	 * neighbor offers. Missing neighbors are null
+	 */
+	public double getExpectedQuantity(double price, double perceivedQ, Offer loOffer, Offer hiOffer) {
 
 		double demandAboveLoLimit, demandAboveHiLimit;
 
 		demandAboveLoLimit = getExpectedConsumersAboveRawWelfareParam(
-				limitingWelfareParamPerceivedByFirms(loOffer, Optional.of(segOffer)));
+				limitingWelfareParamPerceivedByFirms(loOffer, price, perceivedQ));
 		demandAboveHiLimit = getExpectedConsumersAboveRawWelfareParam(
-				limitingWelfareParamPerceivedByFirms(Optional.of(segOffer), hiOffer));
+				limitingWelfareParamPerceivedByFirms(price, perceivedQ, hiOffer));
 
 		if (demandAboveLoLimit > demandAboveHiLimit)
 			return demandAboveLoLimit - demandAboveHiLimit;
@@ -109,6 +414,14 @@ public class Consumers extends DefaultContext<Consumer> {
 
 	}
 
+	/*
+	 * Sets demand to the expected quantity of an offer with perceivedQ as a
+	 * function of its price, and returns it. Missing neighbors are null
+	 */
+	public SegmentDemand getSegmentDemand(double perceivedQ, Offer loOffer, Offer hiOffer, SegmentDemand demand) {
+		return demand.set(this, perceivedQ, loOffer, hiOffer);
+	}
+
 	/*
 	 * This function depends on the assumption of Pareto distribution of welfare
 	 * parameter
@@ -120,7 +433,7 @@ public class Consumers extends DefaultContext<Consumer> {
 		else if (rawWelfareParameter == Double.POSITIVE_INFINITY)
 			return 0.;
 		else
-			return mktSize * FastMath.pow(rawMinWelfareParam / rawWelfareParameter, lambda);
+			return mktSize * FastPow.pow(rawMinWelfareParam / rawWelfareParameter, lambda);
 
 	}
 
@@ -133,23 +446,63 @@ public class Consumers extends DefaultContext<Consumer> {
 	 * the ones with higher welfare parameter would choose hiOffer
 	 * 
 	 * When there is no limit, function returns POSITIVE_INFINITY
+	 * 
+	 * The higher offer has price hiP and quality hiQ, the lower one is null if
+	 * it is missing
 	 */
-	public double limitingWelfareParamPerceivedByFirms(Optional<Offer> loOf, Optional<Offer> hiOf) {
+	public double limitingWelfareParamPerceivedByFirms(Offer loOf, double hiP, double hiQ) {
 
-		assert !Offer.equivalentOffers(loOf, hiOf) : "Offers should be different";
+		assert !Offer.equivalentOffers(loOf, hiP, hiQ) : "Offers should be different";
 
-		if (hiOf.isEmpty())
-			// If there is no higher Offer there is no limit
-			return Double.POSITIVE_INFINITY;
-
-		else if (loOf.isEmpty())
+		if (loOf == null)
 			// If there is no lower Offer the limit is determined by the minimum welfare
 			// param
-			return UtilityFunction.getMinWelfareParamAceptingOfferPerceivedByFirms(hiOf.get());
+			return utility.getMinWelfareParamAceptingOfferPerceivedByFirms(hiP, hiQ);
 
 		else
 			// Both are present
-			return limitingWelfareParamPerceivedByFirms(loOf.get(), hiOf.get());
+			return limitingWelfareParamBetween(loOf.getPrice(), loOf.getQuality(), hiP, hiQ);
+
+	}
+
+	/*
+	 * Same as above, with the lower offer given by loP and loQ, and the higher
+	 * one null if it is missing
+	 */
+	public double limitingWelfareParamPerceivedByFirms(double loP, double loQ, Offer hiOf) {
+
+		assert !Offer.equivalentOffers(hiOf, loP, loQ) : "Offers should be different";
+
+		if (hiOf == null)
+			// If there is no higher Offer there is no limit
+			return Double.POSITIVE_INFINITY;
+
+		else
+			// Both are present
+			return limitingWelfareParamBetween(loP, loQ, hiOf.getPrice(), hiOf.getQuality());
+
+	}
+
+	/*
+	 * Same as above, between competitors of owner as it perceives them while
+	 * deciding. Null stands for a missing firm
+	 */
+	public double limitingWelfareParamPerceivedBy(Firm owner, Firm loF, Firm hiF) {
+
+		CompetitorOffers offers = owner.getCompetitorOffers();
+
+		if (hiF == null)
+			return Double.POSITIVE_INFINITY;
+
+		else if (loF == null)
+			return utility.getMinWelfareParamAceptingOfferPerceivedByFirms(offers.getPrice(hiF),
+					offers.getQuality(hiF));
+
+		else {
+			assert loF != hiF : "Offers should be different";
+			return limitingWelfareParamBetween(offers.getPrice(loF), offers.getQuality(loF), offers.getPrice(hiF),
+					offers.getQuality(hiF));
+		}
 
 	}
 
@@ -162,18 +515,7 @@ public class Consumers extends DefaultContext<Consumer> {
 	 * Returns positive infinity if no consumer would choose higher offer
 	 * 
 	 */
-	private double limitingWelfareParamPerceivedByFirms(Offer loOf, Offer hiOf) {
-
-		assert (loOf != null) && (hiOf != null);
-
-		double loQ, hiQ;
-
-		loQ = loOf.getQuality();
-		hiQ = hiOf.getQuality();
-
-		double loP, hiP;
-		loP = loOf.getPrice();
-		hiP = hiOf.getPrice();
+	private double limitingWelfareParamBetween(double loP, double loQ, double hiP, double hiQ) {
 
 		assert (loQ <= hiQ);
 
@@ -181,15 +523,15 @@ public class Consumers extends DefaultContext<Consumer> {
 
 		if (loP >= hiP)
 			// no consumer would choose lower offer
-			return RecessionsHandler.getWelfareParamPerceivedByFirms(minRawWP);
+			return market.recessionsHandler.getWelfareParamPerceivedByFirms(minRawWP);
 
 		else if (loQ == hiQ) {
 			// as loP < hiP, no consumer would choose higher offer
 			return Double.POSITIVE_INFINITY;
 
 		} else {
-			double rawWP = FastMath.max(minRawWP, UtilityFunction.calculateRawLimit(loP, loQ, hiP, hiQ));
-			return RecessionsHandler.getWelfareParamPerceivedByFirms(rawWP);
+			double rawWP = FastMath.max(minRawWP, utility.calculateRawLimit(loP, loQ, hiP, hiQ));
+			return market.recessionsHandler.getWelfareParamPerceivedByFirms(rawWP);
 		}
 
 	}
@@ -197,18 +539,18 @@ public class Consumers extends DefaultContext<Consumer> {
 	public double getMaxPriceForPoorestConsumer(double perceivedQ) {
 
 		double rawPoorestWP = getMinRawWelfareParam();
-		double poorestWelfareParam = RecessionsHandler.getWelfareParamPerceivedByFirms(rawPoorestWP);
+		double poorestWelfareParam = market.recessionsHandler.getWelfareParamPerceivedByFirms(rawPoorestWP);
 
-		return UtilityFunction.getMaxPriceForWelfareParam(perceivedQ, poorestWelfareParam);
+		return utility.getMaxPriceForWelfareParam(perceivedQ, poorestWelfareParam);
 
 	}
 
 	public double getMaxPriceForRichestConsumer(Firm f, double perceivedQ) {
 
 		double rawRichestWP = getRawMaxWelfareParamForRichestConsumer(f);
-		double richestWelfareParam = RecessionsHandler.getWelfareParamPerceivedByFirms(rawRichestWP);
+		double richestWelfareParam = market.recessionsHandler.getWelfareParamPerceivedByFirms(rawRichestWP);
 
-		return UtilityFunction.getMaxPriceForWelfareParam(perceivedQ, richestWelfareParam);
+		return utility.getMaxPriceForWelfareParam(perceivedQ, richestWelfareParam);
 	}
 
 	/*
@@ -228,7 +570,7 @@ public class Consumers extends DefaultContext<Consumer> {
 
 	public double getMinPrice(double cost, double perceivedQ) {
 		// Should be higher than cost
-		double costPlus = cost + Offer.getMinDeltaPrice();
+		double costPlus = cost + market.offerParams.getMinDeltaPrice();
 
 		// Shouldn't be lower than the price needed to catch poorest consumer
 		double pricePoorest = getMaxPriceForPoorestConsumer(perceivedQ);
@@ -241,7 +583,7 @@ public class Consumers extends DefaultContext<Consumer> {
 	}
 
 	public double getMinQuality() {
-		return Offer.getMinDeltaQuality();
+		return market.offerParams.getMinDeltaQuality();
 	}
 
 }
\ No newline at end of file
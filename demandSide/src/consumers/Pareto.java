@@ -4,9 +4,7 @@ import org.apache.commons.math3.util.FastMath;
 
 import cern.jet.random.AbstractContinousDistribution;
 import cern.jet.random.Exponential;
-import cern.jet.random.engine.MersenneTwister;
 import cern.jet.random.engine.RandomEngine;
-import demandSide.Market;
 
 public class Pareto extends AbstractContinousDistribution {
 
@@ -14,16 +12,15 @@ public class Pareto extends AbstractContinousDistribution {
 	private Exponential implicitDistrib;
 	private double minimum;
 
-	Pareto(double lambda, double minimum) {
+	Pareto(double lambda, double minimum, RandomEngine engine) {
 		this.minimum = minimum;
 //		implicitDistrib = RandomHelper.createExponential(lambda);
 		
-		RandomEngine engine = new MersenneTwister(Market.seed);
 		implicitDistrib = new Exponential(lambda, engine);
 	}
 
-	public static Pareto getPareto(double lambda, double minimum) {
-		return new Pareto(lambda, minimum);
+	public static Pareto getPareto(double lambda, double minimum, RandomEngine engine) {
+		return new Pareto(lambda, minimum, engine);
 	}
 
 	public double nextDouble() {
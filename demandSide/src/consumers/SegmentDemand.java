@@ -0,0 +1,236 @@
+package consumers;
+
+import org.apache.commons.math3.util.FastMath;
+
+import demandSide.FastPow;
+import demandSide.RecessionsHandler;
+import firms.Offer;
+
+/*
+ * Expected demand of an offer between two neighbor offers, as a function of its
+ * price
+ * 
+ * Values are the ones of Consumers.getExpectedQuantity. Derivatives depend on
+ * the Pareto distribution of the welfare param and the power utility function:
+ * consumers above welfare param x are mktSize * (minWP / x)^lambda, and the
+ * limits with the neighbors are linear in price. Demand is smooth between the
+ * prices returned by getBreakpoints
+ *
+ * Each solver keeps one and sets it for every segment, see
+ * Consumers.getSegmentDemand. The consumers above each limit are kept for the
+ * last price, as the solver asks for the value and derivatives at the same one
+ */
+public class SegmentDemand {
+
+	private double mktSize, minRawWP, lambda;
+	private RecessionsHandler recessions;
+
+	private double perceivedQ, powQ;
+
+	// Missing neighbors are null
+	private Offer loOf, hiOf;
+	private double loPowQ, hiPowQ;
+
+	// Consumers above each limit at price atP, with the limit and its slope.
+	// Zero stands for a limit that no consumer passes
+	private double atP = Double.NaN;
+	private boolean loZero, hiZero;
+	private double loN, loRawWP, loSlope;
+	private double hiN, hiRawWP, hiSlope;
+
+	SegmentDemand set(Consumers consumers, double perceivedQ, Offer loOf, Offer hiOf) {
+
+		UtilityFunction utility = consumers.getUtilityFunction();
+
+		mktSize = consumers.getMarketSize();
+		minRawWP = consumers.getMinRawWelfareParam();
+		lambda = consumers.getLambda();
+		recessions = consumers.getRecessionsHandler();
+
+		this.perceivedQ = perceivedQ;
+		powQ = utility.powQuality(perceivedQ);
+
+		this.loOf = loOf;
+		this.hiOf = hiOf;
+		loPowQ = (loOf == null) ? 0.0 : utility.powQuality(loOf.getQuality());
+		hiPowQ = (hiOf == null) ? 0.0 : utility.powQuality(hiOf.getQuality());
+
+		atP = Double.NaN;
+
+		return this;
+
+	}
+
+	public double value(double p) {
+		at(p);
+		return FastMath.max(0.0, above(loZero, loN, loRawWP, loSlope, 0) - above(hiZero, hiN, hiRawWP, hiSlope, 0));
+	}
+
+	public double derivative(double p) {
+		return (value(p) > 0.0)
+				? above(loZero, loN, loRawWP, loSlope, 1) - above(hiZero, hiN, hiRawWP, hiSlope, 1)
+				: 0.0;
+	}
+
+	public double secondDerivative(double p) {
+		return (value(p) > 0.0)
+				? above(loZero, loN, loRawWP, loSlope, 2) - above(hiZero, hiN, hiRawWP, hiSlope, 2)
+				: 0.0;
+	}
+
+	/*
+	 * Sets the consumers above both limits at price p
+	 */
+	private void at(double p) {
+
+		if (p == atP)
+			return;
+
+		atP = p;
+		aboveLo(p);
+		aboveHi(p);
+
+	}
+
+	/*
+	 * Prices where a limit reaches the minimum welfare param or a neighbor's
+	 * price. Returns how many were written in into
+	 */
+	public int getBreakpoints(double[] into) {
+
+		int n = 0;
+
+		if (loOf == null)
+			into[n++] = minRawWP * powQ;
+		else if (loOf.getQuality() < perceivedQ) {
+			into[n++] = loOf.getPrice();
+			into[n++] = loOf.getPrice() + minRawWP * (powQ - loPowQ);
+		} else
+			into[n++] = loOf.getPrice();
+
+		if (hiOf != null) {
+			if (perceivedQ < hiOf.getQuality())
+				into[n++] = hiOf.getPrice() - minRawWP * (hiPowQ - powQ);
+			into[n++] = hiOf.getPrice();
+		}
+
+		return n;
+
+	}
+
+	/*
+	 * Consumers above the limit with the lower offer
+	 */
+	private void aboveLo(double p) {
+
+		double rawWP, slope;
+
+		if (loOf == null) {
+			rawWP = p / powQ;
+			slope = 1.0 / powQ;
+
+		} else if (loOf.getPrice() >= p) {
+			// no consumer would choose lower offer
+			rawWP = minRawWP;
+			slope = 0.0;
+
+		} else if (loOf.getQuality() == perceivedQ) {
+			// as loP < p, no consumer would choose this offer
+			loZero = true;
+			return;
+
+		} else {
+			rawWP = (p - loOf.getPrice()) / (powQ - loPowQ);
+			slope = 1.0 / (powQ - loPowQ);
+		}
+
+		if (rawWP <= minRawWP) {
+			rawWP = minRawWP;
+			slope = 0.0;
+		}
+
+		loZero = false;
+		loN = above(rawWP);
+		loRawWP = rawWP;
+		loSlope = slope;
+
+	}
+
+	/*
+	 * Consumers above the limit with the higher offer
+	 */
+	private void aboveHi(double p) {
+
+		double rawWP, slope;
+
+		if (hiOf == null) {
+			// If there is no higher Offer there is no limit
+			hiZero = true;
+			return;
+		}
+
+		else if (p >= hiOf.getPrice()) {
+			// no consumer would choose this offer
+			rawWP = minRawWP;
+			slope = 0.0;
+
+		} else if (perceivedQ == hiOf.getQuality()) {
+			// as p < hiP, no consumer would choose higher offer
+			hiZero = true;
+			return;
+
+		} else {
+			rawWP = (hiOf.getPrice() - p) / (hiPowQ - powQ);
+			slope = -1.0 / (hiPowQ - powQ);
+		}
+
+		if (rawWP <= minRawWP) {
+			rawWP = minRawWP;
+			slope = 0.0;
+		}
+
+		hiZero = false;
+		hiN = above(rawWP);
+		hiRawWP = rawWP;
+		hiSlope = slope;
+
+	}
+
+	/*
+	 * Consumers above a limit, with limit = rawWP / (1 - recession)
+	 */
+	private double above(double rawWP) {
+
+		double limit = recessions.getWelfareParamPerceivedByFirms(rawWP);
+
+		if (limit <= minRawWP)
+			return mktSize;
+		else
+			return mktSize * FastPow.pow(minRawWP / limit, lambda);
+
+	}
+
+	/*
+	 * Consumers above a limit, or its derivative of the given order, being n
+	 * above it and rawWP linear in price with the given slope
+	 * 
+	 * With N = mktSize * (minWP / limit)^lambda, dN/dp = -lambda * N * slope /
+	 * rawWP and d2N/dp2 = lambda * (lambda + 1) * N * (slope / rawWP)^2
+	 */
+	private double above(boolean zero, double n, double rawWP, double slope, int order) {
+
+		if (zero)
+			return 0.0;
+
+		switch (order) {
+		case 0:
+			return n;
+		case 1:
+			return -lambda * n * slope / rawWP;
+		default:
+			return lambda * (lambda + 1) * n * (slope / rawWP) * (slope / rawWP);
+		}
+
+	}
+
+}
@@ -0,0 +1,129 @@
+package consumers;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+import firms.Firm;
+
+/*
+ * Upper envelope of the utility lines of all firms in the market
+ *
+ * As utility is separable, w * pow(q * d) - p = (w * pow(d)) * pow(q) - p, each
+ * firm is a line in x = w * pow(d), with slope pow(q) and intercept -p. The
+ * firm a consumer prefers among all firms is the one on top of the envelope at
+ * its x
+ *
+ * A consumer that has tried a firm evaluates it at x = w, while one that has
+ * not tried it evaluates it at x = w * pow(qualityDiscount)
+ *
+ * The envelope is built once per tick, and each query is a binary search
+ */
+public class UtilityEnvelope {
+
+	private static final Comparator<Firm> BY_SLOPE = Comparator.comparingDouble(Firm::getQuality)
+			.thenComparingDouble(Firm::getPrice);
+
+	// Firms sorted by slope, reused between ticks
+	private Firm[] sorted = new Firm[0];
+
+	private Firm[] lines = new Firm[0];
+	private double[] slope = new double[0];
+	private double[] price = new double[0];
+
+	// Line i is on top of the envelope for x >= from[i]
+	private double[] from = new double[0];
+	private int size = 0;
+
+	// Amount of firms considered, including the ones below the envelope
+	private int firmsCount = 0;
+
+	public void build(Collection<Firm> firms, UtilityFunction utility) {
+
+		int n = firms.size();
+
+		ensureCapacity(n);
+
+		int k = 0;
+		for (Firm f : firms)
+			sorted[k++] = f;
+
+		// As pow is increasing, sorting by quality is sorting by slope
+		// When slopes are equal the cheapest firm goes first
+		Arrays.sort(sorted, 0, n, BY_SLOPE);
+
+		size = 0;
+		firmsCount = n;
+
+		for (k = 0; k < n; k++) {
+			double s = utility.powQuality(sorted[k].getQuality());
+			double p = sorted[k].getPrice();
+
+			// With equal slopes only the cheapest one could be on top
+			if ((size > 0) && (slope[size - 1] == s))
+				continue;
+
+			// Take out the lines the new one covers
+			double x = Double.NEGATIVE_INFINITY;
+			while (size > 0) {
+				x = intersection(slope[size - 1], price[size - 1], s, p);
+				if (x <= from[size - 1])
+					size--;
+				else
+					break;
+			}
+
+			lines[size] = sorted[k];
+			slope[size] = s;
+			price[size] = p;
+			from[size] = (size == 0) ? Double.NEGATIVE_INFINITY : x;
+			size++;
+		}
+
+	}
+
+	/*
+	 * Returns the firm on top of the envelope at x, or null if there are no firms
+	 */
+	public Firm best(double x) {
+
+		if (size == 0)
+			return null;
+
+		// Last line that starts at or before x
+		int lo = 0, hi = size - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (from[mid] <= x)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+
+		return lines[lo];
+
+	}
+
+	public int getFirmsCount() {
+		return firmsCount;
+	}
+
+	/*
+	 * x where both lines give the same utility: s1 * x - p1 = s2 * x - p2
+	 */
+	private static double intersection(double s1, double p1, double s2, double p2) {
+		return (p2 - p1) / (s2 - s1);
+	}
+
+	private void ensureCapacity(int n) {
+		if (lines.length >= n)
+			return;
+
+		sorted = new Firm[n];
+		lines = new Firm[n];
+		slope = new double[n];
+		price = new double[n];
+		from = new double[n];
+	}
+
+}
@@ -1,49 +1,58 @@
 package consumers;
 
-import static repast.simphony.essentials.RepastEssentials.GetParameter;
-
-import java.util.Optional;
-
 import org.apache.commons.math3.util.FastMath;
 
+import demandSide.ModelParams;
 import demandSide.RecessionsHandler;
+import firms.CompetitorOffers;
 import firms.Firm;
 import firms.Offer;
 
 public class UtilityFunction {
 
-	public static double realUtility(double welfareParam, double price, double quality) {
+	private final double utilityQualityExponent;
+	private final double minRawWelfareParam;
+	private final RecessionsHandler recessions;
+
+	public UtilityFunction(ModelParams params, RecessionsHandler recessions) {
+		this.recessions = recessions;
+		utilityQualityExponent = params.utilityQualityExponent;
+		minRawWelfareParam = params.minWelfareParam;
+	}
+
+	public double realUtility(double welfareParam, double price, double quality) {
 		return welfareParam * powQuality(quality) - price;
 	}
 	
-	private static double powQuality(double quality) {
-
-		double utilityQualityExponent = (double) GetParameter("utilityQualityExponent");
-		
+	public double powQuality(double quality) {
 		return Math.pow(quality, utilityQualityExponent);
 	}
 
 	/*
 	 * Functions used by Firms
+	 * 
+	 * Missing neighbors are null
 	 */
-	public static double getMaxPriceToEnter(Firm firm, double perceivedQ, Optional<Firm> loF, Optional<Firm> hiF) {
+	public double getMaxPriceToEnter(Firm firm, double perceivedQ, Firm loF, Firm hiF) {
 		
 		Consumers consumers = firm.market.consumers;
+		CompetitorOffers offers = firm.getCompetitorOffers();
 		
 		double loP, loQ, hiP, hiQ;
-		Optional<Offer> hiOf, loOf;
 
-		if (hiF.isEmpty())
+		if (hiF == null)
 			return consumers.getMaxPriceForRichestConsumer(firm, perceivedQ);
 
-		// note that null will never be assigned because hiF is present
-		hiOf = hiF.map(f -> firm.getCompetitorPerceivedOffer(f));
-		hiP = hiOf.map(Offer::getPrice).orElse(null);
-		hiQ = hiOf.map(Offer::getQuality).orElse(null);
+		hiP = offers.getPrice(hiF);
+		hiQ = offers.getQuality(hiF);
 
-		loOf = loF.map(f->firm.getCompetitorPerceivedOffer(f));
-		loP = loOf.map(Offer::getPrice).orElse(0.);
-		loQ = loOf.map(Offer::getQuality).orElse(0.);
+		if (loF != null) {
+			loP = offers.getPrice(loF);
+			loQ = offers.getQuality(loF);
+		} else {
+			loP = 0.;
+			loQ = 0.;
+		}
 
 		if (hiQ <= loQ)
 			return 0.0;
@@ -69,7 +78,7 @@ public class UtilityFunction {
 	/*
 	 * As Welfare param > p/powQ then p < welfare param * powQ
 	 */
-	static double getMaxPriceForWelfareParam(double perceivedQ, double welfareParam) {
+	double getMaxPriceForWelfareParam(double perceivedQ, double welfareParam) {
 
 		return welfareParam * powQuality(perceivedQ);
 
@@ -78,7 +87,7 @@ public class UtilityFunction {
 	/*
 	 * (hiP - loP) / (powHiQ - powLoQ)
 	 */
-	public static double calculateRawLimit(double loP, double loQ, double hiP, double hiQ) {
+	public double calculateRawLimit(double loP, double loQ, double hiP, double hiQ) {
 
 		assert ((loQ <hiQ) && (loP < hiP));
 
@@ -89,7 +98,7 @@ public class UtilityFunction {
 
 		double rawWP = (hiPD - loPD) / (powHiQ - powLoQ);
 
-		return FastMath.max(rawWP, Consumers.getMinRawWelfareParam()); 
+		return FastMath.max(rawWP, minRawWelfareParam);
 
 	}
 
@@ -99,37 +108,40 @@ public class UtilityFunction {
 	 * Firm f would be expelled if the limit between the new offer and f's lower
 	 * neighbor is less than current limit between f and f's lower neighbor
 	 * 
-	 * Returns empty if any price expels f
+	 * Returns POSITIVE_INFINITY if any price expels f
+	 * 
+	 * fLowNeighbor is null when f has no lower neighbor
 	 * 
 	 */
-	public static Optional<Double> priceToExpelFromAbove(double perceivedQ, Firm owner, Firm f, Optional<Firm> fLowNeighbor) {
+	public double priceToExpelFromAbove(double perceivedQ, Firm owner, Firm f, Firm fLowNeighbor) {
 
 		assert f != null;
 		
 		Consumers consumers = f.market.consumers;
+		CompetitorOffers offers = owner.getCompetitorOffers();
 
-		Optional<Offer> fLowNeighborOffer = fLowNeighbor.map(firm -> owner.getCompetitorPerceivedOffer(firm));
-		Offer fOffer = owner.getCompetitorPerceivedOffer(f);		
-
-		double fLowLimit = consumers.limitingWelfareParamPerceivedByFirms(fLowNeighborOffer, Optional.of(fOffer));
+		double fLowLimit = consumers.limitingWelfareParamPerceivedBy(owner, fLowNeighbor, f);
 
 		if (fLowLimit == Double.POSITIVE_INFINITY)
 			// Any price expels f
-			return Optional.empty();
-		else {
-			// This depends on Consumers utility functional form
+			return Double.POSITIVE_INFINITY;
+		else
+			return priceToExpelFromAbove(powQuality(perceivedQ), offers.getPrice(f), powQuality(offers.getQuality(f)),
+					fLowLimit);
 
-			// Calculation is done on double because bigdecimal does not support pow to
-			// double
-			double powPercQ = powQuality(fOffer.getQuality());
-			double powQ = powQuality(perceivedQ);
-			double price = fOffer.getPrice();
+	}
 
-			// price + loLimit * (powQ - powPercQ)
-			double retval = price + fLowLimit * (powQ - powPercQ);
-			return Optional.of(retval);
+	/*
+	 * Same as above, given the utilities of quality and f's price and limit
+	 * with its lower neighbor, which is not infinite
+	 */
+	public double priceToExpelFromAbove(double powQ, double price, double powPercQ, double fLowLimit) {
+
+		// This depends on Consumers utility functional form
+
+		// price + loLimit * (powQ - powPercQ)
+		return price + fLowLimit * (powQ - powPercQ);
 
-		}
 	}
 
 	/*
@@ -140,47 +152,56 @@ public class UtilityFunction {
 	 * 
 	 * Returns Zero is all prices expel f
 	 * 
+	 * fHighNeighbor is null when f has no higher neighbor
+	 * 
 	 */
-	public static double priceToExpelFromBelow(double perceivedQ, Firm owner, Firm f, Optional<Firm> fHighNeighbor) {
+	public double priceToExpelFromBelow(double perceivedQ, Firm owner, Firm f, Firm fHighNeighbor) {
 
 		Consumers consumers = owner.market.consumers;
-		
-		Optional<Offer> fHighNeighborOffer = fHighNeighbor.map(firm -> owner.getCompetitorPerceivedOffer(firm));
-		Offer fOffer = owner.getCompetitorPerceivedOffer(f);
-				
-		double fHighLimit = consumers.limitingWelfareParamPerceivedByFirms(Optional.of(fOffer), fHighNeighborOffer);
+		CompetitorOffers offers = owner.getCompetitorOffers();
+
+		double fHighLimit = consumers.limitingWelfareParamPerceivedBy(owner, f, fHighNeighbor);
 
 		if (fHighLimit == Double.POSITIVE_INFINITY)
 			// No price expels f
 			return 0.0;
-		else {
-			// This depends on Consumers utility functional form
+		else
+			return priceToExpelFromBelow(powQuality(perceivedQ), offers.getPrice(f), powQuality(offers.getQuality(f)),
+					fHighLimit);
 
-			// Calculation is done on double because bigdecimal does not support pow to
-			// double
-			double powPercQ = powQuality(fOffer.getQuality());
-			double powQ = powQuality(perceivedQ);
-			double price = fOffer.getPrice();
+	}
 
-			// price - hiLimit * (powPercQ - powQ)
-			return price - fHighLimit * (powPercQ - powQ);
+	/*
+	 * Same as above, given the utilities of quality and f's price and limit
+	 * with its higher neighbor, which is not infinite
+	 */
+	public double priceToExpelFromBelow(double powQ, double price, double powPercQ, double fHighLimit) {
 
-		}
+		// This depends on Consumers utility functional form
+
+		// price - hiLimit * (powPercQ - powQ)
+		return price - fHighLimit * (powPercQ - powQ);
 
 	}
 
 	/*
 	 * This depends on consumers utility functional form
 	 */
-	public static double getMinWelfareParamAceptingOfferPerceivedByFirms(Offer of) {
+	public double getMinWelfareParamAceptingOfferPerceivedByFirms(Offer of) {
 
 		assert of != null;
 
-		double rawWP = of.getPrice() / powQuality(of.getQuality());
+		return getMinWelfareParamAceptingOfferPerceivedByFirms(of.getPrice(), of.getQuality());
+
+	}
+
+	double getMinWelfareParamAceptingOfferPerceivedByFirms(double price, double quality) {
+
+		double rawWP = price / powQuality(quality);
 
-		rawWP = FastMath.max(rawWP, Consumers.getMinRawWelfareParam());
+		rawWP = FastMath.max(rawWP, minRawWelfareParam);
 		
-		return RecessionsHandler.getWelfareParamPerceivedByFirms(rawWP);
+		return recessions.getWelfareParamPerceivedByFirms(rawWP);
 
 	}
 
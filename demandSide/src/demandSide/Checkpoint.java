@@ -0,0 +1,242 @@
+package demandSide;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Market state in a file, to resume a run or branch it later
+ *
+ * Layout, big endian:
+ * 
+ * magic, version, tick, parameters length, state length, state CRC32,
+ * parameters, state
+ * 
+ * Parameters are written by name, and the state is Market.writeState
+ * deflated. Bit sets of consumers and the firms table are mostly zeros or
+ * repeated words, thus they take a fraction of their size in memory. A file
+ * can only be read by the version that wrote it
+ */
+public class Checkpoint {
+
+	private static final int MAGIC = 0x44534D4B;
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 8;
+
+	/*
+	 * File of a market at its current tick in checkpointDirectory
+	 * 
+	 * Runs with the same seed, as branches of a sweep, are told apart by a
+	 * hash of all their parameters
+	 */
+	public static Path getPath(Market market) throws IOException {
+
+		CRC32 paramsHash = new CRC32();
+		paramsHash.update(writeParams(market.params));
+
+		String name = String.format("market_%d_%08x_%d.ckpt", market.seed, paramsHash.getValue(),
+				(long) market.getTick());
+
+		return Paths.get(market.params.checkpointDirectory, name);
+
+	}
+
+	/*
+	 * Writes the market on a temporary file that replaces path once complete
+	 */
+	public static void write(Market market, Path path) throws IOException {
+
+		byte[] params = writeParams(market.params);
+
+		ByteArrayOutputStream stateBytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new DeflaterOutputStream(stateBytes, deflater, 1 << 16)))) {
+			market.writeState(out);
+		} finally {
+			deflater.end();
+		}
+		byte[] state = stateBytes.toByteArray();
+
+		CRC32 crc = new CRC32();
+		crc.update(state);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC).putInt(VERSION).putDouble(market.getTick());
+		header.putInt(params.length).putInt(state.length).putLong(crc.getValue());
+		header.flip();
+
+		Path dir = path.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path tmp = Files.createTempFile(dir, "market", ".tmp");
+
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+			ByteBuffer[] buffers = { header, ByteBuffer.wrap(params), ByteBuffer.wrap(state) };
+			long total = HEADER_BYTES + params.length + state.length;
+			long written = 0;
+			while (written < total)
+				written += channel.write(buffers);
+		}
+
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+	/*
+	 * Restores the market with the parameters it was written with
+	 */
+	public static Market read(Path path) throws IOException {
+		return read(path, null);
+	}
+
+	/*
+	 * Restores the market to continue with params, or with the written ones if
+	 * params is null
+	 */
+	public static Market read(Path path, ModelParams params) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			byte[][] parts = readParts(path, file);
+			if (params == null)
+				params = readParams(parts[0]);
+
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new InflaterInputStream(new ByteArrayInputStream(parts[1])), 1 << 16))) {
+				return Market.restore(params, in);
+			}
+		}
+
+	}
+
+	/*
+	 * Parameters the market was written with
+	 */
+	public static ModelParams readParams(Path path) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return readParams(readParts(path, file)[0]);
+		}
+
+	}
+
+	/*
+	 * Parameters and state bytes, after checking the header
+	 */
+	private static byte[][] readParts(Path path, ByteBuffer file) throws IOException {
+
+		if ((file.remaining() < HEADER_BYTES) || (file.getInt() != MAGIC))
+			throw new IOException(path + " is not a market checkpoint");
+
+		int version = file.getInt();
+		if (version != VERSION)
+			throw new IOException(path + " has version " + version + ", only version " + VERSION + " can be read");
+
+		file.getDouble();
+		byte[] params = new byte[file.getInt()];
+		byte[] state = new byte[file.getInt()];
+		long crc = file.getLong();
+
+		if (file.remaining() != params.length + state.length)
+			throw new IOException(path + " is truncated");
+
+		file.get(params);
+		file.get(state);
+
+		CRC32 check = new CRC32();
+		check.update(state);
+		if (check.getValue() != crc)
+			throw new IOException(path + " is corrupted");
+
+		return new byte[][] { params, state };
+
+	}
+
+	private static byte[] writeParams(ModelParams params) throws IOException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(params.getValues().size());
+			for (Map.Entry<String, Object> e : params.getValues().entrySet()) {
+				out.writeUTF(e.getKey());
+				writeValue(out, e.getValue());
+			}
+		}
+
+		return bytes.toByteArray();
+
+	}
+
+	private static ModelParams readParams(byte[] bytes) throws IOException {
+
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+			int n = in.readInt();
+			for (int k = 0; k < n; k++)
+				values.put(in.readUTF(), readValue(in));
+		}
+
+		return ModelParams.from(values::get);
+
+	}
+
+	private static void writeValue(DataOutput out, Object value) throws IOException {
+
+		if (value instanceof Integer) {
+			out.writeByte('I');
+			out.writeInt((Integer) value);
+		} else if (value instanceof Double) {
+			out.writeByte('D');
+			out.writeDouble((Double) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte('Z');
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof String) {
+			out.writeByte('S');
+			out.writeUTF((String) value);
+		} else
+			throw new IOException("Parameter of unknown type " + value);
+
+	}
+
+	private static Object readValue(DataInput in) throws IOException {
+
+		byte type = in.readByte();
+		switch (type) {
+		case 'I':
+			return in.readInt();
+		case 'D':
+			return in.readDouble();
+		case 'Z':
+			return in.readBoolean();
+		case 'S':
+			return in.readUTF();
+		default:
+			throw new IOException("Parameter of unknown type " + (char) type);
+		}
+
+	}
+
+}
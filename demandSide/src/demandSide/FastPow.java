@@ -0,0 +1,309 @@
+package demandSide;
+
+import java.lang.reflect.Field;
+
+import org.apache.commons.math3.util.FastMath;
+
+/*
+ * FastMath.pow of commons-math 3.6.1, without allocating
+ *
+ * FastMath.pow allocates a buffer for the logarithm of the base, and the
+ * splits of the base on integral exponents. It is called many times on every
+ * quality option, thus it was most of what firms allocate while deciding.
+ * Here the same operations are done on local variables, with the tables of
+ * FastMath, so values are the same bit by bit
+ *
+ * Special values, and the cases FastMath handles apart, are left to
+ * FastMath.pow, as they are rare. So is every case if the tables cannot be
+ * read, or if the result of a sample is not the one of FastMath.pow
+ */
+public final class FastPow {
+
+	private static final double HEX_40000000 = 1073741824.0;
+	private static final double TWO_POWER_52 = 4503599627370496.0;
+	private static final double LN_2_A = 0.693147063255310059;
+	private static final double LN_2_B = 1.17304635250823482e-7;
+	private static final long MASK_DOUBLE_EXPONENT = 0x7ff0000000000000L;
+	private static final long MASK_DOUBLE_MANTISSA = 0x000fffffffffffffL;
+	private static final long IMPLICIT_HIGH_BIT = 0x0010000000000000L;
+	private static final int EXP_INT_TABLE_MAX_INDEX = 750;
+
+	private static double[][] lnMant, lnHiPrecCoef;
+	private static double[] expIntA, expIntB, expFracA, expFracB;
+
+	private static final boolean ENABLED = readTables() && checkSamples();
+
+	private FastPow() {
+	}
+
+	public static double pow(double x, double y) {
+		return ENABLED ? compute(x, y) : FastMath.pow(x, y);
+	}
+
+	private static double compute(double x, double y) {
+
+		if (!(x > 0.0) || (x == Double.POSITIVE_INFINITY) || !(y != 0.0)
+				|| (y == Double.POSITIVE_INFINITY) || (y == Double.NEGATIVE_INFINITY))
+			return FastMath.pow(x, y);
+
+		long yBits = Double.doubleToRawLongBits(y);
+		int yRawExp = (int) ((yBits & MASK_DOUBLE_EXPONENT) >> 52);
+		long yRawMantissa = yBits & MASK_DOUBLE_MANTISSA;
+		long xBits = Double.doubleToRawLongBits(x);
+		int xRawExp = (int) ((xBits & MASK_DOUBLE_EXPONENT) >> 52);
+
+		// Large or integral exponents over 2^52, and subnormal bases
+		if ((yRawExp > 1085) || (yRawExp >= 1075) || (xRawExp == 0))
+			return FastMath.pow(x, y);
+
+		if (yRawExp >= 1023) {
+			long yFullMantissa = IMPLICIT_HIGH_BIT | yRawMantissa;
+			long integralMask = (-1L) << (1075 - yRawExp);
+			if ((yFullMantissa & integralMask) == yFullMantissa) {
+				long l = yFullMantissa >> (1075 - yRawExp);
+				return (y < 0) ? FastMath.pow(x, -l) : pow(x, l);
+			}
+		}
+
+		// Split y into ya and yb such that y = ya+yb
+		double tmp = y * HEX_40000000;
+		double ya = (y + tmp) - tmp;
+		double yb = y - ya;
+
+		// ln(x) = lna + lnb
+		long bits = xBits;
+		int exp = (int) (bits >> 52) - 1023;
+
+		double[] lnm = lnMant[(int) ((bits & 0x000ffc0000000000L) >> 42)];
+
+		double epsilon = (bits & 0x3ffffffffffL) / (TWO_POWER_52 + (bits & 0x000ffc0000000000L));
+
+		tmp = epsilon * HEX_40000000;
+		double aa = epsilon + tmp - tmp;
+		double ab = epsilon - aa;
+		double xa = aa;
+		double xb = ab;
+
+		double numer = bits & 0x3ffffffffffL;
+		double denom = TWO_POWER_52 + (bits & 0x000ffc0000000000L);
+		aa = numer - xa * denom - xb * denom;
+		xb += aa / denom;
+
+		double[] lnCoefLast = lnHiPrecCoef[lnHiPrecCoef.length - 1];
+		double lya = lnCoefLast[0];
+		double lyb = lnCoefLast[1];
+
+		for (int i = lnHiPrecCoef.length - 2; i >= 0; i--) {
+			aa = lya * xa;
+			ab = lya * xb + lyb * xa + lyb * xb;
+			tmp = aa * HEX_40000000;
+			lya = aa + tmp - tmp;
+			lyb = aa - lya + ab;
+
+			double[] lnCoef = lnHiPrecCoef[i];
+			aa = lya + lnCoef[0];
+			ab = lyb + lnCoef[1];
+			tmp = aa * HEX_40000000;
+			lya = aa + tmp - tmp;
+			lyb = aa - lya + ab;
+		}
+
+		aa = lya * xa;
+		ab = lya * xb + lyb * xa + lyb * xb;
+
+		double lnza = aa + ab;
+		double lnzb = -(lnza - aa - ab);
+
+		double a = LN_2_A * exp;
+		double b = 0.0;
+		double c = a + lnm[0];
+		double d = -(c - a - lnm[0]);
+		a = c;
+		b += d;
+
+		c = a + lnza;
+		d = -(c - a - lnza);
+		a = c;
+		b += d;
+
+		c = a + LN_2_B * exp;
+		d = -(c - a - LN_2_B * exp);
+		a = c;
+		b += d;
+
+		c = a + lnm[1];
+		d = -(c - a - lnm[1]);
+		a = c;
+		b += d;
+
+		c = a + lnzb;
+		d = -(c - a - lnzb);
+		a = c;
+		b += d;
+
+		double lna = a;
+		double lnb = b;
+
+		// resplit lns
+		double tmp1 = lna * HEX_40000000;
+		double tmp2 = (lna + tmp1) - tmp1;
+		lnb += lna - tmp2;
+		lna = tmp2;
+
+		// y*ln(x) = (aa+ab)
+		aa = lna * ya;
+		ab = lna * yb + lnb * ya + lnb * yb;
+
+		lna = aa + ab;
+		lnb = -(lna - aa - ab);
+
+		double z = 1.0 / 120.0;
+		z = z * lnb + (1.0 / 24.0);
+		z = z * lnb + (1.0 / 6.0);
+		z = z * lnb + 0.5;
+		z = z * lnb + 1.0;
+		z *= lnb;
+
+		// Results that underflow or overflow
+		if ((lna <= -709.0) || (lna > 709.0))
+			return FastMath.pow(x, y);
+
+		return exp(lna, z);
+
+	}
+
+	/*
+	 * exp(x + extra) for -709 < x <= 709
+	 */
+	private static double exp(double x, double extra) {
+
+		int intVal = (int) x;
+		if (x < 0.0)
+			intVal--;
+
+		double intPartA = expIntA[EXP_INT_TABLE_MAX_INDEX + intVal];
+		double intPartB = expIntB[EXP_INT_TABLE_MAX_INDEX + intVal];
+
+		int intFrac = (int) ((x - intVal) * 1024.0);
+		double fracPartA = expFracA[intFrac];
+		double fracPartB = expFracB[intFrac];
+
+		double epsilon = x - (intVal + intFrac / 1024.0);
+
+		double z = 0.04168701738764507;
+		z = z * epsilon + 0.1666666505023083;
+		z = z * epsilon + 0.5000000000042687;
+		z = z * epsilon + 1.0;
+		z = z * epsilon + -3.940510424527919E-20;
+
+		double tempA = intPartA * fracPartA;
+		double tempB = intPartA * fracPartB + intPartB * fracPartA + intPartB * fracPartB;
+
+		double tempC = tempB + tempA;
+
+		if (tempC == Double.POSITIVE_INFINITY)
+			return Double.POSITIVE_INFINITY;
+
+		if (extra != 0.0)
+			return tempC * extra * z + tempC * extra + tempC * z + tempB + tempA;
+		else
+			return tempC * z + tempB + tempA;
+
+	}
+
+	/*
+	 * x^e for e > 0, with the Veltkamp products of FastMath's Split
+	 */
+	private static double pow(double x, long e) {
+
+		// result = 1 and d2p = x, each one split in full, high and low parts
+		double rFull = 1.0, rHigh = 1.0, rLow = 0.0;
+		double dFull = x, dHigh = high(x), dLow = x - dHigh;
+
+		for (long p = e; p != 0; p >>>= 1) {
+
+			if ((p & 0x1) != 0) {
+				// result = result * d2p
+				double mFull = rFull * dFull;
+				double mHigh = high(mFull);
+				double mLow = mFull - mHigh;
+				double mError = rLow * dLow - (((mFull - rHigh * dHigh) - rLow * dHigh) - rHigh * dLow);
+				rHigh = mHigh;
+				rLow = mLow + mError;
+				rFull = full(rHigh, rLow);
+			}
+
+			// d2p = d2p * d2p
+			double mFull = dFull * dFull;
+			double mHigh = high(mFull);
+			double mLow = mFull - mHigh;
+			double mError = dLow * dLow - (((mFull - dHigh * dHigh) - dLow * dHigh) - dHigh * dLow);
+			dHigh = mHigh;
+			dLow = mLow + mError;
+			dFull = full(dHigh, dLow);
+
+		}
+
+		// Intermediate values out of range
+		if (Double.isNaN(rFull))
+			return FastMath.pow(x, e);
+
+		return rFull;
+
+	}
+
+	private static double high(double x) {
+		return Double.longBitsToDouble(Double.doubleToRawLongBits(x) & ((-1L) << 27));
+	}
+
+	private static double full(double high, double low) {
+		if (high == 0.0)
+			return (low == 0.0 && Double.doubleToRawLongBits(high) == Long.MIN_VALUE) ? -0.0 : low;
+		else
+			return high + low;
+	}
+
+	private static boolean readTables() {
+
+		try {
+			lnHiPrecCoef = (double[][]) read("", "LN_HI_PREC_COEF");
+			lnMant = (double[][]) read("$lnMant", "LN_MANT");
+			expIntA = (double[]) read("$ExpIntTable", "EXP_INT_TABLE_A");
+			expIntB = (double[]) read("$ExpIntTable", "EXP_INT_TABLE_B");
+			expFracA = (double[]) read("$ExpFracTable", "EXP_FRAC_TABLE_A");
+			expFracB = (double[]) read("$ExpFracTable", "EXP_FRAC_TABLE_B");
+			return true;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return false;
+		}
+
+	}
+
+	private static Object read(String nested, String name) throws ReflectiveOperationException {
+		Field f = Class.forName(FastMath.class.getName() + nested).getDeclaredField(name);
+		f.setAccessible(true);
+		return f.get(null);
+	}
+
+	/*
+	 * Compares with FastMath.pow on the exponents of the model and a spread of
+	 * bases and other exponents
+	 */
+	private static boolean checkSamples() {
+
+		double[] exponents = { 0.5, 2.0, 3.0, 1.2142857142857142, 2.5, 0.1, 7.0 };
+		SplitMixEngine engine = new SplitMixEngine(1L);
+
+		for (double y : exponents) {
+			for (int i = 0; i < 1000; i++) {
+				double x = engine.nextDouble() * FastMath.pow(10.0, (i % 9) - 4);
+				if (Double.doubleToRawLongBits(compute(x, y)) != Double.doubleToRawLongBits(FastMath.pow(x, y)))
+					return false;
+			}
+		}
+
+		return true;
+
+	}
+
+}
\ No newline at end of file
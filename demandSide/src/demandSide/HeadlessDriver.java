@@ -0,0 +1,100 @@
+package demandSide;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Runs one market without the Repast scheduler
+ *
+ * Phases are called directly by Market.step, in the same order they run under
+ * Repast, with loops where Repast has an action per agent. Parameters are the
+ * defaults of parameters.xml, which can be changed with name=value arguments:
+ * 
+ * HeadlessDriver [path/to/parameters.xml] [name=value ...]
+ * 
+ * With resume=path/to/checkpoint the run continues from a checkpoint, with the
+ * parameters it was written with and the ones given as arguments
+ * 
+ * With sweep=path/to/batch_params.xml the parameters are the ones of a run of
+ * the sweep, the first one or the one given by run=n, before those given as
+ * arguments. Thus a Repast batch run and a headless one can be made with the
+ * same parameters and seed, as with batch/speed_params.xml
+ * 
+ * At the end the ticks per second are printed, as Repast runs do, to compare
+ * both drivers
+ */
+public class HeadlessDriver {
+
+	private static final String DEFAULT_PARAMETERS = "demandSide.rs/parameters.xml";
+
+	public static void main(String[] args) throws IOException {
+
+		int first = 0;
+		File file = new File(DEFAULT_PARAMETERS);
+		if ((args.length > 0) && !args[0].contains("=")) {
+			file = new File(args[0]);
+			first = 1;
+		}
+
+		ParametersFile params = new ParametersFile(file);
+		Path resume = null;
+		File sweep = null;
+		int run = 1;
+		Map<String, String> given = new LinkedHashMap<String, String>();
+
+		for (int i = first; i < args.length; i++) {
+			String[] nameValue = args[i].split("=", 2);
+			if (nameValue[0].equals("resume"))
+				resume = Paths.get(nameValue[1]);
+			else if (nameValue[0].equals("sweep"))
+				sweep = new File(nameValue[1]);
+			else if (nameValue[0].equals("run"))
+				run = Integer.parseInt(nameValue[1]);
+			else
+				given.put(nameValue[0], nameValue[1]);
+		}
+
+		if (sweep != null)
+			for (Map.Entry<String, Object> e : new Sweep(sweep).getRuns().get(run - 1).entrySet())
+				params.set(e.getKey(), String.valueOf(e.getValue()));
+
+		for (Map.Entry<String, String> e : given.entrySet())
+			params.set(e.getKey(), e.getValue());
+
+		if (resume != null) {
+			ModelParams written = Checkpoint.readParams(resume);
+			for (String name : given.keySet())
+				written = written.with(name, params.get(name));
+
+			run(Checkpoint.read(resume, written));
+			return;
+		}
+
+		// As in Repast, without a seed the run is not repeatable
+		if (params.get("randomSeed") == null)
+			params.set("randomSeed", Integer.toString((int) System.currentTimeMillis()));
+
+		System.out.println("Seed: " + params.get("randomSeed"));
+
+		run(Market.create(params.getModelParams()));
+
+	}
+
+	private static void run(Market market) {
+
+		try {
+			while (!market.isFinished())
+				market.step();
+		} finally {
+			market.shutdown();
+		}
+
+		market.printSpeed();
+
+	}
+
+}
@@ -1,22 +1,39 @@
 package demandSide;
 
-import static repast.simphony.essentials.RepastEssentials.GetParameter;
+import firms.ConvergenceMonitor;
 import firms.Firm;
 import firms.Firms;
-import firms.Offer;
+import firms.OfferParams;
+import graphs.Scale;
 
-import java.io.PrintWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 
-import consumers.Consumer;
 import consumers.Consumers;
 import repast.simphony.context.Context;
 import repast.simphony.context.DefaultContext;
 import repast.simphony.dataLoader.ContextBuilder;
 import repast.simphony.engine.environment.RunEnvironment;
 import repast.simphony.engine.environment.RunState;
+import repast.simphony.engine.schedule.ISchedule;
+import repast.simphony.engine.schedule.ScheduleParameters;
 import repast.simphony.random.RandomHelper;
 
+/*
+ * A run of the model
+ *
+ * All the state of a run hangs from its market, thus several markets can run
+ * at the same time in one JVM, see Replications. Under Repast the schedule
+ * calls the phases of a tick by their ScheduledMethod annotations, in the order
+ * of RunPriority, between startTick and endTick. Consumers choose, and firms
+ * reset their demand and take their profits, one by one as agents of the
+ * schedule. Without Repast step calls the same phases in the same order, as
+ * loops over all consumers and firms
+ */
 public class Market extends DefaultContext<Object> implements ContextBuilder<Object> {
 
 	// Defining market components: consumers and firms
@@ -24,11 +41,29 @@ public class Market extends DefaultContext<Object> implements ContextBuilder<Obj
 	public Consumers consumers;
 	public Firms firms;
 
-	public static ArrayList<Firm> toBeKilled;
+	public ModelParams params;
+	public RandomStreams randomStreams;
+	public OfferParams offerParams;
+	public Scale scale;
 
-	public static int seed;
-	
-	public static PrintWriter out;
+	// Worker threads for the parallel phases of consumers and firms
+	public ForkJoinPool workers;
+
+	public ArrayList<Firm> toBeKilled;
+
+	public int seed;
+
+	private double tick;
+	private long firmIDCounter, consumerIDCounter;
+
+	// Run by the Repast schedule, which has to be told to end
+	private boolean scheduled = false;
+
+	// Wall time spent in ticks, and from the first tick to the end of the last
+	// one, to compare the Repast and headless drivers
+	private long stepNanos, firstStepStart, lastStepEnd, stepStart;
+	private double tickBefore;
+	private int stepsRun;
 
 	@Override
 	public Context<Object> build(Context<Object> context) {
@@ -36,38 +71,305 @@ public class Market extends DefaultContext<Object> implements ContextBuilder<Obj
 		if (RunEnvironment.getInstance().isBatch())
 			System.out.println("Run: " + RunState.getInstance().getRunInfo().getRunNumber());
 
-		// Reset seed
-		RandomHelper.setSeed((Integer) GetParameter("randomSeed"));
-		seed = (Integer) GetParameter("randomSeed");
-		
+		// Read parameters once for the whole run
+		ModelParams params = ModelParams.read();
+
+		// The schedule and its data sets cannot skip ticks
+		if (params.convergenceAction == ConvergenceMonitor.Action.FAST_FORWARD)
+			throw new IllegalArgumentException("FAST_FORWARD is only run without Repast, see HeadlessDriver");
+
+		// Repast's own distributions are not used by the model
+		RandomHelper.setSeed(params.randomSeed);
 
 		// Set end of run
-		RunEnvironment.getInstance().endAt((Double) GetParameter("stopAt"));
-
-		// Reset static variables
-		Consumer.resetCounter();
-		Firm.resetCounter();
-		Offer.readOffersParams();
-		
-		// Initialize ToBeKilled
+		RunEnvironment.getInstance().endAt(params.stopAt);
+
+		init(context, params);
+		consumers.createConsumers();
+
+		scheduled = true;
+
+		ISchedule schedule = RunEnvironment.getInstance().getCurrentSchedule();
+		schedule.schedule(ScheduleParameters.createRepeating(1, 1, RunPriority.START_TICK_PRIORITY), this, "startTick");
+		schedule.schedule(ScheduleParameters.createRepeating(1, 1, RunPriority.END_TICK_PRIORITY), this, "endTick");
+		schedule.schedule(ScheduleParameters.createAtEnd(ScheduleParameters.LAST_PRIORITY), this, "printSpeed");
+		schedule.schedule(ScheduleParameters.createAtEnd(ScheduleParameters.LAST_PRIORITY), this, "shutdown");
+
+		return context;
+
+	}
+
+	/*
+	 * Creates a market to be run without Repast, by calling step until it is
+	 * finished
+	 */
+	public static Market create(ModelParams params) {
+
+		Market market = new Market();
+		market.init(market, params);
+		market.consumers.createConsumers();
+
+		return market;
+
+	}
+
+	/*
+	 * Creates a market in the state written by writeState, to be run with
+	 * params. Parameters that size the market, as numberOfConsumers, should be
+	 * the same of the written one
+	 * 
+	 * A market written on the tick it converged, without the fast forward
+	 * params ask for, does it now. That is how Replications.runForked branches
+	 * a market that converged before its recessions
+	 */
+	public static Market restore(ModelParams params, DataInput in) throws IOException {
+
+		Market market = new Market();
+		market.init(market, params);
+		market.readState(in);
+
+		if (market.firms.hasJustConverged() && (params.convergenceAction == ConvergenceMonitor.Action.FAST_FORWARD)) {
+			double before = market.tick;
+			market.fastForward();
+			market.checkpointIfCrossed(before);
+		}
+
+		return market;
+
+	}
+
+	/*
+	 * A copy of this market at the current tick that continues with params,
+	 * see MarketSnapshot
+	 */
+	public Market fork(ModelParams params) {
+		return MarketSnapshot.take(this).restore(params);
+	}
+
+	private void init(Context<Object> context, ModelParams params) {
+
+		this.params = params;
+
+		seed = params.randomSeed;
+		randomStreams = new RandomStreams(seed);
+
+		offerParams = new OfferParams(params);
+		scale = new Scale(params);
+
 		toBeKilled = new ArrayList<Firm>();
 
+		tick = 0.0;
+		stepNanos = 0L;
+		firstStepStart = 0L;
+		lastStepEnd = 0L;
+		stepsRun = 0;
+		firmIDCounter = 1;
+		consumerIDCounter = 1;
+
 		context.setId("Market");
 
+		workers = new ForkJoinPool(params.getParallelism());
+
 		// Create RecessionsHandler Handler
-		recessionsHandler = new RecessionsHandler(context);
+		recessionsHandler = new RecessionsHandler(context, params);
 
 		// Create Consumers
 		consumers = new Consumers(this);
 		context.addSubContext(consumers);
-		consumers.createConsumers();
 
 		// Create firms
 		firms = new Firms(this);
 		context.addSubContext(firms);
 
-		return context;
+	}
+
+	/*
+	 * State of the run between ticks
+	 * 
+	 * Parameters are not written, and random streams are written as the states
+	 * of their engines. Firms of a run draw from their own streams, thus a
+	 * restored market draws what the original would have drawn
+	 */
+	public void writeState(DataOutput out) throws IOException {
+
+		out.writeDouble(tick);
+		out.writeLong(firmIDCounter);
+		out.writeLong(consumerIDCounter);
+
+		out.writeDouble(recessionsHandler.getRecesMagnitude());
+		scale.writeState(out);
+
+		consumers.writeState(out);
+		firms.writeState(out);
+
+	}
+
+	private void readState(DataInput in) throws IOException {
+
+		tick = in.readDouble();
+		long firmID = in.readLong();
+		long consumerID = in.readLong();
+
+		recessionsHandler.setRecesMagnitude(in.readDouble());
+		scale.readState(in);
+
+		consumers.readState(in);
+		firms.readState(in);
+
+		// Firms created while reading took IDs
+		firmIDCounter = firmID;
+		consumerIDCounter = consumerID;
+
+	}
+
+	/*
+	 * One tick of the model, without Repast
+	 */
+	public void step() {
+
+		startTick();
+
+		firms.makeOffers();
+		firms.addFirms();
+
+		firms.resetDemand();
+		consumers.chooseFirms();
+
+		firms.nextStep();
+		firms.wipeDeadFirms();
+		firms.updateStatistics();
+
+		endTick();
+
+	}
+
+	/*
+	 * First thing done in a tick, before the phases
+	 */
+	public void startTick() {
+
+		stepStart = System.nanoTime();
+		tickBefore = tick;
+
+		tick++;
+
+		recessionsHandler.update(tick);
+
+	}
+
+	/*
+	 * Last thing done in a tick, after the phases
+	 */
+	public void endTick() {
+
+		if (firms.hasJustConverged() && (params.convergenceAction == ConvergenceMonitor.Action.FAST_FORWARD))
+			fastForward();
+
+		if (stepsRun == 0)
+			firstStepStart = stepStart;
+		lastStepEnd = System.nanoTime();
+		stepNanos += lastStepEnd - stepStart;
+		stepsRun++;
+
+		checkpointIfCrossed(tickBefore);
+
+		// Stopped by convergence
+		if (scheduled && isFinished())
+			RunEnvironment.getInstance().endRun();
+
+	}
+
+	/*
+	 * Skips the settled ticks up to the next recession event, or to the end
+	 * of the run. Never under Repast, see build
+	 */
+	private void fastForward() {
+
+		double next = Math.min(recessionsHandler.getNextEvent(tick), params.stopAt + 1);
+		int ticks = (int) (next - 1 - tick);
+
+		if (ticks > 0)
+			tick += firms.fastForward(ticks);
+
+	}
+
+	/*
+	 * A fast forward can go past a multiple of checkpointEvery
+	 */
+	private void checkpointIfCrossed(double before) {
+		if ((params.checkpointEvery > 0)
+				&& (Math.floor(tick / params.checkpointEvery) > Math.floor(before / params.checkpointEvery)))
+			writeCheckpoint();
+	}
+
+	private void writeCheckpoint() {
+
+		try {
+			Checkpoint.write(this, Checkpoint.getPath(this));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+	}
+
+	public boolean isFinished() {
+
+		if (tick >= params.stopAt)
+			return true;
+
+		return (params.convergenceAction == ConvergenceMonitor.Action.STOP)
+				&& (firms.getConvergenceTick() != ConvergenceMonitor.NOT_CONVERGED);
+
+	}
+
+	/*
+	 * Releases the worker threads of the run. Under Repast it is scheduled at
+	 * the end of the run, otherwise whoever steps the market calls it
+	 */
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	public double getTick() {
+		return tick;
+	}
+
+	public void printSpeed() {
+		System.out.println("Ticks: " + tick + ", ticks per second: " + getTicksPerSecond()
+				+ ", with time between steps: " + getWallTicksPerSecond()
+				+ ", convergence tick: " + firms.getConvergenceTick());
+	}
+
+	/*
+	 * Steps run by this market, which are less than its ticks after a restore
+	 * or a fast forward
+	 */
+	public int getStepsRun() {
+		return stepsRun;
+	}
+
+	/*
+	 * Ticks run per second of wall time from startTick to endTick. The time
+	 * spent between ticks, and the ticks before a restore, are not counted
+	 */
+	public double getTicksPerSecond() {
+		return (stepNanos == 0L) ? 0.0 : stepsRun / (stepNanos / 1e9);
+	}
+
+	/*
+	 * Ticks run per second of wall time from the first tick to the end of the
+	 * last one, thus counting what the driver does between ticks
+	 */
+	public double getWallTicksPerSecond() {
+		return (lastStepEnd == firstStepStart) ? 0.0 : stepsRun / ((lastStepEnd - firstStepStart) / 1e9);
+	}
+
+	public long nextFirmID() {
+		return firmIDCounter++;
+	}
 
+	public long nextConsumerID() {
+		return consumerIDCounter++;
 	}
 
 }
@@ -0,0 +1,76 @@
+package demandSide;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/*
+ * State of a market at a tick, kept in memory
+ *
+ * A snapshot can be restored many times, each restore being an independent
+ * market that continues from the tick of the snapshot, see Market.fork. Runs
+ * that differ only after a tick, as the branches of a recession, share their
+ * prefix and its random numbers
+ */
+public class MarketSnapshot {
+
+	private final double tick;
+	private final byte[] state;
+
+	private MarketSnapshot(double tick, byte[] state) {
+		this.tick = tick;
+		this.state = state;
+	}
+
+	public static MarketSnapshot take(Market market) {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			market.writeState(out);
+		} catch (IOException e) {
+			// Not thrown by a byte array
+			throw new UncheckedIOException(e);
+		}
+
+		return new MarketSnapshot(market.getTick(), bytes.toByteArray());
+
+	}
+
+	/*
+	 * A new market in the state of the snapshot, that continues with params
+	 */
+	public Market restore(ModelParams params) {
+
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(state))) {
+			return Market.restore(params, in);
+		} catch (IOException e) {
+			// Only thrown if params don't fit the snapshot
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
+
+	}
+
+	public double getTick() {
+		return tick;
+	}
+
+	/*
+	 * True if both markets were in the same state, random streams included
+	 */
+	public boolean isSameState(MarketSnapshot other) {
+		return (tick == other.tick) && Arrays.equals(state, other.state);
+	}
+
+	/*
+	 * Bytes kept
+	 */
+	public int size() {
+		return state.length;
+	}
+
+}
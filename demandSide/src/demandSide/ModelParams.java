@@ -0,0 +1,198 @@
+package demandSide;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import firms.ConvergenceMonitor;
+import optimalPrice.SegmentPriceSolver;
+import repast.simphony.essentials.RepastEssentials;
+
+/*
+ * Parameters of a run, read once when the market is built
+ *
+ * Hot paths should read these fields instead of calling GetParameter, which is
+ * a lookup by name on every call
+ */
+public class ModelParams {
+
+	// Run
+	public final int randomSeed;
+	public final double stopAt;
+	public final int workerThreads;
+	public final int checkpointEvery;
+	// Needed with checkpointEvery, there is no default
+	public final String checkpointDirectory;
+	// Settled ticks in a row to converge (0: no detection), see
+	// ConvergenceMonitor
+	public final int convergenceWindow;
+	public final double convergenceTolerance;
+	public final ConvergenceMonitor.Action convergenceAction;
+
+	// Consumers
+	public final int numberOfConsumers;
+	public final double minWelfareParam;
+	public final double gini;
+	public final double richestProbability;
+	public final double qualityDiscountMean;
+	public final double qualityDiscountMostLikely;
+	public final double utilityQualityExponent;
+	public final boolean incrementalChoice;
+
+	// Firms
+	public final boolean firmsEntryOnlyAtStart;
+	public final boolean synchronousFirmDecisions;
+	public final int potencialFirmsPerPeriod;
+	public final double initiallyKnownByPerc;
+	public final double diffusionSpeedParam;
+	public final double minimumProfit;
+	public final int maxZeroDemand;
+	public final double currentProfitWeight;
+	public final double costScale;
+	public final double costExponent;
+	public final double fixedCostMean;
+	public final double fixedCostStdDevPerc;
+	public final double maxInitialQuality;
+	public final double smoothingCompetitorParam;
+	public final SegmentPriceSolver.Accuracy priceSolverAccuracy;
+
+	// Offers
+	public final int priceScale;
+	public final int qualityScale;
+	public final double qualityStep;
+
+	// Recessions (several values separated by colon)
+	public final String recessionStart;
+	public final String recessionDuration;
+	public final String recessionMagnitude;
+
+	// Graphs
+	public final double margUtilPercentToDraw;
+
+	// Values by name, as read
+	private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+	private ModelParams(Function<String, Object> source) {
+
+		randomSeed = (Integer) read(source, "randomSeed");
+		stopAt = (Double) read(source, "stopAt");
+		workerThreads = (Integer) read(source, "workerThreads");
+		checkpointEvery = (Integer) read(source, "checkpointEvery");
+		checkpointDirectory = (String) read(source, "checkpointDirectory");
+		if ((checkpointEvery > 0) && ((checkpointDirectory == null) || checkpointDirectory.isEmpty()))
+			throw new IllegalArgumentException("checkpointEvery needs a checkpointDirectory");
+		convergenceWindow = (Integer) read(source, "convergenceWindow");
+		convergenceTolerance = (Double) read(source, "convergenceTolerance");
+		convergenceAction = parse(ConvergenceMonitor.Action.class, "convergenceAction",
+				(String) read(source, "convergenceAction"));
+
+		numberOfConsumers = (Integer) read(source, "numberOfConsumers");
+		minWelfareParam = (Double) read(source, "minWelfareParam");
+		gini = (Double) read(source, "gini");
+		richestProbability = (Double) read(source, "richestProbability");
+		qualityDiscountMean = (Double) read(source, "qualityDiscountMean");
+		qualityDiscountMostLikely = (Double) read(source, "qualityDiscountMostLikely");
+		utilityQualityExponent = (Double) read(source, "utilityQualityExponent");
+		incrementalChoice = (Boolean) read(source, "incrementalChoice");
+
+		firmsEntryOnlyAtStart = (Boolean) read(source, "firmsEntryOnlyAtStart");
+		synchronousFirmDecisions = (Boolean) read(source, "synchronousFirmDecisions");
+		potencialFirmsPerPeriod = (Integer) read(source, "potencialFirmsPerPeriod");
+		// Skipped ticks would have drawn entry candidates
+		if ((convergenceWindow > 0) && (convergenceAction == ConvergenceMonitor.Action.FAST_FORWARD)
+				&& !firmsEntryOnlyAtStart && (potencialFirmsPerPeriod > 0))
+			throw new IllegalArgumentException("FAST_FORWARD needs firmsEntryOnlyAtStart, or no potencialFirmsPerPeriod");
+		initiallyKnownByPerc = (Double) read(source, "initiallyKnownByPerc");
+		diffusionSpeedParam = (Double) read(source, "diffusionSpeedParam");
+		minimumProfit = (Double) read(source, "minimumProfit");
+		maxZeroDemand = (Integer) read(source, "maxZeroDemand");
+		currentProfitWeight = (Double) read(source, "currentProfitWeight");
+		costScale = (Double) read(source, "costScale");
+		costExponent = (Double) read(source, "costExponent");
+		fixedCostMean = (Double) read(source, "fixedCostMean");
+		fixedCostStdDevPerc = (Double) read(source, "fixedCostStdDevPerc");
+		maxInitialQuality = (Double) read(source, "maxInitialQuality");
+		smoothingCompetitorParam = (Double) read(source, "smoothingCompetitorParam");
+		priceSolverAccuracy = parse(SegmentPriceSolver.Accuracy.class, "priceSolverAccuracy",
+				(String) read(source, "priceSolverAccuracy"));
+
+		priceScale = (Integer) read(source, "priceScale");
+		qualityScale = (Integer) read(source, "qualityScale");
+		qualityStep = (Double) read(source, "qualityStep");
+
+		recessionStart = (String) read(source, "recessionStart");
+		recessionDuration = (String) read(source, "recessionDuration");
+		recessionMagnitude = (String) read(source, "recessionMagnitude");
+
+		margUtilPercentToDraw = (Double) read(source, "margUtilPercentToDraw");
+
+	}
+
+	private Object read(Function<String, Object> source, String name) {
+		Object retval = source.apply(name);
+		values.put(name, retval);
+		return retval;
+	}
+
+	/*
+	 * Parameters that are names of constants are checked when they are read,
+	 * not when they are first used in the run
+	 */
+	private static <E extends Enum<E>> E parse(Class<E> type, String name, String value) {
+
+		for (E constant : type.getEnumConstants())
+			if (constant.name().equals(value))
+				return constant;
+
+		throw new IllegalArgumentException(name + " should be one of "
+				+ Arrays.toString(type.getEnumConstants()) + ", not " + value);
+
+	}
+
+	/*
+	 * Reads the parameters of the current Repast run
+	 */
+	public static ModelParams read() {
+		return new ModelParams(RepastEssentials::GetParameter);
+	}
+
+	/*
+	 * Reads the parameters by name from source, to run without Repast
+	 */
+	public static ModelParams from(Function<String, Object> source) {
+		return new ModelParams(source);
+	}
+
+	/*
+	 * Same parameters but one
+	 */
+	public ModelParams with(String name, Object value) {
+
+		Map<String, Object> changed = new LinkedHashMap<String, Object>(values);
+		changed.put(name, value);
+
+		return new ModelParams(changed::get);
+
+	}
+
+	public Map<String, Object> getValues() {
+		return Collections.unmodifiableMap(values);
+	}
+
+	/*
+	 * Threads to use on parallel phases
+	 */
+	public int getParallelism() {
+		return (workerThreads > 0) ? workerThreads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/*
+	 * Lambda of the Pareto distribution of the welfare parameter
+	 */
+	public double getLambda() {
+		return (1.0 + gini) / (2.0 * gini);
+	}
+
+}
@@ -0,0 +1,133 @@
+package demandSide;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/*
+ * Parameters of a Repast parameters.xml, to run without Repast
+ *
+ * Starts with the default values, which can be changed by name
+ */
+public class ParametersFile {
+
+	// Value Repast uses for a parameter without default
+	private static final String NULL_VALUE = "__NULL__";
+
+	private Map<String, String> types = new HashMap<String, String>();
+	private Map<String, Object> values = new HashMap<String, Object>();
+
+	public ParametersFile(File file) throws IOException {
+
+		NodeList params = parse(file).getElementsByTagName("parameter");
+		for (int i = 0; i < params.getLength(); i++) {
+			Element e = (Element) params.item(i);
+			types.put(e.getAttribute("name"), e.getAttribute("type"));
+			set(e.getAttribute("name"), e.getAttribute("defaultValue"));
+		}
+
+	}
+
+	/*
+	 * Parameters of command line arguments:
+	 * 
+	 * [path/to/parameters.xml] [name=value ...]
+	 */
+	public static ParametersFile fromArgs(String[] args, String defaultPath) throws IOException {
+
+		int first = 0;
+		File file = new File(defaultPath);
+		if ((args.length > 0) && !args[0].contains("=")) {
+			file = new File(args[0]);
+			first = 1;
+		}
+
+		ParametersFile retval = new ParametersFile(file);
+		for (int i = first; i < args.length; i++) {
+			String[] nameValue = args[i].split("=", 2);
+			retval.set(nameValue[0], nameValue[1]);
+		}
+
+		return retval;
+
+	}
+
+	/*
+	 * Sets a parameter from its text
+	 */
+	public void set(String name, String value) {
+
+		String type = types.get(name);
+		if (type == null)
+			throw new IllegalArgumentException("Unknown parameter " + name);
+
+		values.put(name, NULL_VALUE.equals(value) ? null : convert(type, value));
+
+	}
+
+	public Object get(String name) {
+		return values.get(name);
+	}
+
+	/*
+	 * Parameters of a run, with the values set so far
+	 */
+	public ModelParams getModelParams() {
+		return ModelParams.from(new HashMap<String, Object>(values)::get);
+	}
+
+	/*
+	 * Parameters of a run, with the values set so far changed by the given
+	 * ones, which are already converted
+	 */
+	public ModelParams getModelParams(Map<String, Object> changed) {
+
+		Map<String, Object> run = new HashMap<String, Object>(values);
+		for (String name : changed.keySet())
+			if (!types.containsKey(name))
+				throw new IllegalArgumentException("Unknown parameter " + name);
+		run.putAll(changed);
+
+		return ModelParams.from(run::get);
+
+	}
+
+	static Element parse(File file) throws IOException {
+
+		try {
+			return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file).getDocumentElement();
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IOException("Cannot parse " + file, e);
+		}
+
+	}
+
+	/*
+	 * Converts value to the type of the parameter, as named by Repast
+	 */
+	static Object convert(String type, String value) {
+
+		switch (type) {
+		case "int":
+			return Integer.valueOf(value.trim());
+		case "double":
+			return Double.valueOf(value.trim());
+		case "boolean":
+			return Boolean.valueOf(value.trim());
+		case "java.lang.String":
+			return value;
+		default:
+			throw new IllegalArgumentException("Unknown parameter type " + type);
+		}
+
+	}
+
+}
@@ -0,0 +1,42 @@
+package demandSide;
+
+/*
+ * Random streams of a run, all derived from randomSeed
+ *
+ * Each purpose has its own stream, and each agent its own stream for a
+ * purpose, so draws don't depend on how many draws other purposes or agents
+ * made before, nor on which thread makes them. Asking twice for the same
+ * stream starts it again from the beginning
+ */
+public class RandomStreams {
+
+	public enum Purpose {
+		WELFARE_PARAM, QUALITY_DISCOUNT, FIRM_TYPE, FIXED_COST, INITIAL_QUALITY, DIFFUSION, OFFER_ORDER
+	}
+
+	private long root;
+
+	public RandomStreams(long seed) {
+		root = SplitMixEngine.mix(seed);
+	}
+
+	/*
+	 * Stream shared by all agents for purpose
+	 */
+	public SplitMixEngine get(Purpose purpose) {
+		return new SplitMixEngine(purposeSeed(purpose));
+	}
+
+	/*
+	 * Stream of agent for purpose, agent is usually the agent's ID
+	 */
+	public SplitMixEngine get(Purpose purpose, long agent) {
+		long agentSeed = SplitMixEngine.mix(purposeSeed(purpose) ^ SplitMixEngine.mix(agent + SplitMixEngine.GOLDEN_GAMMA));
+		return new SplitMixEngine(agentSeed);
+	}
+
+	private long purposeSeed(Purpose purpose) {
+		return SplitMixEngine.mix(root + (purpose.ordinal() + 1) * SplitMixEngine.GOLDEN_GAMMA);
+	}
+
+}
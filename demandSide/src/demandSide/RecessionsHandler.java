@@ -1,83 +1,105 @@
 package demandSide;
 
-
-import static repast.simphony.essentials.RepastEssentials.GetParameter;
-
 import repast.simphony.context.Context;
-import repast.simphony.engine.environment.RunEnvironment;
-import repast.simphony.engine.schedule.ISchedule;
-import repast.simphony.engine.schedule.ScheduleParameters;
-import repast.simphony.engine.schedule.ScheduledMethod;
 
 public class RecessionsHandler {
-	private static double recessionMagnitude = 0.0;
-	
-	
-	public RecessionsHandler(Context<Object> context) {
+	private double recessionMagnitude = 0.0;
+
+	private double[] start, dur, recesMag;
+
+	public RecessionsHandler(Context<Object> context, ModelParams params) {
+		readRecessions(params);
 		context.add(this);
 	}
 
-	@ScheduledMethod(start = 1, priority = RunPriority.SCHEDULE_RECESSIONS_PRIORITY)
-	public void scheduleRecessions() {
-		double[] start, dur, recesMag;
+	private void readRecessions(ModelParams params) {
 
 		// Read start of recessions
-		String[] tmp = ((String) GetParameter("recessionStart")).split(":");
-		start = new double[tmp.length];
-		for (int i = 0; i < tmp.length; i++) {
-			start[i] = Double.valueOf(tmp[i]);
-		}
+		start = parse(params.recessionStart);
 
 		// Read Duration of recessions
-		tmp = ((String) GetParameter("recessionDuration")).split(":");
-		dur = new double[tmp.length];
-		for (int i = 0; i < tmp.length; i++) {
-			dur[i] = Double.valueOf(tmp[i]);
-		}
+		dur = parse(params.recessionDuration);
 
 		// Read magnitude of recessions
-		tmp = ((String) GetParameter("recessionMagnitude")).split(":");
-		recesMag = new double[tmp.length];
+		recesMag = parse(params.recessionMagnitude);
+
+	}
+
+	private static double[] parse(String values) {
+
+		String[] tmp = values.split(":");
+		double[] retval = new double[tmp.length];
 		for (int i = 0; i < tmp.length; i++) {
-			recesMag[i] = Double.valueOf(tmp[i]);
+			retval[i] = Double.valueOf(tmp[i]);
 		}
 
-		// Schedule recessions
-		for (int i = 0; i < tmp.length; i++) {
-			ISchedule sch = RunEnvironment.getInstance().getCurrentSchedule();
+		return retval;
 
-			// Set start
-			ScheduleParameters params = ScheduleParameters.createOneTime(
-					start[i], ScheduleParameters.FIRST_PRIORITY);
-			sch.schedule(params, this, "setRecesMagnitude", recesMag[i]);
+	}
+
+	/*
+	 * Tick of the first recession of params, before it runs with no recession
+	 */
+	public static double getFirstStart(ModelParams params) {
+
+		double retval = Double.POSITIVE_INFINITY;
+		for (double s : parse(params.recessionStart))
+			retval = Math.min(retval, s);
+
+		return retval;
+
+	}
 
-			// Set end
-			params = ScheduleParameters.createOneTime((start[i] + dur[i])
-					, ScheduleParameters.FIRST_PRIORITY);
-			sch.schedule(params, this, "setRecesMagnitude", 0.0);
+	/*
+	 * Sets the magnitude of the recession going on at tick, if any. It is the
+	 * first thing done in a tick
+	 */
+	public void update(double tick) {
 
+		double mag = 0.0;
+		for (int i = 0; i < recesMag.length; i++)
+			if ((start[i] <= tick) && (tick < start[i] + dur[i]))
+				mag = recesMag[i];
+
+		setRecesMagnitude(mag);
+
+	}
+
+	/*
+	 * First tick after tick where a recession starts or ends, or infinity if
+	 * there is none
+	 */
+	public double getNextEvent(double tick) {
+
+		double retval = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < recesMag.length; i++) {
+			if (start[i] > tick)
+				retval = Math.min(retval, start[i]);
+			if (start[i] + dur[i] > tick)
+				retval = Math.min(retval, start[i] + dur[i]);
 		}
 
+		return retval;
+
 	}
 
-	public static double getWelfareParamPerceivedByFirms(double rawWelfareParam) {
+	public double getWelfareParamPerceivedByFirms(double rawWelfareParam) {
 		double recessionImpact = 1 - getRecesMagnitude();
 		return rawWelfareParam / recessionImpact;
 	}
 
-	public static double getWelfareParamForConsumers(double rawWelfareParameter) {
+	public double getWelfareParamForConsumers(double rawWelfareParameter) {
 		double recessionImpact = 1 - getRecesMagnitude();
 		return rawWelfareParameter * recessionImpact;
 	}
 
-	public static void setRecesMagnitude(double mag) {
+	public void setRecesMagnitude(double mag) {
 		recessionMagnitude = mag;
 	}
 
-	public static double getRecesMagnitude() {
+	public double getRecesMagnitude() {
 		return recessionMagnitude;
 	}
 
 
 }
-
@@ -0,0 +1,173 @@
+package demandSide;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import firms.ConvergenceMonitor;
+
+/*
+ * Runs several markets at the same time in one JVM, without Repast
+ *
+ * Each run is stepped until stopAt on its own thread and then result is applied
+ * to it. Runs share nothing but the JIT compiled code. Each market has its own
+ * worker pool, thus workerThreads should usually be 1 when running many
+ * replications
+ */
+public class Replications {
+
+	// Parameters that don't change a run before its first recession
+	private static final String[] BRANCH_PARAMS = { "recessionStart", "recessionDuration", "recessionMagnitude",
+			"stopAt" };
+
+	public static <T> List<T> run(List<ModelParams> runs, int threads, Function<Market, T> result) {
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>(runs.size());
+			for (ModelParams params : runs)
+				futures.add(executor.submit(() -> runToEnd(params, result)));
+
+			// Results in the order of runs
+			List<T> retval = new ArrayList<T>(runs.size());
+			for (Future<T> f : futures)
+				retval.add(getResult(f));
+
+			return retval;
+
+		} finally {
+			executor.shutdownNow();
+		}
+
+	}
+
+	/*
+	 * Same as run, but runs that differ only in their recessions share the
+	 * ticks before the first one
+	 * 
+	 * Each group of such runs is run once up to the tick before its first
+	 * recession starts, and then forked into one market per run. Up to the fork
+	 * all runs of the group draw the same random numbers
+	 */
+	public static <T> List<T> runForked(List<ModelParams> runs, int threads, Function<Market, T> result) {
+
+		Map<Map<String, Object>, List<ModelParams>> groups = new LinkedHashMap<Map<String, Object>, List<ModelParams>>();
+		for (ModelParams params : runs)
+			groups.computeIfAbsent(prefixKey(params), k -> new ArrayList<ModelParams>()).add(params);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			Map<Map<String, Object>, Future<MarketSnapshot>> prefixes = new HashMap<Map<String, Object>, Future<MarketSnapshot>>();
+			for (Map.Entry<Map<String, Object>, List<ModelParams>> g : groups.entrySet())
+				prefixes.put(g.getKey(), executor.submit(() -> runPrefix(g.getValue())));
+
+			// All prefixes are done before continuations take the threads
+			Map<Map<String, Object>, MarketSnapshot> snapshots = new HashMap<Map<String, Object>, MarketSnapshot>();
+			for (Map.Entry<Map<String, Object>, Future<MarketSnapshot>> p : prefixes.entrySet())
+				snapshots.put(p.getKey(), getResult(p.getValue()));
+
+			List<Future<T>> futures = new ArrayList<Future<T>>(runs.size());
+			for (ModelParams params : runs) {
+				MarketSnapshot snapshot = snapshots.get(prefixKey(params));
+				futures.add(executor.submit(() -> runToEnd(snapshot.restore(params), result)));
+			}
+
+			List<T> retval = new ArrayList<T>(runs.size());
+			for (Future<T> f : futures)
+				retval.add(getResult(f));
+
+			return retval;
+
+		} finally {
+			executor.shutdownNow();
+		}
+
+	}
+
+	static Map<String, Object> prefixKey(ModelParams params) {
+
+		Map<String, Object> retval = new HashMap<String, Object>(params.getValues());
+		for (String name : BRANCH_PARAMS)
+			retval.remove(name);
+
+		return retval;
+
+	}
+
+	/*
+	 * Runs the first params of the group up to the tick before the first
+	 * recession of any of them, or until it converges
+	 * 
+	 * The prefix doesn't fast forward, as the jump goes to the recessions of
+	 * each run. With STOP it ends on convergence, and each restored run then
+	 * stops or fast forwards as its params say, see Market.restore. Checkpoints
+	 * are left to the restored runs, which have their own params
+	 */
+	static MarketSnapshot runPrefix(List<ModelParams> group) {
+
+		double forkTick = Double.POSITIVE_INFINITY;
+		for (ModelParams params : group)
+			forkTick = Math.min(forkTick, Math.min(params.stopAt, RecessionsHandler.getFirstStart(params) - 1));
+
+		ModelParams prefix = group.get(0).with("convergenceAction", ConvergenceMonitor.Action.STOP.name())
+				.with("checkpointEvery", 0);
+		Market market = Market.create(prefix);
+
+		try {
+			while ((market.getTick() < forkTick) && !market.isFinished())
+				market.step();
+
+			return MarketSnapshot.take(market);
+
+		} finally {
+			market.shutdown();
+		}
+
+	}
+
+	private static <T> T runToEnd(ModelParams params, Function<Market, T> result) {
+		return runToEnd(Market.create(params), result);
+	}
+
+	private static <T> T runToEnd(Market market, Function<Market, T> result) {
+
+		try {
+			while (!market.isFinished())
+				market.step();
+
+			return result.apply(market);
+
+		} finally {
+			market.shutdown();
+		}
+
+	}
+
+	static <T> T getResult(Future<T> future) {
+
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			else if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			else
+				throw new IllegalStateException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+
+	}
+
+}
@@ -3,17 +3,20 @@ package demandSide;
 public class RunPriority {
 	// Higher priority means being executed earlier
 
-	// Executed only once
-	public static final double SCHEDULE_RECESSIONS_PRIORITY = 100;
-
 	// Every step
+	public static final double START_TICK_PRIORITY = 90;
 	public static final double MAKE_OFFER_PRIORITY = 80;
 	public static final double ADD_FIRMS_PRIORITY = 70;
 	public static final double RESET_DEMAND_PRIORITY = 65;
+	// Under Repast consumers choose one by one, between start and end choice
+	public static final double START_CHOICE_PRIORITY = 62;
 	public static final double CHOOSE_FIRM_PRIORITY = 60;
+	public static final double END_CHOICE_PRIORITY = 55;
 	public static final double NEXT_STEP_FIRM_PRIORITY = 50;
 	public static final double KILL_FIRMS_PRIORITY = 40;
 	public static final double UPDATE_STATISTICS_PRIORITY = 30;
 	public static final double UPDATE_PROJECTIONS_PRIORITY = 10;
-	
+	public static final double END_TICK_PRIORITY = 0;
+
 }
+
@@ -0,0 +1,69 @@
+package demandSide;
+
+import cern.jet.random.engine.RandomEngine;
+
+/*
+ * SplitMix64 generator as a Colt engine
+ *
+ * Its state is a counter, thus streams seeded with different values don't
+ * overlap in practice. It is the generator of RandomStreams
+ */
+public class SplitMixEngine extends RandomEngine {
+
+	private static final long serialVersionUID = 1L;
+
+	static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	private long state;
+
+	public SplitMixEngine(long seed) {
+		state = seed;
+	}
+
+	@Override
+	public long nextLong() {
+		state += GOLDEN_GAMMA;
+		return mix(state);
+	}
+
+	@Override
+	public int nextInt() {
+		return (int) (nextLong() >>> 32);
+	}
+
+	/*
+	 * Uniform in (0, 1), with 53 random bits
+	 */
+	@Override
+	public double raw() {
+		double retval;
+		do {
+			retval = (nextLong() >>> 11) * 0x1.0p-53;
+		} while (retval == 0.0);
+
+		return retval;
+	}
+
+	@Override
+	public double nextDouble() {
+		return raw();
+	}
+
+	/*
+	 * The state is enough to continue the stream, see MarketSnapshot
+	 */
+	public long getState() {
+		return state;
+	}
+
+	public void setState(long state) {
+		this.state = state;
+	}
+
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+}
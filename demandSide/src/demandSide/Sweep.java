@@ -0,0 +1,129 @@
+package demandSide;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/*
+ * Runs of a Repast batch_params.xml
+ *
+ * Each parameter is a constant, a list of values separated by spaces, or a
+ * number from start to end (included) by step. A parameter takes each of its
+ * values for every combination of the parameters nested in it, and sibling
+ * parameters are combined with each other. The whole sweep is repeated as many
+ * times as the runs attribute says
+ *
+ * Runs are numbered from 1, outer parameters changing slower than nested ones,
+ * thus the numbers are the same on every expansion of the file
+ */
+public class Sweep {
+
+	private List<Map<String, Object>> runs = new ArrayList<Map<String, Object>>();
+
+	public Sweep(File file) throws IOException {
+
+		Element sweep = ParametersFile.parse(file);
+
+		List<Map<String, Object>> once = expandChildren(sweep);
+
+		int repetitions = sweep.hasAttribute("runs") ? Integer.parseInt(sweep.getAttribute("runs")) : 1;
+		for (int r = 0; r < repetitions; r++)
+			runs.addAll(once);
+
+	}
+
+	/*
+	 * Values of the parameters of each run, by run number minus one
+	 */
+	public List<Map<String, Object>> getRuns() {
+		return runs;
+	}
+
+	public int size() {
+		return runs.size();
+	}
+
+	private static List<Map<String, Object>> expandChildren(Element parent) {
+
+		List<Map<String, Object>> retval = new ArrayList<Map<String, Object>>();
+		retval.add(new LinkedHashMap<String, Object>());
+
+		for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (!(n instanceof Element) || !((Element) n).getTagName().equals("parameter"))
+				continue;
+
+			List<Map<String, Object>> combined = new ArrayList<Map<String, Object>>();
+			for (Map<String, Object> left : retval)
+				for (Map<String, Object> right : expand((Element) n)) {
+					Map<String, Object> run = new LinkedHashMap<String, Object>(left);
+					run.putAll(right);
+					combined.add(run);
+				}
+
+			retval = combined;
+		}
+
+		return retval;
+
+	}
+
+	private static List<Map<String, Object>> expand(Element param) {
+
+		String name = param.getAttribute("name");
+		List<Map<String, Object>> nested = expandChildren(param);
+
+		List<Map<String, Object>> retval = new ArrayList<Map<String, Object>>();
+		for (Object value : getValues(param))
+			for (Map<String, Object> n : nested) {
+				Map<String, Object> run = new LinkedHashMap<String, Object>();
+				run.put(name, value);
+				run.putAll(n);
+				retval.add(run);
+			}
+
+		return retval;
+
+	}
+
+	private static List<Object> getValues(Element param) {
+
+		List<Object> retval = new ArrayList<Object>();
+
+		switch (param.getAttribute("type")) {
+		case "constant":
+			retval.add(ParametersFile.convert(param.getAttribute("constant_type"), param.getAttribute("value")));
+			break;
+
+		case "list":
+			for (String v : param.getAttribute("values").trim().split("\\s+"))
+				retval.add(ParametersFile.convert(param.getAttribute("value_type"), v));
+			break;
+
+		case "number":
+			// Decimal steps, so that 0.1 steps reach end
+			String type = param.getAttribute("number_type");
+			BigDecimal end = new BigDecimal(param.getAttribute("end").trim());
+			BigDecimal step = new BigDecimal(param.getAttribute("step").trim());
+			if (step.signum() <= 0)
+				throw new IllegalArgumentException("Step of " + param.getAttribute("name") + " should be positive");
+
+			for (BigDecimal v = new BigDecimal(param.getAttribute("start").trim()); v.compareTo(end) <= 0; v = v.add(step))
+				retval.add(ParametersFile.convert(type, v.toPlainString()));
+			break;
+
+		default:
+			throw new IllegalArgumentException("Unknown type of sweep parameter " + param.getAttribute("name"));
+		}
+
+		return retval;
+
+	}
+
+}
@@ -0,0 +1,270 @@
+package demandSide;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Runs the sweep of a batch_params.xml in this JVM, without Repast
+ *
+ * SweepRunner [sweep=batch/batch_params.xml]
+ *     [parameters=demandSide.rs/parameters.xml] [output=output] [threads=N]
+ *
+ * Runs are taken by a work stealing pool with one thread per processor, unless
+ * threads is given. As the pool already uses all processors, workerThreads 0
+ * is taken as 1 worker per market. Runs that differ only in their recessions
+ * share the ticks before the first one, see Replications.runForked
+ *
+ * Runs without randomSeed in the sweep nor in parameters.xml use their run
+ * number as seed, and checkpoints without checkpointDirectory go to
+ * output/checkpoints
+ *
+ * Each finished run writes output/sweep_run_<n>.csv with its parameters and
+ * final values. Runs with a file are not run again, thus a sweep that was
+ * stopped continues where it was. When all runs are done their files are
+ * joined in output/sweep.csv
+ */
+public class SweepRunner {
+
+	private static final String[] RESULT_COLUMNS = { "Tick", "ConvergenceTick", "Firms", "TotalDemand",
+			"TotalSales", "TicksPerSecond" };
+
+	private Sweep sweep;
+	private ParametersFile defaults;
+	private Path output;
+	private int threads;
+
+	public SweepRunner(Sweep sweep, ParametersFile defaults, Path output, int threads) {
+		this.sweep = sweep;
+		this.defaults = defaults;
+		this.output = output;
+		this.threads = threads;
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		Map<String, String> options = new HashMap<String, String>();
+		options.put("sweep", "batch/batch_params.xml");
+		options.put("parameters", "demandSide.rs/parameters.xml");
+		options.put("output", "output");
+		options.put("threads", Integer.toString(Runtime.getRuntime().availableProcessors()));
+
+		for (String arg : args) {
+			String[] nameValue = arg.split("=", 2);
+			if ((nameValue.length != 2) || !options.containsKey(nameValue[0]))
+				throw new IllegalArgumentException("Unknown argument " + arg);
+			options.put(nameValue[0], nameValue[1]);
+		}
+
+		Sweep sweep = new Sweep(new File(options.get("sweep")));
+		ParametersFile defaults = new ParametersFile(new File(options.get("parameters")));
+
+		new SweepRunner(sweep, defaults, Paths.get(options.get("output")), Integer.parseInt(options.get("threads")))
+				.run();
+
+	}
+
+	public void run() throws IOException {
+
+		Files.createDirectories(output);
+
+		List<Integer> pending = new ArrayList<Integer>();
+		for (int run = 1; run <= sweep.size(); run++)
+			if (!Files.exists(getRunPath(run)))
+				pending.add(run);
+
+		System.out.println("Runs: " + sweep.size() + ", already done: " + (sweep.size() - pending.size())
+				+ ", threads: " + threads);
+
+		Map<Map<String, Object>, List<Integer>> groups = new LinkedHashMap<Map<String, Object>, List<Integer>>();
+		Map<Integer, ModelParams> params = new HashMap<Integer, ModelParams>();
+		for (int run : pending) {
+			params.put(run, getParams(run));
+			groups.computeIfAbsent(Replications.prefixKey(params.get(run)), k -> new ArrayList<Integer>()).add(run);
+		}
+
+		ExecutorService pool = Executors.newWorkStealingPool(threads);
+		BlockingQueue<Future<Integer>> done = new LinkedBlockingQueue<Future<Integer>>();
+		AtomicLong steps = new AtomicLong();
+
+		try {
+			long start = System.nanoTime();
+
+			// Each group runs its prefix once, and then its runs from the prefix
+			for (List<Integer> group : groups.values()) {
+				List<ModelParams> groupParams = new ArrayList<ModelParams>();
+				for (int run : group)
+					groupParams.add(params.get(run));
+
+				CompletableFuture<MarketSnapshot> prefix = CompletableFuture.supplyAsync(() -> {
+					MarketSnapshot snapshot = Replications.runPrefix(groupParams);
+					// The prefix doesn't fast forward, each of its ticks is a step
+					steps.addAndGet((long) snapshot.getTick());
+					return snapshot;
+				}, pool);
+
+				for (int run : group) {
+					CompletableFuture<Integer> runDone = prefix
+							.thenApplyAsync(snapshot -> runToEnd(run, snapshot.restore(params.get(run))), pool)
+							.thenApply(stepsRun -> {
+								steps.addAndGet(stepsRun);
+								return run;
+							});
+					runDone.whenComplete((r, e) -> done.add(runDone));
+				}
+			}
+
+			for (int k = 1; k <= pending.size(); k++) {
+				Replications.getResult(done.take());
+
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.printf("Run done: %d of %d, %.2f runs per minute, %.0f steps per second, %.0f seconds left%n",
+						k, pending.size(), 60.0 * k / seconds, steps.get() / seconds,
+						seconds / k * (pending.size() - k));
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		joinRuns();
+
+	}
+
+	private ModelParams getParams(int run) {
+
+		Map<String, Object> values = new HashMap<String, Object>(sweep.getRuns().get(run - 1));
+
+		if ((values.get("randomSeed") == null) && (defaults.get("randomSeed") == null))
+			values.put("randomSeed", run);
+
+		Object workers = values.getOrDefault("workerThreads", defaults.get("workerThreads"));
+		if (Integer.valueOf(0).equals(workers))
+			values.put("workerThreads", 1);
+
+		Object directory = values.getOrDefault("checkpointDirectory", defaults.get("checkpointDirectory"));
+		if ((directory == null) || directory.toString().isEmpty())
+			values.put("checkpointDirectory", output.resolve("checkpoints").toAbsolutePath().toString());
+
+		return defaults.getModelParams(values);
+
+	}
+
+	/*
+	 * Returns the steps run, not counting the ticks of the prefix nor the ones
+	 * skipped by a fast forward
+	 */
+	private int runToEnd(int run, Market market) {
+
+		try {
+			while (!market.isFinished())
+				market.step();
+		} finally {
+			market.shutdown();
+		}
+
+		try {
+			writeRun(run, market);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return market.getStepsRun();
+
+	}
+
+	private Path getRunPath(int run) {
+		return output.resolve("sweep_run_" + run + ".csv");
+	}
+
+	/*
+	 * The file of the run appears when it is complete, thus a sweep stopped
+	 * while writing doesn't leave a partial run
+	 */
+	private void writeRun(int run, Market market) throws IOException {
+
+		Map<String, Object> values = market.params.getValues();
+
+		List<String> header = new ArrayList<String>();
+		List<Object> row = new ArrayList<Object>();
+
+		header.add("run");
+		row.add(run);
+
+		header.addAll(values.keySet());
+		row.addAll(values.values());
+
+		for (String column : RESULT_COLUMNS)
+			header.add(column);
+		row.add(market.getTick());
+		row.add(market.firms.getConvergenceTick());
+		row.add(market.firms.size());
+		row.add(market.firms.getTotalDemand());
+		row.add(market.firms.getTotalSales());
+		row.add(market.getTicksPerSecond());
+
+		Path tmp = Files.createTempFile(output, "sweep_run", ".tmp");
+		try (BufferedWriter out = Files.newBufferedWriter(tmp)) {
+			out.write(join(header));
+			out.newLine();
+			out.write(join(row));
+			out.newLine();
+		}
+
+		Files.move(tmp, getRunPath(run), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+	private static String join(List<?> values) {
+
+		StringBuilder retval = new StringBuilder();
+		for (Object v : values) {
+			if (retval.length() > 0)
+				retval.append(',');
+			retval.append(v);
+		}
+
+		return retval.toString();
+
+	}
+
+	/*
+	 * All runs in one file, in order of run number
+	 */
+	private void joinRuns() throws IOException {
+
+		try (BufferedWriter out = Files.newBufferedWriter(output.resolve("sweep.csv"))) {
+			for (int run = 1; run <= sweep.size(); run++) {
+				List<String> lines = Files.readAllLines(getRunPath(run));
+				if (run == 1) {
+					out.write(lines.get(0));
+					out.newLine();
+				}
+				out.write(lines.get(1));
+				out.newLine();
+			}
+		}
+
+	}
+
+}
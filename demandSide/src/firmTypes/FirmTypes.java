@@ -1,6 +1,7 @@
 package firmTypes;
 
 import demandSide.Market;
+import firms.Firm;
 
 public enum FirmTypes {
 	
@@ -10,34 +11,34 @@ public enum FirmTypes {
 	NO_Q_INCREASE_FIRM,
 	INCREASE_Q_FIRM;
 	
-	public void createRandomTypeFirm(Market market) {
+	public Firm createRandomTypeFirm(Market market) {
 		
 		int i = market.firms.firmTypes.nextInt() - 1;
 		
-		(values()[i]).createFirm(market);
+		return (values()[i]).createFirm(market);
 		
 	}
 	
-	public void createFirm(Market market){
+	/*
+	 * Creates a candidate to enter the market, see Firms.addFirms
+	 */
+	public Firm createFirm(Market market){
 		
 		switch (this) {
 		case STANDARD_FIRM:
-			new StandardFirm(market);
-			break;
+			return new StandardFirm(market);
 		case NO_Q_CHANGE_FIRM:
-			new NoQChangeFirm(market);
-			break;
+			return new NoQChangeFirm(market);
 		case NO_Q_REDUCTION_FIRM:
-			new NoQReductionFirm(market);
-			break;
+			return new NoQReductionFirm(market);
 		case NO_Q_INCREASE_FIRM:
-			new NoQIncreaseFirm(market);
-			break;
+			return new NoQIncreaseFirm(market);
 		case INCREASE_Q_FIRM:
-			new IncreaseQFirm(market);
-			break;
+			return new IncreaseQFirm(market);
 		}
 		
+		return null;
+		
 	}
 	
 	public String toString() {
@@ -1,10 +1,7 @@
 package firmTypes;
 
-import java.util.stream.Stream;
-
 import demandSide.Market;
 import firms.Firm;
-import firms.Offer;
 
 public class IncreaseQFirm extends Firm {
 
@@ -12,9 +9,10 @@ public class IncreaseQFirm extends Firm {
 		super(market);
 	}
 
-	public Stream<Double> getRealQualityOptions() {
+	public int getRealQualityOptions(double[] options) {
 
-		return Stream.of(getQuality() + Offer.getQualityStep());
+		options[0] = getQuality() + market.offerParams.getQualityStep();
+		return 1;
 
 	}
 
@@ -1,7 +1,5 @@
 package firmTypes;
 
-import java.util.stream.Stream;
-
 import demandSide.Market;
 import firms.Firm;
 
@@ -11,8 +9,9 @@ public class NoQChangeFirm extends Firm {
 		super(market);
 	}
 
-	public Stream<Double> getRealQualityOptions() {
-		return Stream.of(getQuality());	
+	public int getRealQualityOptions(double[] options) {
+		options[0] = getQuality();
+		return 1;
 	}
 		
 	public FirmTypes getFirmType() {
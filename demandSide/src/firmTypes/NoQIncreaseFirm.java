@@ -1,10 +1,7 @@
 package firmTypes;
 
-import java.util.stream.Stream;
-
 import demandSide.Market;
 import firms.Firm;
-import firms.Offer;
 
 public class NoQIncreaseFirm extends Firm {
 
@@ -13,16 +10,19 @@ public class NoQIncreaseFirm extends Firm {
 	}
 
 
-	public Stream<Double> getRealQualityOptions() {
+	public int getRealQualityOptions(double[] options) {
 		
 		double currRealQ = getQuality();
-		double step = Offer.getQualityStep();
+		double step = market.offerParams.getQualityStep();
 		
+		options[0] = currRealQ;
+
 		// Quality should be higher than zero
-		if (currRealQ > step)
-			return Stream.of(currRealQ, currRealQ - step);
-		else
-			return Stream.of(currRealQ);	
+		if (currRealQ > step) {
+			options[1] = currRealQ - step;
+			return 2;
+		} else
+			return 1;
 		
 	}
 
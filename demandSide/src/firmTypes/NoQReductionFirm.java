@@ -1,10 +1,7 @@
 package firmTypes;
 
-import java.util.stream.Stream;
-
 import demandSide.Market;
 import firms.Firm;
-import firms.Offer;
 
 public class NoQReductionFirm extends Firm {
 
@@ -12,10 +9,12 @@ public class NoQReductionFirm extends Firm {
 		super(market);
 	}
 
-	public Stream<Double> getRealQualityOptions() {
+	public int getRealQualityOptions(double[] options) {
 		
 		double currRealQ = getQuality();		
-		return Stream.of(currRealQ, currRealQ + Offer.getQualityStep());
+		options[0] = currRealQ;
+		options[1] = currRealQ + market.offerParams.getQualityStep();
+		return 2;
 
 	}
 		
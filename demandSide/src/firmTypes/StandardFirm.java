@@ -1,10 +1,7 @@
 package firmTypes;
 
-import java.util.stream.Stream;
-
 import demandSide.Market;
 import firms.Firm;
-import firms.Offer;
 
 public class StandardFirm extends Firm {
 
@@ -13,16 +10,20 @@ public class StandardFirm extends Firm {
 		super(market);
 	}
 
-	public Stream<Double> getRealQualityOptions() {
+	public int getRealQualityOptions(double[] options) {
 						
 		double currRealQ = getQuality();
-		double step = Offer.getQualityStep();
+		double step = market.offerParams.getQualityStep();
+		int n = 0;
 		
+		options[n++] = currRealQ;
+
 		// Quality should be higher than zero
 		if (currRealQ > step)
-			return Stream.of(currRealQ, currRealQ - step, currRealQ + step );
-		else
-			return Stream.of(currRealQ, currRealQ + step );
+			options[n++] = currRealQ - step;
+
+		options[n++] = currRealQ + step;
+		return n;
 	}
 	
 	public FirmTypes getFirmType() {
@@ -0,0 +1,48 @@
+package firms;
+
+import java.util.Arrays;
+
+/*
+ * Offers of competitors as perceived by one firm, by firm slot
+ *
+ * It is filled once when the firm starts to decide, with the smoothed offers of
+ * its neighbors and the perceived offers of the rest. While deciding, the
+ * expected market and the price limits read these arrays instead of going
+ * through the firm's History on every comparison
+ */
+public class CompetitorOffers {
+
+	private double[] price = new double[0];
+	private double[] quality = new double[0];
+
+	void refresh(Firm owner) {
+
+		Firms firms = owner.market.firms;
+		int slots = firms.getSlotsCount();
+
+		if (price.length < slots) {
+			price = Arrays.copyOf(price, slots);
+			quality = Arrays.copyOf(quality, slots);
+		}
+
+		for (int slot = 0; slot < slots; slot++) {
+			Firm f = firms.getFirmAtSlot(slot);
+			if ((f == null) || (f == owner))
+				continue;
+
+			Offer of = owner.getCompetitorPerceivedOffer(f);
+			price[slot] = of.getPrice();
+			quality[slot] = of.getQuality();
+		}
+
+	}
+
+	public double getPrice(Firm f) {
+		return price[f.getSlot()];
+	}
+
+	public double getQuality(Firm f) {
+		return quality[f.getSlot()];
+	}
+
+}
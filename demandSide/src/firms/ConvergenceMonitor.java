@@ -0,0 +1,163 @@
+package firms;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.math3.util.FastMath;
+
+import demandSide.ModelParams;
+
+/*
+ * Detects when the market has settled
+ *
+ * A tick is settled when no firm entered or left, every firm is known by all
+ * consumers, offers moved less than the tolerance and demands are the same of
+ * the previous tick. The market converges after window settled ticks in a row,
+ * at the first tick of the window. A window of zero turns the monitor off
+ */
+public class ConvergenceMonitor {
+
+	public static final int NOT_CONVERGED = -1;
+
+	/*
+	 * What the run does once the market converges
+	 */
+	public enum Action {
+		// The run ends
+		STOP,
+		// Settled ticks are skipped up to the next recession event, only when
+		// firms don't enter after the start and without Repast
+		FAST_FORWARD
+	}
+
+	private int window;
+	private double priceTolerance, qualityTolerance;
+
+	// Offers and demands of the previous tick, by slot
+	private double[] prevPrice = new double[0];
+	private double[] prevQuality = new double[0];
+	private int[] prevDemand = new int[0];
+	private int prevSlots = 0;
+
+	// Entries and exits of the current tick
+	private int changes = 0;
+
+	private int settledTicks = 0;
+	private double convergenceTick = NOT_CONVERGED;
+
+	ConvergenceMonitor(ModelParams params, OfferParams offerParams) {
+
+		window = params.convergenceWindow;
+
+		// Offers are rounded, smaller changes cannot be told apart
+		priceTolerance = FastMath.max(params.convergenceTolerance, offerParams.getMinDeltaPrice());
+		qualityTolerance = FastMath.max(params.convergenceTolerance, offerParams.getMinDeltaQuality());
+
+	}
+
+	boolean isOn() {
+		return window > 0;
+	}
+
+	/*
+	 * A firm entered or left the market
+	 */
+	void changed() {
+		changes++;
+	}
+
+	/*
+	 * Run once per tick, after dead firms are wiped
+	 */
+	void update(Firms firms, FirmTable table, double tick) {
+
+		int slots = firms.getSlotsCount();
+
+		boolean settled = (changes == 0) && (slots == prevSlots);
+		for (int s = 0; settled && (s < slots); s++) {
+			if (!table.live[s])
+				continue;
+
+			settled = firms.getFirmAtSlot(s).isKnownByAll()
+					&& (FastMath.abs(table.price[s] - prevPrice[s]) < priceTolerance)
+					&& (FastMath.abs(table.quality[s] - prevQuality[s]) < qualityTolerance)
+					&& (table.demand[s] == prevDemand[s]);
+		}
+
+		if (!settled)
+			settledTicks = 0;
+		else if (++settledTicks == window)
+			convergenceTick = tick - window + 1;
+
+		if (prevPrice.length < slots) {
+			prevPrice = Arrays.copyOf(prevPrice, slots);
+			prevQuality = Arrays.copyOf(prevQuality, slots);
+			prevDemand = Arrays.copyOf(prevDemand, slots);
+		}
+
+		System.arraycopy(table.price, 0, prevPrice, 0, slots);
+		System.arraycopy(table.quality, 0, prevQuality, 0, slots);
+		System.arraycopy(table.demand, 0, prevDemand, 0, slots);
+		prevSlots = slots;
+
+		changes = 0;
+
+	}
+
+	/*
+	 * True on the tick the window is completed
+	 */
+	boolean hasJustConverged() {
+		return isOn() && (settledTicks == window);
+	}
+
+	/*
+	 * The market has to settle again, as after a fast forward
+	 */
+	void restart() {
+		settledTicks = 0;
+	}
+
+	/*
+	 * First tick of the last window of settled ticks, or NOT_CONVERGED
+	 */
+	double getConvergenceTick() {
+		return convergenceTick;
+	}
+
+	void writeState(DataOutput out) throws IOException {
+
+		out.writeInt(prevSlots);
+		for (int s = 0; s < prevSlots; s++) {
+			out.writeDouble(prevPrice[s]);
+			out.writeDouble(prevQuality[s]);
+			out.writeInt(prevDemand[s]);
+		}
+
+		out.writeInt(changes);
+		out.writeInt(settledTicks);
+		out.writeDouble(convergenceTick);
+
+	}
+
+	void readState(DataInput in) throws IOException {
+
+		prevSlots = in.readInt();
+		prevPrice = new double[prevSlots];
+		prevQuality = new double[prevSlots];
+		prevDemand = new int[prevSlots];
+		for (int s = 0; s < prevSlots; s++) {
+			prevPrice[s] = in.readDouble();
+			prevQuality[s] = in.readDouble();
+			prevDemand[s] = in.readInt();
+		}
+
+		changes = in.readInt();
+		settledTicks = in.readInt();
+		convergenceTick = in.readDouble();
+
+	}
+
+}
@@ -8,10 +8,26 @@ public class Decision {
 
 	public ExpectedInfo expInf = new ExpectedInfo();
 
-	public Decision(OptimalPriceResult optPR, double q) {
+	/*
+	 * Empty decision, to be set by the firm deciding
+	 */
+	Decision() {
+		offer = new Offer();
+	}
+
+	Decision(Offer offer, ExpectedInfo expInf) {
+		this.offer = offer;
+		this.expInf = expInf;
+	}
+
+	/*
+	 * Copies the optimal price for quality q, as the result is reused
+	 */
+	void set(OptimalPriceResult optPR, double q) {
 
-		offer = new Offer(optPR.price, q);
-		expInf = optPR.expInf;
+		offer.setPrice(optPR.price);
+		offer.setQuality(q);
+		expInf.set(optPR.expInf);
 
 	}
 
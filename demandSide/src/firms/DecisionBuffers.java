@@ -0,0 +1,25 @@
+package firms;
+
+/*
+ * Buffers of the decision a thread is making
+ *
+ * Firms decide on the worker threads, one decision at a time on each, thus
+ * the buffers are per thread and reused from one decision to the next. The
+ * expected markets grow to the largest market seen
+ */
+class DecisionBuffers {
+
+	private static final ThreadLocal<DecisionBuffers> BUFFERS = ThreadLocal.withInitial(DecisionBuffers::new);
+
+	final double[] options = new double[Firm.MAX_QUALITY_OPTIONS];
+	final double[] bound = new double[Firm.MAX_QUALITY_OPTIONS];
+
+	// Competitors of the firm deciding, and the copy a quality option changes
+	final ExpectedMarket market = new ExpectedMarket();
+	final ExpectedMarket optionMarket = new ExpectedMarket();
+
+	static DecisionBuffers get() {
+		return BUFFERS.get();
+	}
+
+}
@@ -4,5 +4,15 @@ public class ExpectedInfo {
 	public double profit;
 	public double demand;
 	public double loLimit, hiLimit;
-	
+	// Bound on the distance from the optimal price of the segment
+	public double priceError;
+
+	void set(ExpectedInfo other) {
+		profit = other.profit;
+		demand = other.demand;
+		loLimit = other.loLimit;
+		hiLimit = other.hiLimit;
+		priceError = other.priceError;
+	}
+
 }
\ No newline at end of file
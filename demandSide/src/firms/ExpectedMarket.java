@@ -1,137 +1,601 @@
 package firms;
 
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Optional;
-import java.util.TreeSet;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.apache.commons.math3.util.FastMath;
+
 import consumers.Consumers;
 import consumers.UtilityFunction;
 import demandSide.Market;
 
-public class ExpectedMarket extends TreeSet<Firm> {
+/*
+ * Competitors of the owner that would get a market segment, sorted by
+ * perceived quality as seen by the owner
+ * 
+ * It is an overlay on the offer snapshot shared by all firms: the owner is
+ * hidden and its neighbors are placed by the smoothed offers of its History.
+ * Competitors are then kept as if they entered one by one, see buildByEntry.
+ * It is built once per decision and copied for each quality option, because
+ * OptimalPrice takes out firms while searching. Both are DecisionBuffers, thus
+ * their arrays are reused from one decision to the next
+ */
+public class ExpectedMarket implements Iterable<Firm> {
 
-	private static final long serialVersionUID = 1L;
 	Firm owner;
 	Market market;
 	Consumers consumers;
 
+	// Read from the owner's competitor offers, valid while it decides
+	private CompetitorOffers offers;
+
+	private Firm[] firms = new Firm[0];
+	private double[] perceivedQ = new double[0];
+	private int size = 0;
+
+	// Relative gap between prices for a line to cover another one
+	private static final double COVER_MARGIN = 1e-9;
+
+	// Scratch of buildByEntry: indexes by firm ID, the competitors kept linked
+	// to their neighbors with their price and limit with the lower one, and the
+	// ones not covered by a neighbor
+	private int[] byID = new int[0], indexBySlot = new int[0], found = new int[0];
+	private int[] prevKept = new int[0], nextKept = new int[0];
+	private double[] price = new double[0], powQ = new double[0], loLimit = new double[0];
+	private IndexSet kept = new IndexSet();
+	private IndexSet uncoveredFromAbove = new IndexSet(), uncoveredFromBelow = new IndexSet();
+
+	ExpectedMarket() {
+	}
+
 	public ExpectedMarket(Firm owner) {
+		build(owner);
+	}
 
-		super(new CompareByPerceivedQ(owner));
+	/*
+	 * Competitors of owner, replacing the ones of the previous build
+	 */
+	ExpectedMarket build(Firm owner) {
 
 		this.owner = owner;
 		market = owner.market;
 		consumers = market.consumers;
+		offers = owner.getCompetitorOffers();
 
-		market.firms.stream().filter(f -> (!f.equals(owner))).forEach(this::add);
+		OfferSnapshot snapshot = market.firms.getOfferSnapshot();
+
+		clear(snapshot.size());
+		buildOverlay(snapshot);
+		buildByEntry(snapshot);
+
+		return this;
 
 	}
 
-	@Override
-	public boolean add(Firm f) {
+	/*
+	 * Same firms as other, that can be modified without changing other
+	 */
+	ExpectedMarket copyFrom(ExpectedMarket other) {
 
-		assert (f != null);
+		owner = other.owner;
+		market = other.market;
+		consumers = other.consumers;
+		offers = other.offers;
+
+		clear(other.size);
+		System.arraycopy(other.firms, 0, firms, 0, other.size);
+		System.arraycopy(other.perceivedQ, 0, perceivedQ, 0, other.size);
+		size = other.size;
+
+		return this;
+
+	}
 
-		if (checkEntry(f)) {
-			// Take out from the expelled firms
-			takeOutExpelledFirms(f);
-			return super.add(f);
+	/*
+	 * Empties the market, with room for capacity firms. Firms of previous
+	 * builds are let go
+	 */
+	private void clear(int capacity) {
+
+		if (firms.length < capacity) {
+			firms = new Firm[capacity];
+			perceivedQ = new double[capacity];
 		} else
-			return false;
+			Arrays.fill(firms, 0, size, null);
+
+		size = 0;
+
 	}
 
-	private boolean checkEntry(Firm f) {
+	/*
+	 * Snapshot firms in order, without the owner and with its neighbors moved
+	 * to their smoothed perceived quality
+	 */
+	private void buildOverlay(OfferSnapshot snapshot) {
+
+		History history = owner.getHistory();
+		Firm loN = history.getLowerNeighbor();
+		Firm hiN = history.getHigherNeighbor();
 
-		return getLoLimit(f) < getHiLimit(f);
+		Firm[] all = snapshot.getFirms();
+		for (int k = 0; k < snapshot.size(); k++) {
+			Firm f = all[k];
+			if ((f == owner) || (f == loN) || (f == hiN))
+				continue;
+
+			firms[size] = f;
+			perceivedQ[size] = offers.getQuality(f);
+			size++;
+		}
+
+		if ((loN != null) && (loN != owner) && snapshot.contains(loN))
+			insert(loN);
+
+		if ((hiN != null) && (hiN != owner) && (hiN != loN) && snapshot.contains(hiN))
+			insert(hiN);
 
 	}
 
-	private void takeOutExpelledFirms(Firm firm) {
+	private void insert(Firm f) {
 
-		Offer of = owner.getCompetitorPerceivedOffer(firm);
-		double q = of.getQuality();
-		double p = of.getPrice();
+		double q = offers.getQuality(f);
+		int pos = position(q, f);
 
-		Stream.concat(headSet(firm).stream(), tailSet(firm, false).stream())
-				.filter(f -> getPriceToExpel(q, Optional.of(f)).isPresent())
-				.filter(f -> p <= getPriceToExpel(q, Optional.of(f)).get()) .collect(Collectors.toList())
-				.forEach(this::remove);
+		System.arraycopy(firms, pos, firms, pos + 1, size - pos);
+		System.arraycopy(perceivedQ, pos, perceivedQ, pos + 1, size - pos);
+
+		firms[pos] = f;
+		perceivedQ[pos] = q;
+		size++;
 
 	}
 
-	private double getLoLimit(Firm f) {
+	/*
+	 * Keeps the competitors that would be left if they were added one by one by
+	 * ID, as the market was built before
+	 * 
+	 * A competitor is added if it has a segment between its neighbors among
+	 * the ones kept, and then takes out every one its price expels, each with
+	 * its neighbors before any is taken out. Firms with the entrant's perceived
+	 * quality are expelled by price alone and are tested one by one. The rest
+	 * are tested walking away from the entrant on each side, skipping the ones
+	 * covered by the last firm that was not expelled, see setCovered. Expelled
+	 * firms need not be next to the entrant, as limits are floored and changed
+	 * by recessions
+	 * 
+	 * Each firm is added and taken out once, in O(log F) each. But an entrant
+	 * also tests every firm on its sides that is not covered, thus the worst
+	 * case is O(F) per entrant and O(F^2) per build. Covers fail where lines
+	 * nearly cross, as with thousands of firms on a convex price curve: an
+	 * entrant then tests about 130 firms at 5000 firms and 2800 at 20000, see
+	 * ExpectedMarketBenchmark. Markets of the model have some hundreds of
+	 * firms at most, and their entrants test 3 to 4 firms on average, 14 at
+	 * most, thus builds take O(F log F) in practice
+	 */
+	private void buildByEntry(OfferSnapshot snapshot) {
+
+		int n = size;
+		orderByID(snapshot);
+		kept.clear(n);
+		uncoveredFromAbove.clear(n);
+		uncoveredFromBelow.clear(n);
+
+		if (powQ.length < n) {
+			price = new double[n];
+			powQ = new double[n];
+			loLimit = new double[n];
+			found = new int[n];
+			prevKept = new int[n];
+			nextKept = new int[n];
+		}
+
+		for (int e = 0; e < n; e++) {
+			int k = byID[e];
+			Firm f = firms[k];
+
+			int lo = kept.prev(k);
+			int hi = kept.next(k);
+			double fLoLimit = limit(firmAt(lo), f);
+			double fHiLimit = limit(f, firmAt(hi));
+			if (fLoLimit >= fHiLimit)
+				continue;
+
+			double q = perceivedQ[k];
+			double p = offers.getPrice(f);
+			price[k] = p;
+			powQ[k] = consumers.getUtilityFunction().powQuality(q);
+			int count = 0;
+
+			for (; (lo != IndexSet.NONE) && (perceivedQ[lo] == q); lo = prevKept[lo])
+				if (isExpelled(q, powQ[k], p, lo))
+					found[count++] = lo;
+			for (; (hi != IndexSet.NONE) && (perceivedQ[hi] == q); hi = nextKept[hi])
+				if (isExpelled(q, powQ[k], p, hi))
+					found[count++] = hi;
+
+			for (int g = lo; g != IndexSet.NONE;) {
+				if (isExpelled(q, powQ[k], p, g)) {
+					found[count++] = g;
+					g = prevKept[g];
+				} else
+					g = uncoveredFromAbove.prev(g);
+			}
+
+			for (int g = hi; g != IndexSet.NONE;) {
+				if (isExpelled(q, powQ[k], p, g)) {
+					found[count++] = g;
+					g = nextKept[g];
+				} else
+					g = uncoveredFromBelow.next(g);
+			}
+
+			int expelled = count;
+			for (int i = 0; i < expelled; i++) {
+				int r = found[i];
+				kept.remove(r);
+				uncoveredFromAbove.remove(r);
+				uncoveredFromBelow.remove(r);
+
+				if (prevKept[r] != IndexSet.NONE)
+					nextKept[prevKept[r]] = nextKept[r];
+				if (nextKept[r] != IndexSet.NONE)
+					prevKept[nextKept[r]] = prevKept[r];
+			}
+
+			lo = kept.prev(k);
+			hi = kept.next(k);
+			kept.add(k);
+			prevKept[k] = lo;
+			nextKept[k] = hi;
+			if (lo != IndexSet.NONE)
+				nextKept[lo] = k;
+			if (hi != IndexSet.NONE)
+				prevKept[hi] = k;
+
+			// Limits and covers depend on the neighbors, which changed around f
+			// and each firm taken out. These are found in the set, as the links
+			// of the ones taken out may point to others taken out
+			if (expelled > 0) {
+				fLoLimit = limit(firmAt(lo), f);
+				fHiLimit = limit(f, firmAt(hi));
+			}
+
+			loLimit[k] = fLoLimit;
+			if (hi != IndexSet.NONE)
+				loLimit[hi] = fHiLimit;
+			for (int i = 0; i < expelled; i++) {
+				int next = kept.next(found[i]);
+				if ((next != IndexSet.NONE) && (next != k) && (next != hi))
+					loLimit[next] = limit(firmAt(prevKept[next]), firms[next]);
+			}
+
+			setCovered(k);
+			setCovered(lo);
+			setCovered(hi);
+			for (int i = 0; i < expelled; i++) {
+				setCovered(kept.prev(found[i]));
+				setCovered(kept.next(found[i]));
+			}
+		}
+
+		// Kept firms are in order and not after their index, thus moved in place
+		int top = 0;
+		for (int k = kept.next(IndexSet.NONE); k != IndexSet.NONE; k = nextKept[k]) {
+			firms[top] = firms[k];
+			perceivedQ[top] = perceivedQ[k];
+			top++;
+		}
+
+		Arrays.fill(firms, top, n, null);
+		size = top;
 
-		Optional<Offer> loOf, of;
+	}
 
-		loOf = Optional.ofNullable(lower(f)).map(loF -> owner.getCompetitorPerceivedOffer(loF));
+	/*
+	 * Firm at index k would be expelled by price p at perceivedQ, given its
+	 * neighbors among the ones kept. Same as priceToExpel, from the limits and
+	 * utilities of quality kept while building
+	 */
+	private boolean isExpelled(double perceivedQ, double powQ, double p, int k) {
+
+		UtilityFunction utility = consumers.getUtilityFunction();
+		double price = this.price[k];
+		double pToE;
+
+		if (perceivedQ == this.perceivedQ[k])
+			pToE = price - owner.market.offerParams.getMinDeltaPrice();
+
+		else if (perceivedQ > this.perceivedQ[k])
+			pToE = (loLimit[k] == Double.POSITIVE_INFINITY) ? Double.POSITIVE_INFINITY
+					: utility.priceToExpelFromAbove(powQ, price, this.powQ[k], loLimit[k]);
+
+		else {
+			double hiLimit = getHiLimit(k);
+			pToE = (hiLimit == Double.POSITIVE_INFINITY) ? 0.0
+					: utility.priceToExpelFromBelow(powQ, price, this.powQ[k], hiLimit);
+		}
+
+		return (pToE != Double.POSITIVE_INFINITY) && (p <= pToE);
+
+	}
+
+	/*
+	 * Limit of the kept firm at index k with its higher neighbor
+	 */
+	private double getHiLimit(int k) {
+		int hi = nextKept[k];
+		return (hi == IndexSet.NONE) ? Double.POSITIVE_INFINITY : loLimit[hi];
+	}
+
+	/*
+	 * Whether the kept firm at index k is covered by its neighbors, given the
+	 * limits with them
+	 * 
+	 * The price that expels a firm from above is a line on the utility of the
+	 * entrant's quality, price + loLimit * (powQ - firm's powQ), and from below
+	 * the same with its limit with the higher neighbor. A firm is covered from
+	 * above when its line is below the one of its higher neighbor for all
+	 * entrants above the neighbor: its line is below the neighbor's price at
+	 * the neighbor and it is not steeper. Then the firm is not expelled if its
+	 * neighbor isn't. The same from below, with the lower neighbor. Firms that
+	 * no price expels from above are always covered. Lines that nearly cross
+	 * are taken as not covered, so that roundings don't matter
+	 */
+	private void setCovered(int k) {
+
+		if (k == IndexSet.NONE)
+			return;
 
-		of = Optional.of(owner.getCompetitorPerceivedOffer(f));
+		double p = price[k];
+		int lo = prevKept[k];
+		int hi = nextKept[k];
+		double hiLimit = getHiLimit(k);
 
-		return consumers.limitingWelfareParamPerceivedByFirms(loOf, of);
+		boolean coveredFromAbove = (loLimit[k] == Double.POSITIVE_INFINITY)
+				|| ((hiLimit != Double.POSITIVE_INFINITY) && (loLimit[k] <= hiLimit)
+						&& isBelow(p + loLimit[k] * (powQ[hi] - powQ[k]), price[hi]));
+
+		if (coveredFromAbove)
+			uncoveredFromAbove.remove(k);
+		else
+			uncoveredFromAbove.add(k);
+
+		boolean coveredFromBelow = (lo != IndexSet.NONE) && (hiLimit != Double.POSITIVE_INFINITY)
+				&& (loLimit[k] != Double.POSITIVE_INFINITY) && (hiLimit >= loLimit[k])
+				&& isBelow(p - hiLimit * (powQ[k] - powQ[lo]), price[lo]);
+
+		if (coveredFromBelow)
+			uncoveredFromBelow.remove(k);
+		else
+			uncoveredFromBelow.add(k);
+
+	}
+
+	private static boolean isBelow(double p1, double p2) {
+		return p1 <= p2 - COVER_MARGIN * (FastMath.abs(p1) + FastMath.abs(p2));
+	}
+
+	private Firm firmAt(int k) {
+		return (k == IndexSet.NONE) ? null : firms[k];
 	}
 
-	private double getHiLimit(Firm f) {
+	/*
+	 * Indexes of the market by firm ID, in O(F) from the snapshot's firms by
+	 * ID, found at their index through their slots
+	 */
+	private void orderByID(OfferSnapshot snapshot) {
 
-		Optional<Offer> hiOf, of;
+		int slots = market.firms.getSlotsCount();
+		if (indexBySlot.length < slots)
+			indexBySlot = new int[slots];
 
-		hiOf = Optional.ofNullable(higher(f)).map(hiF -> owner.getCompetitorPerceivedOffer(hiF));
+		if (byID.length < size)
+			byID = new int[size];
 
-		of = Optional.of(owner.getCompetitorPerceivedOffer(f));
+		for (int k = 0; k < size; k++)
+			indexBySlot[firms[k].getSlot()] = k;
 
-		return consumers.limitingWelfareParamPerceivedByFirms(of, hiOf);
+		// The market has the snapshot's firms but the owner
+		int e = 0;
+		Firm[] all = snapshot.getFirmsByID();
+		for (int i = 0; i < snapshot.size(); i++)
+			if (all[i] != owner)
+				byID[e++] = indexBySlot[all[i].getSlot()];
+
+		assert e == size;
 
 	}
 
+	private double limit(Firm loF, Firm hiF) {
+		return consumers.limitingWelfareParamPerceivedBy(owner, loF, hiF);
+	}
+
+	/*
+	 * Index of the first firm that is not before f
+	 */
+	private int position(double q, Firm f) {
+
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (OfferSnapshot.compare(perceivedQ[mid], firms[mid], q, f) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		return lo;
+
+	}
+
+	private int position(Firm f) {
+		return position(offers.getQuality(f), f);
+	}
+
+	/*
+	 * Index of f, or -1 if f is not in the market
+	 */
+	private int indexOf(Firm f) {
+		int pos = position(f);
+		return ((pos < size) && (firms[pos] == f)) ? pos : -1;
+	}
+
+	/*
+	 * Firm before f, whether f is in the market or not. Null if there is none
+	 */
+	public Firm lower(Firm f) {
+		int pos = position(f);
+		return (pos > 0) ? firms[pos - 1] : null;
+	}
+
+	/*
+	 * Firm after f, whether f is in the market or not. Null if there is none
+	 */
+	public Firm higher(Firm f) {
+
+		int pos = position(f);
+		if ((pos < size) && (firms[pos] == f))
+			pos++;
+
+		return (pos < size) ? firms[pos] : null;
+
+	}
+
+	public boolean contains(Firm f) {
+		return indexOf(f) >= 0;
+	}
+
+	public boolean remove(Firm f) {
+
+		int pos = indexOf(f);
+		if (pos < 0)
+			return false;
+
+		removeAt(pos);
+		return true;
+
+	}
+
+	private void removeAt(int pos) {
+
+		System.arraycopy(firms, pos + 1, firms, pos, size - pos - 1);
+		System.arraycopy(perceivedQ, pos + 1, perceivedQ, pos, size - pos - 1);
+
+		size--;
+		firms[size] = null;
+
+	}
+
+	/*
+	 * Takes out the firms that no price below maxPrice would expel, keeping the
+	 * ones that any price expels
+	 * 
+	 * Firms are tested in order, each one with the market left by the previous
+	 * removals
+	 */
+	public void removeNotExpelledBelow(double perceivedQ, double maxPrice) {
+
+		for (int k = 0; k < size;) {
+			double pToE = priceToExpel(perceivedQ, firms[k]);
+			if ((pToE != Double.POSITIVE_INFINITY) && (Double.compare(pToE, maxPrice) >= 0))
+				removeAt(k);
+			else
+				k++;
+		}
+
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/*
+	 * Firm at index k, in increasing perceived quality
+	 */
+	public Firm get(int k) {
+		return firms[k];
+	}
+
+	public Stream<Firm> stream() {
+		return Arrays.stream(firms, 0, size);
+	}
+
+	@Override
+	public Iterator<Firm> iterator() {
+		return stream().iterator();
+	}
+
+	/*
+	 * Highest firm with perceived quality not above perceivedQ
+	 */
 	public Optional<Firm> getLowerFirmGivenQ(double perceivedQ) {
 
-		// The reduce operation is to get the highest element of the ones that
-		// have lower perceived q
-		// This is the last element because the tree is ordered
-		return stream().filter(f -> owner.getCompetitorPerceivedOffer(f).getQuality() <= perceivedQ)
-				.reduce((a, b) -> b);
+		int pos = upperBound(perceivedQ);
+		return (pos > 0) ? Optional.of(firms[pos - 1]) : Optional.empty();
 
 	}
 
+	/*
+	 * Lowest firm with perceived quality above perceivedQ
+	 */
 	public Optional<Firm> getHigherFirmGivenQ(double perceivedQ) {
 
-		return stream().filter(f -> owner.getCompetitorPerceivedOffer(f).getQuality() > perceivedQ)
-				.findFirst();
+		int pos = upperBound(perceivedQ);
+		return (pos < size) ? Optional.of(firms[pos]) : Optional.empty();
+
+	}
+
+	/*
+	 * Index of the first firm with perceived quality above q
+	 */
+	public int upperBound(double q) {
+
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (perceivedQ[mid] <= q)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		return lo;
 
 	}
 
 	/*
 	 * It returns the price below which f is expelled.
 	 * 
-	 * Returns empty if any price expels f
+	 * Returns POSITIVE_INFINITY if any price expels f
 	 * 
 	 * Returns 0 if no price expels f
 	 */
-	public Optional<Double> getPriceToExpel(double perceivedQ, Optional<Firm> optF) {
-
-		Firm f;
+	double priceToExpel(double perceivedQ, Firm f) {
+		return priceToExpel(perceivedQ, f, lower(f), higher(f));
+	}
 
-		if (optF.isPresent())
-			f = optF.get();
-		else
-			return Optional.empty();
+	/*
+	 * Same as above, given f's current neighbors, either of which may be null
+	 */
+	public double priceToExpel(double perceivedQ, Firm f, Firm fLower, Firm fHigher) {
 
-		Offer firmOf = owner.getCompetitorPerceivedOffer(f);
-		double firmPerceivedQ = firmOf.getQuality();
-		Optional<Double> retval;
+		double firmPerceivedQ = offers.getQuality(f);
 
 		if (perceivedQ == firmPerceivedQ)
 			// Any price below f's price expels f
-			retval = Optional.of(firmOf.getPrice() - Offer.getMinDeltaPrice());
+			return offers.getPrice(f) - owner.market.offerParams.getMinDeltaPrice();
 
 		else if (perceivedQ > firmPerceivedQ)
-
-			retval = UtilityFunction.priceToExpelFromAbove(perceivedQ, owner, f, Optional.ofNullable(lower(f)));
+			return consumers.getUtilityFunction().priceToExpelFromAbove(perceivedQ, owner, f, fLower);
 
 		else
-			retval = Optional.of(UtilityFunction.priceToExpelFromBelow(perceivedQ, owner, f, Optional.ofNullable(higher(f))));
-
-		return retval;
+			return consumers.getUtilityFunction().priceToExpelFromBelow(perceivedQ, owner, f, fHigher);
 
 	}
 
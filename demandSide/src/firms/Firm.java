@@ -1,116 +1,295 @@
 package firms;
 
-import static repast.simphony.essentials.RepastEssentials.GetParameter;
-
-import java.util.ArrayList;
-import java.util.Optional;
-import java.util.stream.Stream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 import org.apache.commons.math3.util.FastMath;
 
-import consumers.Consumer;
+import cern.jet.random.Uniform;
 import consumers.Consumers;
-import consumers.UtilityFunction;
+import demandSide.FastPow;
 import demandSide.Market;
 import demandSide.RunPriority;
+import demandSide.SplitMixEngine;
 import firmTypes.FirmTypes;
 import optimalPrice.OptimalPrice;
+import optimalPrice.OptimalPriceResult;
 import repast.simphony.engine.schedule.ScheduledMethod;
-import repast.simphony.essentials.RepastEssentials;
 
 public abstract class Firm {
 
+	// Most quality options a firm type returns
+	public static final int MAX_QUALITY_OPTIONS = 3;
+
 	public Market market;
 
 	private Decision decision;
 	private History history;
-	private int demand = 0;
-	private double profit = 0.0;
 
-	private double accumProfit = 0;
-	private int accumZeroDemand = 0;
-	private double autoRegressiveProfit = 0;
+	// Set by decide and decideEntry, and swapped with decision when it is taken
+	private Decision nextDecision = new Decision();
+
+	// Offer, demand and profits are kept in the firms table at slot
+	private FirmTable table;
 	private double fixedCost;
 	private double born;
 
-	private ArrayList<Consumer> notYetKnownBy;
+	// Quality of the offer to enter the market
+	private double initialQuality;
+
+	private Ignorance notYetKnownBy;
+	private SplitMixEngine diffusionEngine;
+	private Uniform diffusionDistrib;
 	private int triedBy = 0;
 
-	protected static long firmIDCounter;
+	// Updated whenever the decision or triedBy changes, read by competitors
+	private Offer perceivedOffer;
 
-	private long firmIntID = firmIDCounter++;
-	private String ID = "Firm_" + firmIntID;
+	// Competitors' offers as seen by this firm, refreshed when it decides
+	private CompetitorOffers competitorOffers = new CompetitorOffers();
 
-	public static void resetCounter() {
-		firmIDCounter = 1;
-	}
+	// Quality options of the last decision, and the ones skipped by their bound
+	private int qualityOptions = 0;
+	private int prunedQualityOptions = 0;
 
+	// Stable while the firm is in the market
+	private int slot = -1;
+
+	private long firmIntID;
+	private String ID;
+
+	/*
+	 * Creates a candidate to enter the market. It is not in the market, nor in
+	 * the context, until it enters
+	 */
 	public Firm(Market market) {
 		this.market = market;
 
-		market.firms.add(this);
+		// Draws of the firm depend on its ID
+		firmIntID = market.nextFirmID();
+		ID = "Firm_" + firmIntID;
+
+		table = market.firms.getTable();
 
-		notYetKnownBy = new ArrayList<Consumer>();
+		notYetKnownBy = new Ignorance(0);
 
-		fixedCost = (Double) market.firms.getFixedCostDistrib().nextDouble();
+		fixedCost = market.firms.drawFixedCost(this);
+		initialQuality = market.firms.drawInitialQuality(this);
 
-		born = RepastEssentials.GetTickCount();
+		born = market.getTick();
 
 		history = new History(market);
 
-		if (!makeInitialOffer())
-			market.firms.remove(this);
+	}
 
+	/*
+	 * Cheap screen of the candidate: false if no price could give it a segment
+	 */
+	boolean canEnter() {
+		return OptimalPrice.getProfitBound(this, initialQuality) > Double.NEGATIVE_INFINITY;
 	}
 
-	private boolean makeInitialOffer() {
+	/*
+	 * Gets the offer to enter without changing the market, thus candidates can
+	 * decide at the same time. Returns false if there is none
+	 */
+	boolean decideEntry() {
+
+		competitorOffers.refresh(this);
 
-		double realQ;
+		DecisionBuffers buffers = DecisionBuffers.get();
+		OptimalPriceResult opr = getOptPrice(initialQuality, buffers.market.build(this), buffers);
 
-		realQ = getRandomQuality();
+		if (opr == null)
+			return false;
 
-		Optional<Decision> optPriceDecision = getOptPriceDecision(realQ);
-		optPriceDecision.ifPresent(opd -> setNewDecision(opd));
+		nextDecision.set(opr, initialQuality);
+		return true;
 
-		return optPriceDecision.isPresent();
+	}
+
+	/*
+	 * Enters with the offer of decideEntry
+	 */
+	void enter() {
+
+		Decision d = nextDecision;
+		nextDecision = new Decision();
+		enter(d);
 
 	}
 
-	private Double getRandomQuality() {
+	void enter(Decision d) {
+
+		market.firms.add(this);
+		setNewDecision(d);
 
-		return market.firms.getInitialQualityDistrib().nextDouble();
 	}
 
 	private void setNewDecision(Decision d) {
 		assert d != null;
 
 		decision = d;
+		slot = market.firms.assignSlot(this);
+		updateTableOffer();
+		updatePerceivedOffer();
+		market.consumers.markOfferChanged(this);
 		market.firms.addToFirmLists(this);
 		initializeConsumerKnowledge();
 	}
 
-	@ScheduledMethod(start = 1, priority = RunPriority.RESET_DEMAND_PRIORITY, interval = 1)
-	public void resetDemand() {
-		demand = 0;
+	/*
+	 * State of a firm in the market, see Firms.writeState. Competitor offers
+	 * are refreshed when deciding, and the history is written apart as it
+	 * refers to other firms
+	 */
+	void writeState(DataOutput out) throws IOException {
+
+		out.writeLong(firmIntID);
+		out.writeInt(slot);
+		out.writeDouble(fixedCost);
+		out.writeDouble(born);
+		out.writeDouble(initialQuality);
+		out.writeInt(triedBy);
+		out.writeInt(qualityOptions);
+		out.writeInt(prunedQualityOptions);
+
+		out.writeDouble(decision.getPrice());
+		out.writeDouble(decision.getQuality());
+		out.writeDouble(decision.expInf.profit);
+		out.writeDouble(decision.expInf.demand);
+		out.writeDouble(decision.expInf.loLimit);
+		out.writeDouble(decision.expInf.hiLimit);
+		out.writeDouble(decision.expInf.priceError);
+
+		notYetKnownBy.writeState(out);
+		out.writeLong(diffusionEngine.getState());
+
 	}
 
-	@ScheduledMethod(start = 1, priority = RunPriority.MAKE_OFFER_PRIORITY, interval = 1, shuffle = true)
-	public void makeOffer() {
+	/*
+	 * Reads the state into a new firm, once the firms table is read
+	 */
+	void readState(DataInput in) throws IOException {
+
+		firmIntID = in.readLong();
+		ID = "Firm_" + firmIntID;
+		slot = in.readInt();
+		fixedCost = in.readDouble();
+		born = in.readDouble();
+		initialQuality = in.readDouble();
+		triedBy = in.readInt();
+		qualityOptions = in.readInt();
+		prunedQualityOptions = in.readInt();
+
+		Offer offer = new Offer(in.readDouble(), in.readDouble());
+		ExpectedInfo expInf = new ExpectedInfo();
+		expInf.profit = in.readDouble();
+		expInf.demand = in.readDouble();
+		expInf.loLimit = in.readDouble();
+		expInf.hiLimit = in.readDouble();
+		expInf.priceError = in.readDouble();
+		decision = new Decision(offer, expInf);
+
+		notYetKnownBy = Ignorance.readState(in);
+		diffusionEngine = market.firms.createDiffusionEngine(this);
+		diffusionEngine.setState(in.readLong());
+		diffusionDistrib = new Uniform(diffusionEngine);
+
+		updatePerceivedOffer();
+
+	}
+
+	/*
+	 * Called by Firms on every tick
+	 */
+	void makeOffer() {
+		updateDecision(decide());
+	}
+
+	/*
+	 * Gets the best decision without changing the market, thus firms can decide
+	 * at the same time. Only the firm's history of competitors is updated
+	 * 
+	 * Returns false if there is no valid new decision
+	 */
+	boolean decide() {
 
 		// Update competitors expected offers
 		history.updateCompetitorsPerceivedOffers(this);
+		competitorOffers.refresh(this);
+
+		// Competitors don't depend on the quality option
+		DecisionBuffers buffers = DecisionBuffers.get();
+		buffers.market.build(this);
 
 		// Gets possible quality options
 		// Then gets the optimal price for each quality option
 		// Gets the best decision according to expected profit
-		// If there is a valid new decision, updates its decision otherwise keeps previous
-		// one
-		getRealQualityOptions().map(q -> getOptPriceDecision(q)).max(new DecisionComparator())
-				.ifPresent(this::updateDecision);
+		// If there is no valid new decision, previous one is kept
+		return getBestDecision(getRealQualityOptions(buffers.options), buffers);
 
 	}
 
-	public abstract Stream<Double> getRealQualityOptions();
+	/*
+	 * Branch and bound on quality options
+	 * 
+	 * Options are evaluated from the highest profit bound to the lowest, and
+	 * the search stops at the first one whose bound cannot beat the best
+	 * decision found, see OptimalPrice.getProfitBound
+	 */
+	private boolean getBestDecision(int n, DecisionBuffers buffers) {
+
+		double[] options = buffers.options;
+		double[] bound = buffers.bound;
+		for (int k = 0; k < n; k++)
+			bound[k] = OptimalPrice.getProfitBound(this, options[k]);
+
+		// Few options, sorted by insertion from highest bound to lowest
+		for (int k = 1; k < n; k++) {
+			double q = options[k], b = bound[k];
+			int j = k - 1;
+			for (; (j >= 0) && (bound[j] < b); j--) {
+				options[j + 1] = options[j];
+				bound[j + 1] = bound[j];
+			}
+			options[j + 1] = q;
+			bound[j + 1] = b;
+		}
+
+		// The best decision found is kept in nextDecision
+		Decision best = nextDecision;
+		boolean found = false;
+		int evaluated = 0;
+
+		for (; evaluated < n; evaluated++) {
+			if ((bound[evaluated] == Double.NEGATIVE_INFINITY)
+					|| (found && (bound[evaluated] <= best.expInf.profit)))
+				break;
+
+			OptimalPriceResult opr = getOptPrice(options[evaluated], buffers.market, buffers);
+
+			assert (opr == null) || (opr.expInf.profit <= bound[evaluated] + 1.e-9 * FastMath.abs(bound[evaluated]));
+
+			if ((opr != null) && (!found || (opr.expInf.profit > best.expInf.profit))) {
+				best.set(opr, options[evaluated]);
+				found = true;
+			}
+		}
+
+		qualityOptions = n;
+		prunedQualityOptions = n - evaluated;
+
+		return found;
+
+	}
+
+	/*
+	 * Writes the real quality options in options, at most MAX_QUALITY_OPTIONS,
+	 * and returns how many they are
+	 */
+	public abstract int getRealQualityOptions(double[] options);
 
 	public abstract FirmTypes getFirmType();
 
@@ -133,26 +312,46 @@ public abstract class Firm {
 	 * marginal cost
 	 * 
 	 * Decision includes expected demand and expected Gross Profit
+	 * 
+	 * Returns null if there is none. The result is reused by the next call on
+	 * the thread, see OptimalPrice.get
 	 */
 
-	private Optional<Decision> getOptPriceDecision(double realQ) {
+	private OptimalPriceResult getOptPrice(double realQ, ExpectedMarket expMkt, DecisionBuffers buffers) {
 
-		ExpectedMarket expMkt = new ExpectedMarket(this);
+		// OptimalPrice takes firms out of the market it receives
+		ExpectedMarket optionMkt = buffers.optionMarket.copyFrom(expMkt);
+		return OptimalPrice.get(this, realQ, optionMkt);
 
-		Optional<Decision> opd = OptimalPrice.get(this, realQ, expMkt).map(opr -> new Decision(opr, realQ));
+	}
 
-		return opd;
+	/*
+	 * Takes the decision of decide, if it found one
+	 */
+	void updateDecision(boolean decided) {
 
-	}
+		// If there is no new decision nothing is done, thus previous decision is kept
+		if (!decided)
+			return;
 
-	private void updateDecision(Optional<Decision> optD) {
+		Decision d = nextDecision;
+		if ((d.getPrice() != getPrice()) || (d.getQuality() != getQuality()))
+			market.consumers.markOfferChanged(this);
+
+		// Firms by quality are sorted by the offer in the table, thus the
+		// firm is taken out while it changes, unless it keeps its place. Adding
+		// it allocates an entry of the set
+		boolean keepsPlace = market.firms.keepsPlaceByQ(this, d.getPrice(), d.getQuality());
+		if (!keepsPlace)
+			market.firms.firmsByQ.remove(this);
+		nextDecision = decision;
+		decision = d;
+		updateTableOffer();
+		if (!keepsPlace)
+			market.firms.firmsByQ.add(this);
+		updatePerceivedOffer();
+		updateConsumerKnowledge();
 
-		// If decision is empty nothing is done, thus previous decision is kept
-		optD.ifPresent(d -> {
-			market.firms.updateFirmLists(this, getQuality(), d.getQuality());
-			decision = d;
-			updateConsumerKnowledge();
-		});
 	}
 
 	public double getPerceivedQuality() {
@@ -168,83 +367,93 @@ public abstract class Firm {
 		// real q weighted by consumers already tried the firm
 		// disc q weighted by consumers didn't try the firm
 
-		double mktSize = market.consumers.size();
+		double mktSize = market.consumers.getMarketSize();
 		double notTriedBy = mktSize - triedBy;
 
-		double avgDiscountFactor = (Double) GetParameter("qualityDiscountMean");
+		double avgDiscountFactor = market.params.qualityDiscountMean;
 		return (triedBy + avgDiscountFactor * notTriedBy) / mktSize;
 
 	}
 
+	/*
+	 * The returned offer is shared, it should not be modified
+	 */
 	public Offer getPerceivedOffer() {
-
-		Offer retval = new Offer(decision.getOffer());
-		retval.setQuality(getPerceivedQuality());
-
-		return retval;
-
+		return perceivedOffer;
 	}
 
-	public Offer getCompetitorPerceivedOffer(Firm f) {
-		return history.getCompetitorPerceivedOffer(f);
+	private void updateTableOffer() {
+		table.setOffer(slot, decision.getPrice(), decision.getQuality(), getUnitCost(decision.getQuality()));
 	}
 
-	@ScheduledMethod(start = 1, priority = RunPriority.NEXT_STEP_FIRM_PRIORITY, interval = 1)
-	public void nextStep() {
+	private void updatePerceivedOffer() {
 
-		double currentProfitWeight = market.firms.currentProfitWeight;
-		// This is run after all offers are made and consumers have chosen
-		// Calculates profit, accumProfit and kills the firm if necessary
+		if (perceivedOffer == null)
+			perceivedOffer = new Offer(decision.getOffer());
+		else
+			perceivedOffer.setPrice(decision.getPrice());
 
-		// Calculate profits of period
-		profit = calcProfit(getPrice(), getUnitCost(getQuality()), getDemand(), getFixedCost());
+		perceivedOffer.setQuality(getPerceivedQuality());
 
-		accumProfit += getProfit();
+		market.firms.getOfferSnapshot().invalidate();
 
-		// Accumulates continuos zero demand periods
-		if (getDemand() == 0)
-			accumZeroDemand += 1;
-		else
-			accumZeroDemand = 0;
+	}
 
-		if (born == RepastEssentials.GetTickCount())
-			// Entry moment
-			autoRegressiveProfit = getProfit();
-		else
-			autoRegressiveProfit = currentProfitWeight * getProfit() + (1 - currentProfitWeight) * autoRegressiveProfit;
+	public Offer getCompetitorPerceivedOffer(Firm f) {
+		return history.getCompetitorPerceivedOffer(f);
+	}
 
-		if (isToBeKilled())
-			Market.toBeKilled.add(this);
+	/*
+	 * Valid while the firm decides
+	 */
+	public CompetitorOffers getCompetitorOffers() {
+		return competitorOffers;
+	}
 
+	History getHistory() {
+		return history;
 	}
 
 	private void initializeConsumerKnowledge() {
 
-		notYetKnownBy.addAll(market.consumers);
+		Consumers consumers = market.consumers;
+		int mktSize = consumers.getMarketSize();
 
-		// Take out of the list the initial "knower's"
-		getFromIgnorance(
-				FastMath.round((Double) GetParameter("initiallyKnownByPerc") * market.consumers.getMarketSize()));
+		long initiallyKnownBy = FastMath.round(market.firms.initiallyKnownByPerc * mktSize);
+		diffusionEngine = market.firms.createDiffusionEngine(this);
+		diffusionDistrib = new Uniform(diffusionEngine);
 
-	}
+		if (initiallyKnownBy >= mktSize) {
+			// Known by all, no consumer is drawn
+			consumers.letAllKnow(this);
+			notYetKnownBy = new Ignorance(0);
 
-	private void getFromIgnorance(long amount) {
-		Consumer c;
+		} else {
+			notYetKnownBy = new Ignorance(mktSize);
 
-		for (int k = 0; (k < amount) && !notYetKnownBy.isEmpty(); k++) {
+			// Take out of ignorance the initial "knower's"
+			getFromIgnorance(initiallyKnownBy);
+		}
 
-			int i = market.firms.getGetFromIgnoranceDistrib().nextIntFromTo(0, notYetKnownBy.size() - 1);
+	}
 
-			c = notYetKnownBy.get(i);
-			notYetKnownBy.remove(i);
-			c.addToKnownFirms(this);
+	/*
+	 * Lets amount random consumers know the firm, in O(amount)
+	 * 
+	 * Consumers are drawn by a Fisher-Yates shuffle over their creation order,
+	 * see Ignorance. For a given seed the same consumers are revealed in the
+	 * same order, whatever other firms do, as each firm has its own stream
+	 */
+	private void getFromIgnorance(long amount) {
+
+		for (long k = 0; (k < amount) && !notYetKnownBy.isEmpty(); k++)
+			market.consumers.letKnow(notYetKnownBy.draw(diffusionDistrib), this);
 
-		}
 	}
 
 	private void updateConsumerKnowledge() {
 		Consumers consumers = market.consumers;
-		int mktSize = consumers.size();
+		int mktSize = consumers.getMarketSize();
 
 		// if all Consumers know the firm then return
 		if (notYetKnownBy.isEmpty())
@@ -275,37 +484,48 @@ public abstract class Firm {
 		// Cost grows quadratically with quality
 		double costScale = market.firms.costScale;	
 		double costExponent = market.firms.costExponent;
-		return costScale * FastMath.pow(realQuality, costExponent);
-
-	}
-
-	private boolean isToBeKilled() {
-
-		// Returns true if firm should exit the market
-		boolean minProf = autoRegressiveProfit < market.firms.minimumProfit;
-		boolean maxZeroDemand = accumZeroDemand > market.firms.maxZeroDemand;
-
-		return (minProf || maxZeroDemand);
+		return costScale * FastPow.pow(realQuality, costExponent);
 
 	}
 
 	public void killFirm() {
 
+		// Consumers have already forgotten the firm, see Firms.wipeDeadFirms
 		market.firms.removeFromFirmLists(this);
 
-		// Remove firm from consumers lists
-		market.consumers.forEach((c) -> c.removeTraceOfFirm(this));
+		market.firms.releaseSlot(this);
 
 		market.firms.remove(this);
 
 	}
 
-	public void addNewConsumer() {
-		triedBy++;
+	public void addNewConsumers(int amount) {
+		if (amount == 0)
+			return;
+
+		triedBy += amount;
+		updatePerceivedOffer();
 	}
 
 	public void setDemand(int i) {
-		demand = i;
+		table.demand[slot] = i;
+	}
+
+	/*
+	 * Under Repast each firm is scheduled, without Repast Firms does it for
+	 * all of them
+	 */
+	@ScheduledMethod(start = 1, priority = RunPriority.RESET_DEMAND_PRIORITY, interval = 1)
+	public void resetDemand() {
+		table.demand[slot] = 0;
+	}
+
+	/*
+	 * Same as above, see Firms.nextStep
+	 */
+	@ScheduledMethod(start = 1, priority = RunPriority.NEXT_STEP_FIRM_PRIORITY, interval = 1)
+	public void nextStep() {
+		market.firms.nextStep(this);
 	}
 
 	/*
@@ -315,6 +535,10 @@ public abstract class Firm {
 		return demand * getKnownByPerc();
 	}
 
+	boolean isKnownByAll() {
+		return notYetKnownBy.isEmpty();
+	}
+
 	private double getKnownByPerc() {
 		return 1.0 - (double) notYetKnownBy.size() / (double) market.consumers.getMarketSize();
 	}
@@ -327,6 +551,9 @@ public abstract class Firm {
 
 		Offer o = getOffer();
 		o.setPrice(p);
+		updateTableOffer();
+		updatePerceivedOffer();
+		market.consumers.markOfferChanged(this);
 
 		market.firms.addToFirmLists(this);
 	}
@@ -336,6 +563,9 @@ public abstract class Firm {
 
 		Offer o = getOffer();
 		o.setQuality(q);
+		updateTableOffer();
+		updatePerceivedOffer();
+		market.consumers.markOfferChanged(this);
 
 		market.firms.addToFirmLists(this);
 	}
@@ -345,7 +575,7 @@ public abstract class Firm {
 	 */
 
 	public int getDemand() {
-		return demand;
+		return table.demand[slot];
 	}
 
 	public double getExpectedDemand() {
@@ -364,12 +594,24 @@ public abstract class Firm {
 		return decision.expInf.hiLimit;
 	}
 
+	public int getQualityOptions() {
+		return qualityOptions;
+	}
+
+	public int getPrunedQualityOptions() {
+		return prunedQualityOptions;
+	}
+
+	public double getExpectedPriceError() {
+		return decision.expInf.priceError;
+	}
+
 	public Offer getOffer() {
 		return decision.getOffer();
 	}
 
 	public double getProfit() {
-		return profit;
+		return table.profit[slot];
 	}
 
 	public double getSales() {
@@ -377,21 +619,25 @@ public abstract class Firm {
 	}
 
 	public double getPrice() {
-		return decision.getPrice();
+		return table.price[slot];
 	}
 
 	public double getQuality() {
-		return decision.getQuality();
+		return table.quality[slot];
 	}
 
 	public double getAge() {
-		return RepastEssentials.GetTickCount() - born;
+		return market.getTick() - born;
 	}
 
 	public String getFirmID() {
 		return ID;
 	}
 
+	public int getSlot() {
+		return slot;
+	}
+
 	public long getFirmIntID() {
 		return firmIntID;
 	}
@@ -401,25 +647,29 @@ public abstract class Firm {
 	}
 
 	public double getAccumProfit() {
-		return accumProfit;
+		return table.accumProfit[slot];
 	}
 
 	public double getAccumZeroDemand() {
-		return accumZeroDemand;
+		return table.accumZeroDemand[slot];
 	}
 
 	public double getAutoRegressiveProfit() {
-		return autoRegressiveProfit;
+		return table.autoRegressiveProfit[slot];
 	}
 
 	public double getUnitCost() {
-		return getUnitCost(getQuality());
+		return table.unitCost[slot];
 	}
 
 	public double getFixedCost() {
 		return fixedCost;
 	}
 
+	double getBorn() {
+		return born;
+	}
+
 	public double getGrossProfit() {
 		return getProfit() + getFixedCost();
 	}
@@ -429,7 +679,7 @@ public abstract class Firm {
 	}
 
 	public double getPoorestConsumer() {
-		return UtilityFunction.getMinWelfareParamAceptingOfferPerceivedByFirms(getPerceivedOffer());
+		return market.consumers.getUtilityFunction().getMinWelfareParamAceptingOfferPerceivedByFirms(getPerceivedOffer());
 	}
 
 	public double getMargin() {
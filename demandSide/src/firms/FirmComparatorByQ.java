@@ -1,7 +1,6 @@
 package firms;
 
 import java.util.Comparator;
-import java.util.Optional;
 
 import org.apache.commons.math3.util.FastMath;
 
@@ -10,22 +9,30 @@ public class FirmComparatorByQ implements Comparator<Firm> {
 	@Override
 	public int compare(Firm f1, Firm f2) {
 
-		// If offers are equivalent return arbitrary order
-		if (Offer.equivalentOffers(Optional.of(f1.getOffer()), Optional.of(f2.getOffer())))
-			return -1;
+		// A firm has to be found to be removed, thus it is only equal to itself
+		if (f1 == f2)
+			return 0;
 
-		// Compare by quality
-		double q1 = f1.getQuality();
-		double q2 = f2.getQuality();
+		return compare(f1.getQuality(), f1.getPrice(), f1.getFirmIntID(), f2.getQuality(), f2.getPrice(),
+				f2.getFirmIntID());
+
+	}
 
+	/*
+	 * Same as above, given the offers and IDs of two different firms
+	 */
+	static int compare(double q1, double p1, long id1, double q2, double p2, long id2) {
+
+		// Compare by quality
 		if (q1 != q2)
 			return (int) FastMath.signum(q1 - q2);
 
 		// if quality is equal compare for price.
-		// Note that as offers are equivalent prices should be different
-		double p1 = f1.getPrice();
-		double p2 = f2.getPrice();
-		return (int) FastMath.signum(p1 - p2);
+		if (p1 != p2)
+			return (int) FastMath.signum(p1 - p2);
+
+		// Equivalent offers are kept in order of ID, as in OfferSnapshot
+		return Long.compare(id1, id2);
 
 	}
 
@@ -0,0 +1,241 @@
+package firms;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.math3.util.FastMath;
+
+/*
+ * Firms state stored by column
+ *
+ * The firm in slot s has its state at position s of the arrays. Slots are
+ * assigned by Firms when a firm enters and reused after it leaves, thus the
+ * per tick updates and the market aggregates are loops over primitive arrays.
+ * Firm objects read and write their own slot
+ */
+class FirmTable {
+
+	boolean[] live = new boolean[0];
+
+	// Offer and its unit cost
+	double[] price = new double[0];
+	double[] quality = new double[0];
+	double[] unitCost = new double[0];
+
+	double[] fixedCost = new double[0];
+	double[] born = new double[0];
+
+	int[] demand = new int[0];
+	double[] profit = new double[0];
+	double[] accumProfit = new double[0];
+	int[] accumZeroDemand = new int[0];
+	double[] autoRegressiveProfit = new double[0];
+
+	/*
+	 * Makes room for slots up to slots (excluded)
+	 */
+	void ensureSlots(int slots) {
+
+		if (live.length >= slots)
+			return;
+
+		int capacity = Math.max(slots, 2 * live.length);
+
+		live = Arrays.copyOf(live, capacity);
+		price = Arrays.copyOf(price, capacity);
+		quality = Arrays.copyOf(quality, capacity);
+		unitCost = Arrays.copyOf(unitCost, capacity);
+		fixedCost = Arrays.copyOf(fixedCost, capacity);
+		born = Arrays.copyOf(born, capacity);
+		demand = Arrays.copyOf(demand, capacity);
+		profit = Arrays.copyOf(profit, capacity);
+		accumProfit = Arrays.copyOf(accumProfit, capacity);
+		accumZeroDemand = Arrays.copyOf(accumZeroDemand, capacity);
+		autoRegressiveProfit = Arrays.copyOf(autoRegressiveProfit, capacity);
+
+	}
+
+	/*
+	 * Clears the slot for an entering firm
+	 */
+	void open(int slot, double fixedC, double bornAt) {
+
+		live[slot] = true;
+
+		price[slot] = 0.0;
+		quality[slot] = 0.0;
+		unitCost[slot] = 0.0;
+
+		fixedCost[slot] = fixedC;
+		born[slot] = bornAt;
+
+		demand[slot] = 0;
+		profit[slot] = 0.0;
+		accumProfit[slot] = 0.0;
+		accumZeroDemand[slot] = 0;
+		autoRegressiveProfit[slot] = 0.0;
+
+	}
+
+	/*
+	 * A free slot adds nothing to the aggregates
+	 */
+	void close(int slot) {
+		live[slot] = false;
+		demand[slot] = 0;
+		price[slot] = 0.0;
+	}
+
+	void setOffer(int slot, double p, double q, double cost) {
+		price[slot] = p;
+		quality[slot] = q;
+		unitCost[slot] = cost;
+	}
+
+	void resetDemand(int slots) {
+		Arrays.fill(demand, 0, slots, 0);
+	}
+
+	/*
+	 * Profit of the period and its accumulations, for all firms
+	 *
+	 * Free slots are updated too, as they are not read until they are opened
+	 * again
+	 */
+	void updateProfits(int slots, double tick, double currentProfitWeight) {
+		for (int s = 0; s < slots; s++)
+			updateProfit(s, tick, currentProfitWeight);
+	}
+
+	/*
+	 * Same as above, for the firm in slot s
+	 */
+	void updateProfit(int s, double tick, double currentProfitWeight) {
+
+		double p = (price[s] - unitCost[s]) * demand[s] - fixedCost[s];
+
+		profit[s] = p;
+		accumProfit[s] += p;
+
+		// Accumulates continuos zero demand periods
+		accumZeroDemand[s] = (demand[s] == 0) ? accumZeroDemand[s] + 1 : 0;
+
+		// On entry moment there is no previous profit to smooth
+		autoRegressiveProfit[s] = (born[s] == tick) ? p
+				: currentProfitWeight * p + (1 - currentProfitWeight) * autoRegressiveProfit[s];
+
+	}
+
+	/*
+	 * Ticks, up to limit, that the market can run with the same offers and
+	 * demands before a firm should exit
+	 */
+	int getSteadyTicks(int slots, int limit, double minimumProfit, int maxZeroDemand, double currentProfitWeight) {
+
+		int retval = limit;
+
+		for (int s = 0; s < slots; s++) {
+			if (!live[s])
+				continue;
+
+			if (demand[s] == 0)
+				retval = FastMath.min(retval, maxZeroDemand - accumZeroDemand[s]);
+
+			// Smoothed profit goes from its value to profit, without crossing it
+			double ar = autoRegressiveProfit[s];
+			for (int k = 1; (k <= retval) && (profit[s] < minimumProfit); k++) {
+				ar = currentProfitWeight * profit[s] + (1 - currentProfitWeight) * ar;
+				if (ar < minimumProfit)
+					retval = k - 1;
+			}
+		}
+
+		return FastMath.max(0, retval);
+
+	}
+
+	/*
+	 * Accumulates ticks periods of the same profits, as updateProfits would
+	 */
+	void advance(int slots, int ticks, double currentProfitWeight) {
+
+		double keep = FastMath.pow(1 - currentProfitWeight, ticks);
+
+		for (int s = 0; s < slots; s++) {
+			double p = profit[s];
+
+			accumProfit[s] += p * ticks;
+			accumZeroDemand[s] = (demand[s] == 0) ? accumZeroDemand[s] + ticks : 0;
+			autoRegressiveProfit[s] = p + keep * (autoRegressiveProfit[s] - p);
+		}
+
+	}
+
+	/*
+	 * Returns true if firm should exit the market
+	 */
+	boolean isToBeKilled(int slot, double minimumProfit, int maxZeroDemand) {
+		return (autoRegressiveProfit[slot] < minimumProfit) || (accumZeroDemand[slot] > maxZeroDemand);
+	}
+
+	void writeState(DataOutput out, int slots) throws IOException {
+
+		for (int s = 0; s < slots; s++) {
+			out.writeBoolean(live[s]);
+			out.writeDouble(price[s]);
+			out.writeDouble(quality[s]);
+			out.writeDouble(unitCost[s]);
+			out.writeDouble(fixedCost[s]);
+			out.writeDouble(born[s]);
+			out.writeInt(demand[s]);
+			out.writeDouble(profit[s]);
+			out.writeDouble(accumProfit[s]);
+			out.writeInt(accumZeroDemand[s]);
+			out.writeDouble(autoRegressiveProfit[s]);
+		}
+
+	}
+
+	void readState(DataInput in, int slots) throws IOException {
+
+		ensureSlots(slots);
+
+		for (int s = 0; s < slots; s++) {
+			live[s] = in.readBoolean();
+			price[s] = in.readDouble();
+			quality[s] = in.readDouble();
+			unitCost[s] = in.readDouble();
+			fixedCost[s] = in.readDouble();
+			born[s] = in.readDouble();
+			demand[s] = in.readInt();
+			profit[s] = in.readDouble();
+			accumProfit[s] = in.readDouble();
+			accumZeroDemand[s] = in.readInt();
+			autoRegressiveProfit[s] = in.readDouble();
+		}
+
+	}
+
+	int getTotalDemand(int slots) {
+
+		int retval = 0;
+		for (int s = 0; s < slots; s++)
+			retval += demand[s];
+
+		return retval;
+
+	}
+
+	double getTotalSales(int slots) {
+
+		double retval = 0.0;
+		for (int s = 0; s < slots; s++)
+			retval += demand[s] * price[s];
+
+		return retval;
+
+	}
+
+}
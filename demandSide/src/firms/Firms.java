@@ -1,66 +1,96 @@
 package firms;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math3.util.FastMath;
 
 import demandSide.Market;
+import demandSide.RandomStreams.Purpose;
+import demandSide.ModelParams;
 import demandSide.RunPriority;
+import demandSide.SplitMixEngine;
 import firmTypes.FirmTypes;
 
 import cern.jet.random.Gamma;
 import cern.jet.random.Uniform;
-import cern.jet.random.engine.MersenneTwister;
 import cern.jet.random.engine.RandomEngine;
 
-import static repast.simphony.essentials.RepastEssentials.GetParameter;
-
 import repast.simphony.context.DefaultContext;
 import repast.simphony.engine.schedule.ScheduledMethod;
 import repast.simphony.essentials.RepastEssentials;
+import repast.simphony.util.SimUtilities;
 
 public class Firms extends DefaultContext<Firm> {
 
 	private Market market;
+	private ModelParams params;
 
 	// Random distributions
+	// Draws of each firm come from its own streams, see RandomStreams
 	public Uniform firmTypes;
-	private Gamma fixedCostDistrib;
-	private Uniform initialQualityDistrib;
-	private Uniform getFromIgnoranceDistrib;
+	private Uniform offerOrder;
+	private SplitMixEngine firmTypesEngine, offerOrderEngine;
+	private double fixedCostAlfa, fixedCostLamda;
+	private double maxInitialQuality;
 
 	// Parameters for Firms
 	double initiallyKnownByPerc, diffusionSpeedParam,
 		minimumProfit, currentProfitWeight,
 		costScale, costExponent;
-	int maxZeroDemand;
+	int maxZeroDemand, potencialFirmsPerPeriod;
+	boolean firmsEntryOnlyAtStart;
+	boolean synchronousFirmDecisions;
 
 	// Data Summarization
-	private class MarketStats {
-		private int totalDemand;
-		private double totalSales;
+	private int totalDemand;
+	private double totalSales;
 
-		public void accumulate(Firm f) {
-			totalDemand += f.getDemand();
-			totalSales += f.getSales();
-		}
+	// Quality options of the last offers, and the ones skipped by their bound
+	private int qualityOptions, prunedQualityOptions;
 
-		public void combine(MarketStats mktStats) {
-			totalDemand += mktStats.totalDemand;
-			totalSales += mktStats.totalSales;
-		}
-	}
+	// Candidates of the last entry, and the ones dropped by the screen
+	private int entryCandidates, screenedOutCandidates;
 
-	private MarketStats marketStats;
+	private static final Comparator<Firm> BY_ID = Comparator.comparingLong(Firm::getFirmIntID);
+	private static final Comparator<Firm> BY_SLOT = Comparator.comparingInt(Firm::getSlot);
+
+	// Firms sorted by ID and decisions for the workers, reused every tick
+	private ArrayList<Firm> byID = new ArrayList<Firm>();
+	private ArrayList<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
 
 	// Theoretical market based on perceived quality and price
 	public TreeSet<Firm> firmsByQ;
 
+	// Offers sorted by perceived quality, shared by expected markets
+	private OfferSnapshot offerSnapshot = new OfferSnapshot();
+
+	// Firms in the market by slot number. Slots of dead firms are reused
+	private ArrayList<Firm> bySlot = new ArrayList<Firm>();
+	private ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+
+	// State of the firms in the market by slot
+	private FirmTable table = new FirmTable();
+
+	private ConvergenceMonitor convergence;
+
 	public Firms(Market market) {
 		super("Firms_Context");
 
 		this.market = market;
+		params = market.params;
 
 		readParams();
 		
@@ -68,19 +98,24 @@ public class Firms extends DefaultContext<Firm> {
 
 		firmsByQ = new TreeSet<Firm>(new FirmComparatorByQ());
 
+		convergence = new ConvergenceMonitor(params, market.offerParams);
+
 	}
 
 	public void readParams() {
 
 		// Read parameters for all firms
-		initiallyKnownByPerc = (Double) GetParameter("initiallyKnownByPerc");
-		minimumProfit = (Double) GetParameter("minimumProfit");
-		diffusionSpeedParam = (Double) GetParameter("diffusionSpeedParam");
-		maxZeroDemand = (int) GetParameter("maxZeroDemand");
-		costScale = (Double) GetParameter("costScale");
-		costExponent = (Double) GetParameter("costExponent");
-		currentProfitWeight = (Double) GetParameter("currentProfitWeight");
-		
+		initiallyKnownByPerc = params.initiallyKnownByPerc;
+		minimumProfit = params.minimumProfit;
+		diffusionSpeedParam = params.diffusionSpeedParam;
+		maxZeroDemand = params.maxZeroDemand;
+		costScale = params.costScale;
+		costExponent = params.costExponent;
+		currentProfitWeight = params.currentProfitWeight;
+		potencialFirmsPerPeriod = params.potencialFirmsPerPeriod;
+		firmsEntryOnlyAtStart = params.firmsEntryOnlyAtStart;
+		synchronousFirmDecisions = params.synchronousFirmDecisions;
+
 	}
 
 	private void createProbabilityDistrib() {
@@ -88,86 +123,432 @@ public class Firms extends DefaultContext<Firm> {
 
 		// Fixed Cost
 		// We use Gamma distribution because the domain is > 0
-		mean = (Double) GetParameter("fixedCostMean");
-		stdDevPercent = (Double) GetParameter("fixedCostStdDevPerc");
+		mean = params.fixedCostMean;
+		stdDevPercent = params.fixedCostStdDevPerc;
 		alfa = (1 / FastMath.pow(stdDevPercent, 2));
 		lamda = alfa / mean;
 //		fixedCostDistrib = RandomHelper.createGamma(alfa, lamda);
-
-		RandomEngine engine = new MersenneTwister(Market.seed);
-		fixedCostDistrib = new Gamma(alfa, lamda, engine);
+		fixedCostAlfa = alfa;
+		fixedCostLamda = lamda;
 
 //		firmTypes = RandomHelper.createUniform(1, FirmTypes.values().length);
-		engine = new MersenneTwister(Market.seed);
-		firmTypes = new Uniform(1, FirmTypes.values().length, engine);
+		firmTypesEngine = market.randomStreams.get(Purpose.FIRM_TYPE);
+		firmTypes = new Uniform(1, FirmTypes.values().length, firmTypesEngine);
 
-		double maxIniQ = (double) GetParameter("maxInitialQuality");
-		engine = new MersenneTwister(Market.seed);
-		initialQualityDistrib = new Uniform(0.0, maxIniQ, engine);
+		offerOrderEngine = market.randomStreams.get(Purpose.OFFER_ORDER);
+		offerOrder = new Uniform(offerOrderEngine);
 
-		engine = new MersenneTwister(Market.seed);
-		getFromIgnoranceDistrib = new Uniform(engine);
+		maxInitialQuality = params.maxInitialQuality;
 	}
 
-	public void addToFirmLists(Firm f) {
-		firmsByQ.add(f);
+	int assignSlot(Firm f) {
+
+		int slot;
+
+		if (freeSlots.isEmpty()) {
+			bySlot.add(f);
+			market.consumers.ensureFirmSlots(bySlot.size());
+			table.ensureSlots(bySlot.size());
+			slot = bySlot.size() - 1;
+		} else {
+			slot = freeSlots.pop();
+			bySlot.set(slot, f);
+		}
+
+		table.open(slot, f.getFixedCost(), f.getBorn());
+		convergence.changed();
+		return slot;
+
+	}
+
+	void releaseSlot(Firm f) {
+		table.close(f.getSlot());
+		bySlot.set(f.getSlot(), null);
+		freeSlots.push(f.getSlot());
+		convergence.changed();
 	}
 
-	public void updateFirmLists(Firm f, double prevQ, double newQ) {
-		firmsByQ.remove(f);		
+	FirmTable getTable() {
+		return table;
+	}
+
+	/*
+	 * Returns the firm in the slot, or null if the slot is free
+	 */
+	public Firm getFirmAtSlot(int slot) {
+		return bySlot.get(slot);
+	}
+
+	/*
+	 * Slots are numbered from zero to this value (excluded)
+	 */
+	public int getSlotsCount() {
+		return bySlot.size();
+	}
+
+	public void addToFirmLists(Firm f) {
 		firmsByQ.add(f);
+		offerSnapshot.add(f);
 	}
 
 	public void removeFromFirmLists(Firm f) {
 		firmsByQ.remove(f);
+		offerSnapshot.remove(f);
+	}
+
+	/*
+	 * Whether f would keep its place in firmsByQ with the given offer. Then the
+	 * offer can change with f in the set, as the order is the same
+	 */
+	boolean keepsPlaceByQ(Firm f, double price, double quality) {
+
+		Firm lo = firmsByQ.lower(f);
+		Firm hi = firmsByQ.higher(f);
+		long id = f.getFirmIntID();
+
+		return ((lo == null)
+				|| (FirmComparatorByQ.compare(lo.getQuality(), lo.getPrice(), lo.getFirmIntID(), quality, price, id) < 0))
+				&& ((hi == null) || (FirmComparatorByQ.compare(quality, price, id, hi.getQuality(), hi.getPrice(),
+						hi.getFirmIntID()) < 0));
+
+	}
+
+	public OfferSnapshot getOfferSnapshot() {
+		return offerSnapshot;
+	}
+
+	/*
+	 * Firms in the market make their offers
+	 * 
+	 * By default firms decide one after the other, in random order, each one
+	 * seeing the decisions of the previous ones
+	 * 
+	 * With synchronousFirmDecisions all firms decide on the worker threads
+	 * against the market at the start of the tick, and then decisions are
+	 * applied in order of firm ID. Results depend on the seed but not on the
+	 * number of threads
+	 */
+	@ScheduledMethod(start = 1, priority = RunPriority.MAKE_OFFER_PRIORITY, interval = 1)
+	public void makeOffers() {
+
+		// Context order is not defined, thus firms are sorted first
+		ArrayList<Firm> firms = byID;
+		firms.clear();
+		for (Firm f : this)
+			firms.add(f);
+		firms.sort(BY_ID);
+
+		if (synchronousFirmDecisions)
+			makeSynchronousOffers(firms);
+		else {
+			SimUtilities.shuffle(firms, offerOrder);
+			firms.forEach(Firm::makeOffer);
+		}
+
+		qualityOptions = 0;
+		prunedQualityOptions = 0;
+		for (Firm f : firms) {
+			qualityOptions += f.getQualityOptions();
+			prunedQualityOptions += f.getPrunedQualityOptions();
+		}
+
+	}
+
+	private void makeSynchronousOffers(ArrayList<Firm> firms) {
+
+		// Sorted before it is shared by the workers
+		offerSnapshot.getFirms();
+
+		tasks.clear();
+		for (Firm f : firms)
+			tasks.add(f::decide);
+
+		List<Future<Boolean>> decided = market.workers.invokeAll(tasks);
+
+		for (int i = 0; i < firms.size(); i++)
+			firms.get(i).updateDecision(hasDecided(decided.get(i)));
+
+	}
+
+	private static boolean hasDecided(Future<Boolean> future) {
+
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			// Assertion errors and bugs in a worker are thrown as in serial mode
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			else if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			else
+				throw new IllegalStateException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+
 	}
 
 	@ScheduledMethod(start = 1, priority = RunPriority.ADD_FIRMS_PRIORITY, interval = 1)
 	public void addFirms() {
 
-		if ((boolean) GetParameter("firmsEntryOnlyAtStart") && (RepastEssentials.GetTickCount() != 1))
+		if (firmsEntryOnlyAtStart && (market.getTick() != 1))
 			return;
 
-		for (int i = 1; i <= (Integer) GetParameter("potencialFirmsPerPeriod"); i++) {
-			createRandomTypeFirm();
+		// Candidates are drawn in order, and the ones that cannot get a segment
+		// at any price are dropped before their offer is optimized
+		ArrayList<Firm> candidates = new ArrayList<Firm>(potencialFirmsPerPeriod);
+		for (int i = 1; i <= potencialFirmsPerPeriod; i++) {
+			Firm f = createRandomTypeFirm();
+			if (f.canEnter())
+				candidates.add(f);
 		}
 
+		entryCandidates = potencialFirmsPerPeriod;
+		screenedOutCandidates = potencialFirmsPerPeriod - candidates.size();
+
+		if (synchronousFirmDecisions)
+			addSynchronousFirms(candidates);
+		else
+			// Each candidate sees the ones that entered before it
+			for (Firm f : candidates)
+				if (f.decideEntry())
+					f.enter();
+
+	}
+
+	/*
+	 * Candidates decide on the worker threads against the market left by
+	 * makeOffers, and enter in order of creation
+	 */
+	private void addSynchronousFirms(ArrayList<Firm> candidates) {
+
+		offerSnapshot.getFirms();
+
+		tasks.clear();
+		for (Firm f : candidates)
+			tasks.add(f::decideEntry);
+
+		List<Future<Boolean>> decided = market.workers.invokeAll(tasks);
+
+		for (int i = 0; i < candidates.size(); i++)
+			if (hasDecided(decided.get(i)))
+				candidates.get(i).enter();
+
 	}
 
-	private void createRandomTypeFirm() {
+	private Firm createRandomTypeFirm() {
 
 		// Create a firm of random type
-//		FirmTypes.createRandomTypeFirm();
+//		return FirmTypes.createRandomTypeFirm(market);
 
 		// Temporarily fixed the type
-		FirmTypes.STANDARD_FIRM.createFirm(market);
+		return FirmTypes.STANDARD_FIRM.createFirm(market);
+
+	}
+
+	/*
+	 * Under Repast each firm resets its own, see Firm.resetDemand
+	 */
+	public void resetDemand() {
+		table.resetDemand(getSlotsCount());
+	}
+
+	/*
+	 * This is run after all offers are made and consumers have chosen
+	 * 
+	 * Calculates profits of all firms, and marks the ones that should leave.
+	 * Under Repast each firm does it, see Firm.nextStep
+	 */
+	public void nextStep() {
+
+		int slots = getSlotsCount();
+
+		table.updateProfits(slots, market.getTick(), currentProfitWeight);
+
+		for (int slot = 0; slot < slots; slot++)
+			if (table.live[slot] && table.isToBeKilled(slot, minimumProfit, maxZeroDemand))
+				market.toBeKilled.add(bySlot.get(slot));
+
+	}
+
+	/*
+	 * Same as above, for f alone
+	 */
+	void nextStep(Firm f) {
+
+		int slot = f.getSlot();
+
+		table.updateProfit(slot, market.getTick(), currentProfitWeight);
+
+		if (table.isToBeKilled(slot, minimumProfit, maxZeroDemand))
+			market.toBeKilled.add(f);
 
 	}
 
 	@ScheduledMethod(start = 1, priority = RunPriority.KILL_FIRMS_PRIORITY, interval = 1)
 	public void wipeDeadFirms() {
 
-		Market.toBeKilled.forEach(Firm::killFirm);
+		// Under Repast firms are marked in the order they are scheduled, thus
+		// they leave by slot as when they are marked together
+		market.toBeKilled.sort(BY_SLOT);
 
-		Market.toBeKilled.clear();
+		// One pass for all dead firms, while their slots are still assigned
+		market.consumers.forgetFirms(market.toBeKilled);
+
+		market.toBeKilled.forEach(Firm::killFirm);
+
+		market.toBeKilled.clear();
 
 	}
 
 	@ScheduledMethod(start = 1, priority = RunPriority.UPDATE_STATISTICS_PRIORITY, interval = 1)
 	public void updateStatistics() {
-		marketStats = stream().collect(MarketStats::new, MarketStats::accumulate, MarketStats::combine);
+		int slots = getSlotsCount();
+		totalDemand = table.getTotalDemand(slots);
+		totalSales = table.getTotalSales(slots);
+
+		if (convergence.isOn())
+			convergence.update(this, table, market.getTick());
 	}
 
-	public Gamma getFixedCostDistrib() {
-		return fixedCostDistrib;
+	/*
+	 * True on the tick the market completes the convergence window
+	 */
+	public boolean hasJustConverged() {
+		return convergence.hasJustConverged();
 	}
 
-	public Uniform getGetFromIgnoranceDistrib() {
-		return getFromIgnoranceDistrib;
+	/*
+	 * Runs up to ticks periods with the same offers and demands, stopping
+	 * before any firm should exit. Returns the ticks run
+	 * 
+	 * Offers are not made again and consumers don't choose, thus firms' random
+	 * streams and smoothed competitor offers are not the ones of the skipped
+	 * ticks
+	 */
+	public int fastForward(int ticks) {
+
+		int slots = getSlotsCount();
+		int retval = table.getSteadyTicks(slots, ticks, minimumProfit, maxZeroDemand, currentProfitWeight);
+
+		table.advance(slots, retval, currentProfitWeight);
+		convergence.restart();
+
+		return retval;
+
 	}
 
-	public Uniform getInitialQualityDistrib() {
-		return initialQualityDistrib;
+	/*
+	 * State of the firms, see MarketSnapshot. Firm lists are rebuilt from the
+	 * firms read
+	 */
+	public void writeState(DataOutput out) throws IOException {
+
+		int slots = getSlotsCount();
+		out.writeInt(slots);
+		table.writeState(out, slots);
+
+		out.writeInt(size());
+		for (Firm f : bySlot)
+			if (f != null) {
+				out.writeInt(f.getFirmType().ordinal());
+				f.writeState(out);
+			}
+
+		for (Firm f : bySlot)
+			if (f != null)
+				f.getHistory().writeState(out);
+
+		out.writeInt(freeSlots.size());
+		for (int slot : freeSlots)
+			out.writeInt(slot);
+
+		out.writeInt(firmsByQ.size());
+		for (Firm f : firmsByQ)
+			out.writeLong(f.getFirmIntID());
+
+		out.writeInt(totalDemand);
+		out.writeDouble(totalSales);
+		out.writeInt(qualityOptions);
+		out.writeInt(prunedQualityOptions);
+		out.writeInt(entryCandidates);
+		out.writeInt(screenedOutCandidates);
+
+		out.writeLong(firmTypesEngine.getState());
+		out.writeLong(offerOrderEngine.getState());
+
+		convergence.writeState(out);
+
+	}
+
+	/*
+	 * Creates the firms of the state. Consumers should be read before
+	 */
+	public void readState(DataInput in) throws IOException {
+
+		assert isEmpty();
+
+		int slots = in.readInt();
+		table.readState(in, slots);
+		market.consumers.ensureFirmSlots(slots);
+		for (int slot = 0; slot < slots; slot++)
+			bySlot.add(null);
+
+		int n = in.readInt();
+		Map<Long, Firm> firmsByID = new HashMap<Long, Firm>();
+		for (int k = 0; k < n; k++) {
+			Firm f = FirmTypes.values()[in.readInt()].createFirm(market);
+			f.readState(in);
+
+			bySlot.set(f.getSlot(), f);
+			firmsByID.put(f.getFirmIntID(), f);
+			add(f);
+			offerSnapshot.add(f);
+		}
+
+		for (Firm f : bySlot)
+			if (f != null)
+				f.getHistory().readState(in, firmsByID);
+
+		int free = in.readInt();
+		for (int k = 0; k < free; k++)
+			freeSlots.addLast(in.readInt());
+
+		// The set sorts them again by their offers
+		int byQ = in.readInt();
+		for (int k = 0; k < byQ; k++)
+			firmsByQ.add(firmsByID.get(in.readLong()));
+
+		totalDemand = in.readInt();
+		totalSales = in.readDouble();
+		qualityOptions = in.readInt();
+		prunedQualityOptions = in.readInt();
+		entryCandidates = in.readInt();
+		screenedOutCandidates = in.readInt();
+
+		firmTypesEngine.setState(in.readLong());
+		offerOrderEngine.setState(in.readLong());
+
+		convergence.readState(in);
+
+	}
+
+	public double drawFixedCost(Firm f) {
+		RandomEngine engine = market.randomStreams.get(Purpose.FIXED_COST, f.getFirmIntID());
+		return new Gamma(fixedCostAlfa, fixedCostLamda, engine).nextDouble();
+	}
+
+	public double drawInitialQuality(Firm f) {
+		RandomEngine engine = market.randomStreams.get(Purpose.INITIAL_QUALITY, f.getFirmIntID());
+		return new Uniform(0.0, maxInitialQuality, engine).nextDouble();
+	}
+
+	/*
+	 * Distribution to draw the consumers that learn of f
+	 */
+	public SplitMixEngine createDiffusionEngine(Firm f) {
+		return market.randomStreams.get(Purpose.DIFFUSION, f.getFirmIntID());
 	}
 
 	@SuppressWarnings("unchecked")
@@ -192,11 +573,33 @@ public class Firms extends DefaultContext<Firm> {
 	}
 
 	public int getTotalDemand() {
-		return marketStats.totalDemand;
+		return totalDemand;
 	}
 
 	public double getTotalSales() {
-		return marketStats.totalSales;
+		return totalSales;
+	}
+
+	/*
+	 * First tick of the market's last convergence window, or
+	 * ConvergenceMonitor.NOT_CONVERGED
+	 */
+	public double getConvergenceTick() {
+		return convergence.getConvergenceTick();
+	}
+
+	/*
+	 * Share of entry candidates dropped without optimizing their offer
+	 */
+	public double getEntryScreenRate() {
+		return (entryCandidates == 0) ? 0.0 : (double) screenedOutCandidates / entryCandidates;
+	}
+
+	/*
+	 * Share of quality options skipped on last offers
+	 */
+	public double getQualityPruningRate() {
+		return (qualityOptions == 0) ? 0.0 : (double) prunedQualityOptions / qualityOptions;
 	}
 	
 }
@@ -1,5 +1,9 @@
 package firms;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
 import java.util.Optional;
 
 import demandSide.Market;
@@ -16,15 +20,16 @@ public class History {
 
 	public void updateCompetitorsPerceivedOffers(Firm f) {
 
-		Optional<Firm> optF;
+		// The data returned is not kept, thus data is only updated when there
+		// is some, and none is built to be dropped on every decision
 
 		// Lower Neighbor
-		optF = Optional.ofNullable(market.firms.firmsByQ.lower(f));
-		NeighborData.updateNeighborData(lowerNeighbor, optF);
+		if (lowerNeighbor.isPresent())
+			NeighborData.updateNeighborData(lowerNeighbor, Optional.ofNullable(market.firms.firmsByQ.lower(f)));
 
 		// Higher Neighbor
-		optF = Optional.ofNullable(market.firms.firmsByQ.higher(f));
-		NeighborData.updateNeighborData(higherNeighbor, optF);
+		if (higherNeighbor.isPresent())
+			NeighborData.updateNeighborData(higherNeighbor, Optional.ofNullable(market.firms.firmsByQ.higher(f)));
 
 	}
 
@@ -38,13 +43,53 @@ public class History {
 
 		assert (f != null);
 
-		Optional<Offer> hOf, lOf;
+		// Called on every comparison of the expected market, thus no Optional is
+		// created
+		if (isNeighbor(higherNeighbor, f))
+			return higherNeighbor.get().getPerceivedOffer();
 
-		hOf = higherNeighbor.filter(nD -> nD.getNeighbor() == f).map(NeighborData::getPerceivedOffer);
+		else if (isNeighbor(lowerNeighbor, f))
+			return lowerNeighbor.get().getPerceivedOffer();
 
-		lOf = lowerNeighbor.filter(nD -> nD.getNeighbor() == f).map(NeighborData::getPerceivedOffer);
+		else
+			return f.getPerceivedOffer();
 
-		return hOf.orElse(lOf.orElse(f.getPerceivedOffer()));
+	}
+
+	/*
+	 * Neighbors whose offers are smoothed, null if there is none
+	 */
+	Firm getLowerNeighbor() {
+		return lowerNeighbor.isPresent() ? lowerNeighbor.get().getNeighbor() : null;
+	}
+
+	Firm getHigherNeighbor() {
+		return higherNeighbor.isPresent() ? higherNeighbor.get().getNeighbor() : null;
+	}
+
+	void writeState(DataOutput out) throws IOException {
+		writeNeighbor(out, lowerNeighbor);
+		writeNeighbor(out, higherNeighbor);
+	}
+
+	void readState(DataInput in, Map<Long, Firm> firmsByID) throws IOException {
+		lowerNeighbor = readNeighbor(in, firmsByID);
+		higherNeighbor = readNeighbor(in, firmsByID);
+	}
+
+	private static void writeNeighbor(DataOutput out, Optional<NeighborData> optND) throws IOException {
+		out.writeBoolean(optND.isPresent());
+		if (optND.isPresent())
+			optND.get().writeState(out);
+	}
+
+	private static Optional<NeighborData> readNeighbor(DataInput in, Map<Long, Firm> firmsByID)
+			throws IOException {
+		return in.readBoolean() ? Optional.of(NeighborData.readState(in, firmsByID)) : Optional.empty();
+	}
+
+	private static boolean isNeighbor(Optional<NeighborData> optND, Firm f) {
+		return optND.isPresent() && (optND.get().getNeighbor() == f);
 
 	}
 
@@ -0,0 +1,183 @@
+package firms;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.math3.util.FastMath;
+
+import cern.jet.random.Uniform;
+
+/*
+ * Consumers that don't know a firm yet, drawn at random without replacement
+ *
+ * It is a Fisher-Yates shuffle over consumer indices 0..size-1. Position i
+ * holds consumer i unless a draw moved another consumer there, and only moved
+ * positions are stored, in an open addressing map. Positions that fall out of
+ * the remaining ones are removed, thus creating it costs O(1) and memory is
+ * bounded by the draws and by the consumers left, not by the population
+ */
+class Ignorance {
+
+	private static final int EMPTY = -1;
+
+	private int remaining;
+
+	// Map from position to consumer index, for moved positions only
+	private int[] keys;
+	private int[] values;
+	private int used = 0;
+
+	Ignorance(int size) {
+		remaining = size;
+		clearMap(0);
+	}
+
+	int size() {
+		return remaining;
+	}
+
+	boolean isEmpty() {
+		return remaining == 0;
+	}
+
+	/*
+	 * Draws a random consumer among the remaining ones and returns its index
+	 * 
+	 * The drawn position is filled with the consumer at the last remaining
+	 * position, which leaves the map as it is never read again
+	 */
+	int draw(Uniform distrib) {
+
+		assert remaining > 0;
+
+		int i = distrib.nextIntFromTo(0, remaining - 1);
+		int last = --remaining;
+
+		int retval = get(i);
+		int moved = get(last);
+		remove(last);
+		if (i != last)
+			put(i, moved);
+
+		if (remaining == 0)
+			clearMap(0);
+
+		return retval;
+
+	}
+
+	/*
+	 * Only moved positions are written
+	 */
+	void writeState(DataOutput out) throws IOException {
+
+		out.writeInt(remaining);
+		out.writeInt(used);
+		for (int k = 0; k < keys.length; k++)
+			if (keys[k] != EMPTY) {
+				out.writeInt(keys[k]);
+				out.writeInt(values[k]);
+			}
+
+	}
+
+	static Ignorance readState(DataInput in) throws IOException {
+
+		Ignorance retval = new Ignorance(in.readInt());
+
+		int moved = in.readInt();
+		for (int k = 0; k < moved; k++) {
+			int pos = in.readInt();
+			retval.put(pos, in.readInt());
+		}
+
+		return retval;
+
+	}
+
+	private int get(int pos) {
+
+		int mask = keys.length - 1;
+		for (int k = hash(pos) & mask; keys[k] != EMPTY; k = (k + 1) & mask)
+			if (keys[k] == pos)
+				return values[k];
+
+		return pos;
+
+	}
+
+	private void put(int pos, int consumer) {
+
+		if (2 * (used + 1) > keys.length)
+			grow();
+
+		int mask = keys.length - 1;
+		int k = hash(pos) & mask;
+		while ((keys[k] != EMPTY) && (keys[k] != pos))
+			k = (k + 1) & mask;
+
+		if (keys[k] == EMPTY)
+			used++;
+
+		keys[k] = pos;
+		values[k] = consumer;
+
+	}
+
+	/*
+	 * Entries after the removed one that would not be found across the hole
+	 * are shifted back into it
+	 */
+	private void remove(int pos) {
+
+		int mask = keys.length - 1;
+		int k = hash(pos) & mask;
+		while (keys[k] != pos) {
+			if (keys[k] == EMPTY)
+				return;
+			k = (k + 1) & mask;
+		}
+
+		used--;
+
+		for (int j = (k + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+			int home = hash(keys[j]) & mask;
+			if (((j - home) & mask) >= ((j - k) & mask)) {
+				keys[k] = keys[j];
+				values[k] = values[j];
+				k = j;
+			}
+		}
+
+		keys[k] = EMPTY;
+
+	}
+
+	private void grow() {
+
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+
+		clearMap(2 * oldKeys.length);
+		for (int k = 0; k < oldKeys.length; k++)
+			if (oldKeys[k] != EMPTY)
+				put(oldKeys[k], oldValues[k]);
+
+	}
+
+	private void clearMap(int capacity) {
+
+		keys = new int[FastMath.max(8, capacity)];
+		values = new int[keys.length];
+		Arrays.fill(keys, EMPTY);
+		used = 0;
+
+	}
+
+	private static int hash(int pos) {
+		return (pos * 0x9E3779B9) >>> 7;
+	}
+
+}
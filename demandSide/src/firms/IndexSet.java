@@ -0,0 +1,119 @@
+package firms;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.util.FastMath;
+
+/*
+ * Set of the indexes from 0 to n - 1, with the previous and next index in the
+ * set in O(log n)
+ *
+ * Each level has a bit per index, or per word of the level below, set if the
+ * index or word is not empty. With 64 bits per word, three levels hold 262144
+ * indexes. Arrays are kept from one clear to the next
+ */
+class IndexSet {
+
+	static final int NONE = -1;
+
+	private long[][] levels = new long[0][];
+	private int[] words = new int[0];
+	private int depth = 0;
+
+	/*
+	 * Empty set of the indexes below n
+	 */
+	void clear(int n) {
+
+		depth = 0;
+		int bits = FastMath.max(n, 1);
+		do {
+			int w = (bits + 63) >>> 6;
+
+			if (depth == levels.length) {
+				levels = Arrays.copyOf(levels, depth + 1);
+				words = Arrays.copyOf(words, depth + 1);
+				levels[depth] = new long[0];
+			}
+
+			if (levels[depth].length < w)
+				levels[depth] = new long[w];
+			else
+				Arrays.fill(levels[depth], 0, w, 0L);
+
+			words[depth++] = w;
+			bits = w;
+		} while (bits > 1);
+
+	}
+
+	void add(int i) {
+		for (int h = 0; h < depth; h++, i >>>= 6)
+			levels[h][i >>> 6] |= 1L << (i & 63);
+	}
+
+	void remove(int i) {
+		for (int h = 0; h < depth; h++, i >>>= 6) {
+			levels[h][i >>> 6] &= ~(1L << (i & 63));
+			if (levels[h][i >>> 6] != 0)
+				break;
+		}
+	}
+
+	/*
+	 * Lowest index in the set above i, or NONE
+	 */
+	int next(int i) {
+
+		// Lowest index not below i
+		i++;
+
+		for (int h = 0; h < depth; h++) {
+			int w = i >>> 6;
+			if (w >= words[h])
+				return NONE;
+
+			long bits = levels[h][w] & (-1L << (i & 63));
+			if (bits != 0) {
+				i = (w << 6) + Long.numberOfTrailingZeros(bits);
+				while (h > 0)
+					i = (i << 6) + Long.numberOfTrailingZeros(levels[--h][i]);
+				return i;
+			}
+
+			i = w + 1;
+		}
+
+		return NONE;
+
+	}
+
+	/*
+	 * Highest index in the set below i, or NONE
+	 */
+	int prev(int i) {
+
+		// Highest index not above i
+		i--;
+
+		for (int h = 0; h < depth; h++) {
+			if (i < 0)
+				return NONE;
+
+			int w = i >>> 6;
+			long bits = levels[h][w] & (-1L >>> (63 - (i & 63)));
+			if (bits != 0) {
+				i = (w << 6) + 63 - Long.numberOfLeadingZeros(bits);
+				while (h > 0)
+					i = (i << 6) + 63 - Long.numberOfLeadingZeros(levels[--h][i]);
+				return i;
+			}
+
+			i = w - 1;
+		}
+
+		return NONE;
+
+	}
+
+}
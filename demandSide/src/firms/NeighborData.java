@@ -1,5 +1,9 @@
 package firms;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
 import java.util.Optional;
 
 public class NeighborData {
@@ -8,7 +12,27 @@ public class NeighborData {
 
 	public NeighborData(Firm neighbor) {
 		this.neighbor = neighbor;
-		perceivedOfferHist = new OfferHistory(neighbor.getPerceivedOffer());
+		perceivedOfferHist = new OfferHistory(neighbor.getPerceivedOffer(), getSmoothingParam(neighbor));
+	}
+
+	private NeighborData(Firm neighbor, OfferHistory perceivedOfferHist) {
+		this.neighbor = neighbor;
+		this.perceivedOfferHist = perceivedOfferHist;
+	}
+
+	void writeState(DataOutput out) throws IOException {
+		// IDs start at 1
+		out.writeLong((neighbor == null) ? 0L : neighbor.getFirmIntID());
+		perceivedOfferHist.writeState(out);
+	}
+
+	/*
+	 * A neighbor that already left the market is read as null, as it cannot be
+	 * the neighbor of any firm in the market
+	 */
+	static NeighborData readState(DataInput in, Map<Long, Firm> firmsByID) throws IOException {
+		Firm neighbor = firmsByID.get(in.readLong());
+		return new NeighborData(neighbor, OfferHistory.readState(in));
 	}
 
 	public static Optional<NeighborData> updateNeighborData(Optional<NeighborData> optND, Optional<Firm> optF) {
@@ -43,7 +67,11 @@ public class NeighborData {
 		if (neighbor == f)
 			perceivedOfferHist.update(of);
 		else
-			perceivedOfferHist = new OfferHistory(of);
+			perceivedOfferHist = new OfferHistory(of, getSmoothingParam(f));
+	}
+
+	private static double getSmoothingParam(Firm f) {
+		return f.market.params.smoothingCompetitorParam;
 	}
 
 	public Offer getPerceivedOffer() {
@@ -1,34 +1,16 @@
 package firms;
 
-import static repast.simphony.essentials.RepastEssentials.GetParameter;
-
 import java.math.RoundingMode;
-import java.util.Optional;
-
-import org.apache.commons.math3.util.FastMath;
 
+/*
+ * Price and quality of a firm. Parameters of offers are kept by run, see
+ * OfferParams
+ */
 public class Offer {
 
-	private static int priceScale;
-	private static int qualityScale;
-	private static double qualityStep;
-	private static double minDeltaPrice;
-	private static double minDeltaQuality;
-
 	private double quality = 0.;
 	private double price = 0.;
 
-	public static void readOffersParams() {
-		priceScale = (Integer) GetParameter("priceScale");
-		qualityScale = (Integer) GetParameter("qualityScale");
-
-		qualityStep = (Double) GetParameter("qualityStep");
-
-		minDeltaPrice = FastMath.pow(10., -priceScale);
-		minDeltaQuality = FastMath.pow(10., -qualityScale);
-
-	}
-
 	public Offer(double p, double q) {
 
 		assert ((p > 0) && (q > 0));
@@ -37,21 +19,26 @@ public class Offer {
 		setPrice(p);
 	}
 
+	/*
+	 * Offer to be set, see Decision
+	 */
+	Offer() {
+	}
+
 	public Offer(Offer offer) {
 		setQuality(offer.getQuality());
 		setPrice(offer.getPrice());
 	}
 
-	public static boolean equivalentOffers(Optional<Offer> loOf, Optional<Offer> hiOf) {
+	/*
+	 * Whether of, null if it is missing, has price p and quality q
+	 */
+	public static boolean equivalentOffers(Offer of, double p, double q) {
 
-		if ((!loOf.isPresent()) && (!hiOf.isPresent()))
-			return true;
-		else if ((!loOf.isPresent()) || (!hiOf.isPresent()))
+		if (of == null)
 			return false;
 		else
-			// of1 and of2 both present
-			return ((loOf.get().getPrice() == hiOf.get().getPrice())
-					&& (loOf.get().getQuality() == hiOf.get().getQuality()));
+			return ((of.getPrice() == p) && (of.getQuality() == q));
 	}
 
 	public static RoundingMode getPriceRounding() {
@@ -76,34 +63,12 @@ public class Offer {
 
 	}
 
-	public static double getMinDeltaPrice() {
-		return minDeltaPrice;
-	}
-
-	public static double getMinDeltaQuality() {
-		return minDeltaQuality;
-	}
-
-	public static double getQualityStep() {
-		return qualityStep;
-	}
-
-	public static int getPriceScale() {
-		return priceScale;
-	}
-
-	public static int getQualityScale() {
-		return qualityScale;
-	}
-
 	public double getPrice() {
 		return price;
 	}
 
 	public String toString() {
-		String pStr = Double.toString((double) FastMath.round(price * priceScale) / (double) priceScale);
-		String qStr = Double.toString((double) FastMath.round(quality * qualityScale) / (double) qualityScale);
-		return "P: " + pStr + " Q: " + qStr;
+		return "P: " + price + " Q: " + quality;
 	}
 
 }
@@ -1,15 +1,16 @@
 package firms;
 
-import static repast.simphony.essentials.RepastEssentials.GetParameter;
-
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 public class OfferHistory {
 
 	private double pCurr, pPrev;
 	Offer smoothedOffer;
 
-	public OfferHistory(Offer of) {
-		double p = (Double) GetParameter("smoothingCompetitorParam");
+	public OfferHistory(Offer of, double smoothingParam) {
+		double p = smoothingParam;
 		pCurr = p;
 		pPrev = 1 - p;
 
@@ -31,6 +32,27 @@ public class OfferHistory {
 
 	}
 
+	void writeState(DataOutput out) throws IOException {
+		out.writeDouble(pCurr);
+		out.writeDouble(pPrev);
+		out.writeDouble(smoothedOffer.getPrice());
+		out.writeDouble(smoothedOffer.getQuality());
+	}
+
+	static OfferHistory readState(DataInput in) throws IOException {
+
+		double curr = in.readDouble();
+		double prev = in.readDouble();
+		double price = in.readDouble();
+		double quality = in.readDouble();
+
+		OfferHistory retval = new OfferHistory(new Offer(price, quality), curr);
+		retval.pPrev = prev;
+
+		return retval;
+
+	}
+
 	public double getPrice() {
 		return smoothedOffer.getPrice();
 	}
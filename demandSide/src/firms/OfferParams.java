@@ -0,0 +1,49 @@
+package firms;
+
+import org.apache.commons.math3.util.FastMath;
+
+import demandSide.ModelParams;
+
+/*
+ * Parameters of offers of a run
+ */
+public class OfferParams {
+
+	private int priceScale;
+	private int qualityScale;
+	private double qualityStep;
+	private double minDeltaPrice;
+	private double minDeltaQuality;
+
+	public OfferParams(ModelParams params) {
+		priceScale = params.priceScale;
+		qualityScale = params.qualityScale;
+
+		qualityStep = params.qualityStep;
+
+		minDeltaPrice = FastMath.pow(10., -priceScale);
+		minDeltaQuality = FastMath.pow(10., -qualityScale);
+
+	}
+
+	public double getMinDeltaPrice() {
+		return minDeltaPrice;
+	}
+
+	public double getMinDeltaQuality() {
+		return minDeltaQuality;
+	}
+
+	public double getQualityStep() {
+		return qualityStep;
+	}
+
+	public int getPriceScale() {
+		return priceScale;
+	}
+
+	public int getQualityScale() {
+		return qualityScale;
+	}
+
+}
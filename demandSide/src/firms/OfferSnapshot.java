@@ -0,0 +1,169 @@
+package firms;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.util.FastMath;
+
+/*
+ * Firms in the market sorted by their perceived offer, shared by all firms to
+ * build their expected markets
+ * 
+ * Offers change a little at a time: one firm's decision, or perceived quality
+ * as consumers try firms. Thus the array is kept between calls and sorted again
+ * by insertion, which takes about O(F), only when asked after a change
+ * 
+ * Firms are also kept by ID, the order in which they entered, which changes
+ * only when a firm enters or leaves
+ */
+public class OfferSnapshot {
+
+	private Firm[] firms = new Firm[16];
+	private double[] perceivedQ = new double[16];
+	private Firm[] byID = new Firm[16];
+	private int size = 0;
+
+	private boolean sorted = true;
+
+	void add(Firm f) {
+
+		sorted = false;
+
+		if (indexOf(f) >= 0)
+			return;
+
+		if (size == firms.length) {
+			firms = Arrays.copyOf(firms, 2 * size);
+			perceivedQ = Arrays.copyOf(perceivedQ, 2 * size);
+			byID = Arrays.copyOf(byID, 2 * size);
+		}
+
+		firms[size] = f;
+
+		// Firms usually enter by increasing ID, thus this is an append
+		int i = size;
+		while ((i > 0) && (byID[i - 1].getFirmIntID() > f.getFirmIntID())) {
+			byID[i] = byID[i - 1];
+			i--;
+		}
+		byID[i] = f;
+
+		size++;
+
+	}
+
+	void remove(Firm f) {
+
+		int i = indexOf(f);
+		if (i < 0)
+			return;
+
+		System.arraycopy(firms, i + 1, firms, i, size - i - 1);
+		System.arraycopy(perceivedQ, i + 1, perceivedQ, i, size - i - 1);
+
+		int j = 0;
+		while (byID[j] != f)
+			j++;
+		System.arraycopy(byID, j + 1, byID, j, size - j - 1);
+
+		size--;
+		firms[size] = null;
+		byID[size] = null;
+
+	}
+
+	/*
+	 * Called when the perceived offer of a firm changes
+	 */
+	void invalidate() {
+		sorted = false;
+	}
+
+	/*
+	 * Firms sorted from position 0 to size (excluded). It should not be modified
+	 */
+	Firm[] getFirms() {
+
+		if (!sorted)
+			sort();
+
+		return firms;
+
+	}
+
+	/*
+	 * Firms sorted by ID from position 0 to size (excluded). It should not be
+	 * modified
+	 */
+	Firm[] getFirmsByID() {
+		return byID;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	boolean contains(Firm f) {
+		return indexOf(f) >= 0;
+	}
+
+	private int indexOf(Firm f) {
+
+		for (int i = 0; i < size; i++)
+			if (firms[i] == f)
+				return i;
+
+		return -1;
+
+	}
+
+	private void sort() {
+
+		for (int i = 0; i < size; i++)
+			perceivedQ[i] = firms[i].getPerceivedOffer().getQuality();
+
+		for (int i = 1; i < size; i++) {
+			Firm f = firms[i];
+			double q = perceivedQ[i];
+
+			int j = i - 1;
+			while ((j >= 0) && (compare(perceivedQ[j], firms[j], q, f) > 0)) {
+				firms[j + 1] = firms[j];
+				perceivedQ[j + 1] = perceivedQ[j];
+				j--;
+			}
+
+			firms[j + 1] = f;
+			perceivedQ[j + 1] = q;
+		}
+
+		sorted = true;
+
+	}
+
+	/*
+	 * Order of expected markets: perceived quality, then real quality, then
+	 * price and, if all are equal, firm ID
+	 */
+	static int compare(double perceivedQ1, Firm f1, double perceivedQ2, Firm f2) {
+
+		if (f1 == f2)
+			return 0;
+
+		if (perceivedQ1 != perceivedQ2)
+			return (int) FastMath.signum(perceivedQ1 - perceivedQ2);
+
+		double q1 = f1.getQuality();
+		double q2 = f2.getQuality();
+		if (q1 != q2)
+			return (int) FastMath.signum(q1 - q2);
+
+		double p1 = f1.getPrice();
+		double p2 = f2.getPrice();
+		if (p1 != p2)
+			return (int) FastMath.signum(p1 - p2);
+
+		return Long.compare(f1.getFirmIntID(), f2.getFirmIntID());
+
+	}
+
+}
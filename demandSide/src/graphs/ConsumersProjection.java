@@ -1,13 +1,11 @@
 package graphs;
 
-import static repast.simphony.essentials.RepastEssentials.GetParameter;
-
 import org.apache.commons.math3.util.FastMath;
 
 import consumers.Consumer;
-import consumers.Consumers;
 import consumers.Pareto;
-import demandSide.RecessionsHandler;
+import demandSide.Market;
+import demandSide.ModelParams;
 import repast.simphony.context.space.continuous.ContextSpace;
 import repast.simphony.space.continuous.ContinuousSpace;
 import repast.simphony.space.continuous.SimpleCartesianAdder;
@@ -19,8 +17,13 @@ public class ConsumersProjection {
 	private static final double MIN_X = 0;
 
 	private ContinuousSpace<Consumer> space;
+	private Market market;
+	private ModelParams params;
+
+	public ConsumersProjection(Market market) {
+		this.market = market;
+		params = market.params;
 
-	public ConsumersProjection(Consumers consumers) {
 		double[] dims = new double[2];
 		dims[0] = MAX_X + 0.1;
 		dims[1] = MAX_Y + 0.1;
@@ -28,7 +31,7 @@ public class ConsumersProjection {
 		space = new ContextSpace<Consumer>("ConsumersProjection", new SimpleCartesianAdder<Consumer>(),
 				new StickyBorders(), dims);
 
-		consumers.addProjection(space);
+		market.consumers.addProjection(space);
 	}
 
 	public void update(Consumer c) {
@@ -41,12 +44,11 @@ public class ConsumersProjection {
 
 	private double getMaxUtilToDraw() {
 		// Assign minimum Marginal Utility of Quality for the segment
-		double acumProb = (double) GetParameter("margUtilPercentToDraw");
+		double acumProb = params.margUtilPercentToDraw;
 
-		double gini = (double) GetParameter("gini");
-		double lambda = (1.0 + gini) / (2.0 * gini);
+		double lambda = params.getLambda();
 
-		double minimum = RecessionsHandler.getWelfareParamPerceivedByFirms(Consumers.getMinRawWelfareParam());
+		double minimum = market.recessionsHandler.getWelfareParamPerceivedByFirms(params.minWelfareParam);
 
 		return Pareto.inversePareto(acumProb, minimum, lambda);
 	}
@@ -1,13 +1,11 @@
 package graphs;
 
-import static repast.simphony.essentials.RepastEssentials.GetParameter;
-
 import org.apache.commons.math3.util.FastMath;
 
 import consumers.Consumer;
-import consumers.Consumers;
 import consumers.Pareto;
-import demandSide.RecessionsHandler;
+import demandSide.Market;
+import demandSide.ModelParams;
 import repast.simphony.context.space.continuous.ContextSpace;
 import repast.simphony.space.continuous.ContinuousSpace;
 import repast.simphony.space.continuous.SimpleCartesianAdder;
@@ -19,8 +17,12 @@ public class ConsumptionProjection {
 	private static final double MIN_X = 0, MIN_Y = 0, MIN_Z = 0;
 
 	private ContinuousSpace<Consumer> space;
+	private Market market;
+	private ModelParams params;
 
-	public ConsumptionProjection(Consumers consumers) {
+	public ConsumptionProjection(Market market) {
+		this.market = market;
+		params = market.params;
 
 		double[] dims = new double[3];
 		dims[0] = MAX_X + 0.1;
@@ -30,7 +32,7 @@ public class ConsumptionProjection {
 		space = new ContextSpace<Consumer>("ConsumptionProjection", new SimpleCartesianAdder<Consumer>(),
 				new StickyBorders(), dims);
 
-		consumers.addProjection(space);
+		market.consumers.addProjection(space);
 
 	}
 
@@ -50,24 +52,23 @@ public class ConsumptionProjection {
 
 	private double getMaxUtilToDraw() {
 		// Assign minimum Marginal Utility of Quality for the segment
-		double acumProb = (double) GetParameter("margUtilPercentToDraw");
+		double acumProb = params.margUtilPercentToDraw;
 
-		double gini = (double) GetParameter("gini");
-		double lambda = (1.0 + gini) / (2.0 * gini);
+		double lambda = params.getLambda();
 
-		double minimum = RecessionsHandler.getWelfareParamPerceivedByFirms(Consumers.getMinRawWelfareParam());
+		double minimum = market.recessionsHandler.getWelfareParamPerceivedByFirms(params.minWelfareParam);
 
 		return Pareto.inversePareto(acumProb, minimum, lambda);
 	}
 
 	private double priceToCoord(double d) {
-		return (d - Scale.getMinPrice()) / (Scale.getMaxPrice() - Scale.getMinPrice())
+		return (d - market.scale.getMinPrice()) / (market.scale.getMaxPrice() - market.scale.getMinPrice())
 				* (MAX_X - MIN_X) + MIN_X;
 	}
 
 	private double qualityToCoord(double d) {
-		return MAX_Z - ((d - Scale.getMinQuality())
-				/ (Scale.getMaxQuality() - Scale.getMinQuality()) * (MAX_Z - MIN_Z) + MIN_Z);
+		return MAX_Z - ((d - market.scale.getMinQuality())
+				/ (market.scale.getMaxQuality() - market.scale.getMinQuality()) * (MAX_Z - MIN_Z) + MIN_Z);
 	}
 
 }
@@ -13,8 +13,10 @@ public class Firms2DProjection {
 	private static final double MIN_X = 0, MIN_Y = 0;
 
 	private ContinuousSpace<Firm> space;
+	private Scale scale;
 
-	public Firms2DProjection(Firms firms) {
+	public Firms2DProjection(Firms firms, Scale scale) {
+		this.scale = scale;
 
 		double[] dims = new double[2];
 		dims[0] = MAX_X + 0.1;
@@ -32,13 +34,13 @@ public class Firms2DProjection {
 	}
 
 	private double priceToCoord(double d) {
-		return (d - Scale.getMinPrice()) / (Scale.getMaxPrice() - Scale.getMinPrice())
+		return (d - scale.getMinPrice()) / (scale.getMaxPrice() - scale.getMinPrice())
 				* (MAX_X - MIN_X) + MIN_X;
 	}
 
 	private double qualityToCoord(double d) {
-		return (d - Scale.getMinQuality())
-				/ (Scale.getMaxQuality() - Scale.getMinQuality()) * (MAX_Y - MIN_Y) + MIN_Y;
+		return (d - scale.getMinQuality())
+				/ (scale.getMaxQuality() - scale.getMinQuality()) * (MAX_Y - MIN_Y) + MIN_Y;
 	}
 
 }
@@ -16,6 +16,7 @@ public class FirmsDemandProjection {
 	private Market market;
 
 	public FirmsDemandProjection(Market market) {
+		this.market = market;
 
 		double[] dims = new double[3];
 		dims[0] = MAX_X + 0.1;
@@ -36,8 +37,8 @@ public class FirmsDemandProjection {
 	}
 
 	private double priceToCoord(double price) {
-		return (price - Scale.getMinPrice())
-				/ (Scale.getMaxPrice() - Scale.getMinPrice()) * (MAX_X - MIN_X)
+		return (price - market.scale.getMinPrice())
+				/ (market.scale.getMaxPrice() - market.scale.getMinPrice()) * (MAX_X - MIN_X)
 				+ MIN_X;
 	}
 
@@ -46,8 +47,8 @@ public class FirmsDemandProjection {
 	}
 
 	private double qualityToCoord(double quality) {
-		return MAX_Z - ((quality - Scale.getMinQuality())
-				/ (Scale.getMaxQuality() - Scale.getMinQuality())
+		return MAX_Z - ((quality - market.scale.getMinQuality())
+				/ (market.scale.getMaxQuality() - market.scale.getMinQuality())
 				* (MAX_Z - MIN_Z) + MIN_Z);
 	}
 
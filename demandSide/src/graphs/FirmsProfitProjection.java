@@ -17,8 +17,10 @@ public class FirmsProfitProjection {
 			MAX_PROFIT_TO_DRAW = 1000.0;
 
 	private ContinuousSpace<Firm> space;
+	private Scale scale;
 
-	public FirmsProfitProjection(Firms firms) {
+	public FirmsProfitProjection(Firms firms, Scale scale) {
+		this.scale = scale;
 
 		double[] dims = new double[3];
 		dims[0] = MAX_X + 0.1;
@@ -39,8 +41,8 @@ public class FirmsProfitProjection {
 	}
 
 	private double priceToCoord(double price) {
-		return (price - Scale.getMinPrice())
-				/ (Scale.getMaxPrice() - Scale.getMinPrice()) * (MAX_X - MIN_X)
+		return (price - scale.getMinPrice())
+				/ (scale.getMaxPrice() - scale.getMinPrice()) * (MAX_X - MIN_X)
 				+ MIN_X;
 	}
 
@@ -53,8 +55,8 @@ public class FirmsProfitProjection {
 
 	private double qualityToCoord(double quality) {
 		return MAX_Z
-				- ((quality - Scale.getMinQuality())
-						/ (Scale.getMaxQuality() - Scale.getMinQuality())
+				- ((quality - scale.getMinQuality())
+						/ (scale.getMaxQuality() - scale.getMinQuality())
 						* (MAX_Z - MIN_Z) + MIN_Z);
 	}
 
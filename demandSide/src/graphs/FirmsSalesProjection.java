@@ -18,8 +18,10 @@ public class FirmsSalesProjection {
 			MAX_SALES_TO_DRAW = 1000.0;
 
 	private ContinuousSpace<Firm> space;
+	private Scale scale;
 
-	public FirmsSalesProjection(Firms firms) {
+	public FirmsSalesProjection(Firms firms, Scale scale) {
+		this.scale = scale;
 
 		double[] dims = new double[3];
 		dims[0] = MAX_X + 0.1;
@@ -40,8 +42,8 @@ public class FirmsSalesProjection {
 	}
 
 	private double priceToCoord(double price) {
-		return (price - Scale.getMinPrice())
-				/ (Scale.getMaxPrice() - Scale.getMinPrice()) * (MAX_X - MIN_X)
+		return (price - scale.getMinPrice())
+				/ (scale.getMaxPrice() - scale.getMinPrice()) * (MAX_X - MIN_X)
 				+ MIN_X;
 	}
 
@@ -54,8 +56,8 @@ public class FirmsSalesProjection {
 
 	private double qualityToCoord(double quality) {
 		return MAX_Z
-				- ((quality - Scale.getMinQuality())
-						/ (Scale.getMaxQuality() - Scale.getMinQuality())
+				- ((quality - scale.getMinQuality())
+						/ (scale.getMaxQuality() - scale.getMinQuality())
 						* (MAX_Z - MIN_Z) + MIN_Z);
 	}
 
@@ -1,15 +1,12 @@
 package graphs;
 
-import static repast.simphony.essentials.RepastEssentials.GetParameter;
-
 import org.apache.commons.math3.util.FastMath;
 
 import consumers.Consumer;
-import consumers.Consumers;
 import consumers.Pareto;
-import demandSide.RecessionsHandler;
+import demandSide.Market;
+import demandSide.ModelParams;
 import firms.Firm;
-import repast.simphony.context.Context;
 import repast.simphony.context.space.grid.ContextGrid;
 import repast.simphony.space.grid.SimpleGridAdder;
 import repast.simphony.space.grid.SingleOccupancyCellAccessor;
@@ -23,8 +20,12 @@ public class MargUtilProjection {
 	private static final int SEGMENT_LIMITS_HEIGHT = 10;
 
 	private ContextGrid<Object> space;
+	private Market market;
+	private ModelParams params;
 
-	public MargUtilProjection(Context<Object> context) {
+	public MargUtilProjection(Market market) {
+		this.market = market;
+		params = market.params;
 
 		int[] dims = new int[2];
 		dims[0] = MAX_X + 1;
@@ -33,7 +34,7 @@ public class MargUtilProjection {
 		space = new ContextGrid<Object>("MargUtilProjection", new SimpleGridAdder<Object>(), new StickyBorders(),
 				new SingleOccupancyCellAccessor<Object>(), dims);
 
-		context.addProjection(space);
+		market.addProjection(space);
 
 	}
 
@@ -63,12 +64,11 @@ public class MargUtilProjection {
 
 	private double getMaxUtilToDraw() {
 		// Assign minimum Marginal Utility of Quality for the segment
-		double acumProb = (double) GetParameter("margUtilPercentToDraw");
+		double acumProb = params.margUtilPercentToDraw;
 
-		double gini = (double) GetParameter("gini");
-		double lambda = (1.0 + gini) / (2.0 * gini);
+		double lambda = params.getLambda();
 
-		double minimum = RecessionsHandler.getWelfareParamPerceivedByFirms(Consumers.getMinRawWelfareParam());
+		double minimum = market.recessionsHandler.getWelfareParamPerceivedByFirms(params.minWelfareParam);
 
 		return Pareto.inversePareto(acumProb, minimum, lambda);
 	}
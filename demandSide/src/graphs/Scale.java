@@ -1,26 +1,31 @@
 package graphs;
 
-import static repast.simphony.essentials.RepastEssentials.GetParameter;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
+import demandSide.ModelParams;
 import firms.Firm;
 
+/*
+ * Range of prices and qualities drawn by the projections of a run
+ */
 public class Scale {
 
-	private static double minP;
-	private static double maxP;
-	private static double minQ;
-	private static double maxQ;
+	private double minP;
+	private double maxP;
+	private double minQ;
+	private double maxQ;
 
-	public static void resetStaticVars() {
-		// resets static variables
+	public Scale(ModelParams params) {
 		minP = 0.0;
 		maxP = 0.0;
 
 		minQ = 0.0;
-		maxQ = (double) GetParameter("maxInitialQuality");
+		maxQ = params.maxInitialQuality;
 	}
 
-	public static void update(Firm f) {
+	public void update(Firm f) {
 		double p = f.getPrice();		
 		minP = (p < minP) ? p : minP;
 		maxP = (p > maxP) ? p : maxP;
@@ -31,23 +36,37 @@ public class Scale {
 
 	}
 
-	public static double getMinPrice() {
+	public void writeState(DataOutput out) throws IOException {
+		out.writeDouble(minP);
+		out.writeDouble(maxP);
+		out.writeDouble(minQ);
+		out.writeDouble(maxQ);
+	}
+
+	public void readState(DataInput in) throws IOException {
+		minP = in.readDouble();
+		maxP = in.readDouble();
+		minQ = in.readDouble();
+		maxQ = in.readDouble();
+	}
+
+	public double getMinPrice() {
 		return minP;
 	}
 
-	public static double getMaxPrice() {
+	public double getMaxPrice() {
 		return maxP;
 	}
 
-	public static void setMaxPrice(double p) {
+	public void setMaxPrice(double p) {
 		maxP = p;
 	}
 
-	public static double getMinQuality() {
+	public double getMinQuality() {
 		return minQ;
 	}
 
-	public static double getMaxQuality() {
+	public double getMaxQuality() {
 		return maxQ;
 	}
 
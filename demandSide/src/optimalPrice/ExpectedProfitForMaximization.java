@@ -1,29 +1,32 @@
 package optimalPrice;
 
-import java.util.Optional;
-import java.util.function.DoubleUnaryOperator;
-
 import org.apache.commons.math3.analysis.UnivariateFunction;
 
-import demandSide.Market;
+import consumers.Consumers;
 import firms.Firm;
 import firms.Offer;
 
+/*
+ * Expected profit as a function of price, maximized by Brent's method
+ * 
+ * Each solver keeps one and sets it for every segment. Missing neighbors are
+ * null
+ */
 public class ExpectedProfitForMaximization implements UnivariateFunction {
 
-	private Market market;
+	private Firm firm;
+	private Consumers consumers;
 	private double perceivedQ;
 	private double cost;
 	private double fixedCost;
-	private DoubleUnaryOperator adjDemand;
-	Optional<Offer> loOffer, hiOffer;
+	Offer loOffer, hiOffer;
 
-	public ExpectedProfitForMaximization(Firm firm, double realQ, Optional<Offer> loOf, Optional<Offer> hiOf) {
+	void set(Firm firm, double realQ, Offer loOf, Offer hiOf) {
 
-		this.market = firm.market;
+		this.firm = firm;
+		this.consumers = firm.market.consumers;
 		this.perceivedQ = firm.getPerceivedQuality(realQ);
 		this.cost = firm.getUnitCost(realQ);
-		this.adjDemand = firm::getAdjustedDemand;
 		this.fixedCost = firm.getFixedCost();
 		this.loOffer = loOf;
 		this.hiOffer = hiOf;
@@ -33,10 +36,9 @@ public class ExpectedProfitForMaximization implements UnivariateFunction {
 	@Override
 	public double value(double p) {
 
-		double fullKnowledgeExpDemand = market.consumers.getExpectedQuantity(new Offer(p, perceivedQ), loOffer,
-				hiOffer);
+		double fullKnowledgeExpDemand = consumers.getExpectedQuantity(p, perceivedQ, loOffer, hiOffer);
 
-		double expDemand = adjDemand.applyAsDouble(fullKnowledgeExpDemand);
+		double expDemand = firm.getAdjustedDemand(fullKnowledgeExpDemand);
 
 		return (p - cost) * expDemand - fixedCost;
 
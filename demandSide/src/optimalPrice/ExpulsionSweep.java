@@ -0,0 +1,173 @@
+package optimalPrice;
+
+import org.apache.commons.math3.util.FastMath;
+
+import firms.ExpectedMarket;
+import firms.Firm;
+
+/*
+ * Expels the competitors of an expected market one by one, from the highest
+ * price to be expelled to the lowest, keeping the neighbors of perceivedQ
+ *
+ * The market is kept as a list linked by index, so taking a firm out and
+ * finding the neighbors of perceivedQ, and their own neighbors, is O(1). The
+ * whole sweep costs the sort of the prices to be expelled
+ *
+ * Each thread reuses one sweep, see PriceBuffers, thus the arrays grow to the
+ * largest market seen and are not allocated on every quality option
+ */
+class ExpulsionSweep {
+
+	private static final int NONE = -1;
+
+	private Firm owner;
+	private ExpectedMarket expMkt;
+	private double perceivedQ;
+
+	private int[] prev = new int[0], next = new int[0];
+
+	// Indexes of the neighbors of perceivedQ, NONE if there isn't one
+	private int lo, hi;
+
+	// Firms that a price at least minPrice could expel, from highest to lowest
+	// price to be expelled
+	private int[] order = new int[0];
+	private double[] priceToBeExpelled = new double[0];
+	private int toExpel;
+	private int expelled;
+
+	// Scratch of the sort of order
+	private int[] merged = new int[0];
+
+	private final Neighbors neighbors = new Neighbors();
+
+	/*
+	 * Starts the sweep of expMkt, replacing the previous one
+	 */
+	ExpulsionSweep start(Firm owner, ExpectedMarket expMkt, double perceivedQ, double minPrice) {
+
+		this.owner = owner;
+		this.expMkt = expMkt;
+		this.perceivedQ = perceivedQ;
+		int n = expMkt.size();
+
+		if (prev.length < n) {
+			prev = new int[n];
+			next = new int[n];
+			order = new int[n];
+			merged = new int[n];
+			priceToBeExpelled = new double[n];
+		}
+
+		for (int k = 0; k < n; k++) {
+			prev[k] = k - 1;
+			next[k] = (k + 1 < n) ? k + 1 : NONE;
+		}
+
+		int pos = expMkt.upperBound(perceivedQ);
+		lo = (pos > 0) ? pos - 1 : NONE;
+		hi = (pos < n) ? pos : NONE;
+
+		// A firm that is expelled with any price is not in the sweep
+		toExpel = 0;
+		expelled = 0;
+		for (int k = 0; k < n; k++) {
+			priceToBeExpelled[k] = priceToExpel(k);
+			if ((priceToBeExpelled[k] != Double.POSITIVE_INFINITY) && (priceToBeExpelled[k] >= minPrice))
+				order[toExpel++] = k;
+		}
+
+		sortOrder();
+
+		return this;
+
+	}
+
+	/*
+	 * Bottom up merge sort of order, from highest to lowest price to be
+	 * expelled. It is stable, thus firms with the same price are expelled by
+	 * increasing perceived quality
+	 */
+	private void sortOrder() {
+
+		for (int width = 1; width < toExpel; width *= 2) {
+			for (int from = 0; from < toExpel; from += 2 * width) {
+				int mid = FastMath.min(from + width, toExpel);
+				int to = FastMath.min(from + 2 * width, toExpel);
+
+				int i = from, j = mid;
+				for (int k = from; k < to; k++) {
+					if ((j >= to) || ((i < mid) && !isExpelledBefore(order[j], order[i])))
+						merged[k] = order[i++];
+					else
+						merged[k] = order[j++];
+				}
+			}
+
+			int[] sorted = merged;
+			merged = order;
+			order = sorted;
+		}
+
+	}
+
+	private boolean isExpelledBefore(int k1, int k2) {
+		return Double.compare(priceToBeExpelled[k1], priceToBeExpelled[k2]) > 0;
+	}
+
+	boolean hasNext() {
+		return expelled < toExpel;
+	}
+
+	/*
+	 * Takes out the next firm and returns its price to be expelled
+	 */
+	double expelNext() {
+
+		int k = order[expelled++];
+
+		if (k == lo)
+			lo = prev[k];
+		if (k == hi)
+			hi = next[k];
+
+		if (prev[k] != NONE)
+			next[prev[k]] = next[k];
+		if (next[k] != NONE)
+			prev[next[k]] = prev[k];
+
+		return priceToBeExpelled[k];
+
+	}
+
+	/*
+	 * Neighbors of perceivedQ in the market left, null if there is no market
+	 * segment for the owner between them. They are set again on the next call
+	 */
+	Neighbors getNeighbors(double minPrice, double maxPrice) {
+
+		double loPriceLimit = minPrice;
+
+		if (lo != NONE)
+			loPriceLimit = maxIfExpels(loPriceLimit, priceToExpel(lo));
+		if (hi != NONE)
+			loPriceLimit = maxIfExpels(loPriceLimit, priceToExpel(hi));
+
+		return neighbors.set(owner, perceivedQ, firm(lo), firm(hi), loPriceLimit, maxPrice) ? neighbors : null;
+
+	}
+
+	private static double maxIfExpels(double limit, double priceToExpel) {
+		// A firm that is expelled by any price doesn't limit the price
+		return (priceToExpel == Double.POSITIVE_INFINITY) ? limit : FastMath.max(limit, priceToExpel);
+	}
+
+	private double priceToExpel(int k) {
+		return expMkt.priceToExpel(perceivedQ, expMkt.get(k), firm(prev[k]), firm(next[k]));
+	}
+
+	private Firm firm(int k) {
+		return (k == NONE) ? null : expMkt.get(k);
+	}
+
+}
@@ -1,37 +1,41 @@
 package optimalPrice;
 
-import java.util.Optional;
-
 import org.apache.commons.math3.util.FastMath;
 
-import consumers.UtilityFunction;
 import firms.Firm;
-import firms.ExpectedMarket;
 
+/*
+ * Neighbors of an offer and its price limits with them. Missing neighbors are
+ * null
+ *
+ * Each sweep keeps one and sets it as firms are expelled, see
+ * ExpulsionSweep.getNeighbors
+ */
 public class Neighbors {
-	private Optional<Firm> loF, hiF;
+	private Firm loF, hiF;
 	private double loPriceLimit, hiPriceLimit;
 
-	public Neighbors(Firm f, ExpectedMarket expMkt, double perceivedQ, double minPrice, Optional<Double> optional)
-			throws NoMarketSegmentForFirm {
+	/*
+	 * loPriceLimit is the maximum among the price to expel low firm, price to
+	 * expel high firm and minimum price. It is set by the caller, that knows the
+	 * neighbors of the neighbors
+	 * 
+	 * Returns false if there is no market segment for the firm, as the low limit
+	 * is not below the high one
+	 */
+	boolean set(Firm f, double perceivedQ, Firm lo, Firm hi, double loPriceLimit, double maxPrice) {
 
-		loF = expMkt.getLowerFirmGivenQ(perceivedQ);
-		hiF = expMkt.getHigherFirmGivenQ(perceivedQ);
+		loF = lo;
+		hiF = hi;
 
-		// Setting loPriceLimit
-		// Low price limit is the maximum among the price to expel low firm,
-		// price to expel high firm and minimum price
-		loPriceLimit = minPrice;
-		expMkt.getPriceToExpel(perceivedQ, loF).ifPresent(p -> loPriceLimit = FastMath.max(loPriceLimit, p));
-		expMkt.getPriceToExpel(perceivedQ, hiF).ifPresent(p -> loPriceLimit = FastMath.max(loPriceLimit, p));
+		this.loPriceLimit = loPriceLimit;
 
 		// Setting hiLimit. It is the minimum among max price to enter and max (price to
 		// expel previous firm or max price on the first call)
-		hiPriceLimit = UtilityFunction.getMaxPriceToEnter(f, perceivedQ, loF, hiF);
-		optional.ifPresent(p -> hiPriceLimit = FastMath.min(hiPriceLimit, p));
+		hiPriceLimit = f.market.consumers.getUtilityFunction().getMaxPriceToEnter(f, perceivedQ, loF, hiF);
+		hiPriceLimit = FastMath.min(hiPriceLimit, maxPrice);
 
-		if (loPriceLimit >= hiPriceLimit)
-			throw new NoMarketSegmentForFirm();
+		return loPriceLimit < hiPriceLimit;
 
 	}
 
@@ -43,17 +47,17 @@ public class Neighbors {
 		return hiPriceLimit;
 	}
 
-	Optional<Firm> getLoF() {
+	Firm getLoF() {
 		return loF;
 	}
 
-	Optional<Firm> getHiF() {
+	Firm getHiF() {
 		return hiF;
 	}
 
 	public String toString() {
-		String loFStr = loF.map(Firm::toString).orElse("null");
-		String hiFStr = hiF.map(Firm::toString).orElse("null");
+		String loFStr = (loF == null) ? "null" : loF.toString();
+		String hiFStr = (hiF == null) ? "null" : hiF.toString();
 
 		return "LoF: " + loFStr + ", HiF: " + hiFStr + ", LoPriceLim: " + loPriceLimit + ", HiPriceLim: "
 				+ hiPriceLimit;
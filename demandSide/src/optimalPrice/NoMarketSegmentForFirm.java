@@ -1,12 +0,0 @@
-package optimalPrice;
-
-/*
- * This exception is thrown when lolimit is higher than high limit
- * thus there is no market segment that could be served by the firm
- */
-
-public class NoMarketSegmentForFirm extends Exception {
-
-	private static final long serialVersionUID = 1L;
-
-}
@@ -1,16 +1,5 @@
 package optimalPrice;
 
-import java.util.Iterator;
-import java.util.Optional;
-
-import org.apache.commons.math3.exception.TooManyEvaluationsException;
-import org.apache.commons.math3.optim.MaxEval;
-import org.apache.commons.math3.optim.MaxIter;
-import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
-import org.apache.commons.math3.optim.univariate.BrentOptimizer;
-import org.apache.commons.math3.optim.univariate.SearchInterval;
-import org.apache.commons.math3.optim.univariate.UnivariateObjectiveFunction;
-import org.apache.commons.math3.optim.univariate.UnivariatePointValuePair;
 import consumers.Consumers;
 import firms.Firm;
 import firms.Offer;
@@ -18,15 +7,22 @@ import firms.ExpectedMarket;
 
 public class OptimalPrice {
 
-	public static Optional<OptimalPriceResult> get(Firm firm, double realQ, ExpectedMarket expMkt) {
+	/*
+	 * Returns null if there is no market segment for the firm at any price
+	 * 
+	 * The result is a buffer of the thread, see PriceBuffers, thus it is valid
+	 * until the next call on the same thread
+	 */
+	public static OptimalPriceResult get(Firm firm, double realQ, ExpectedMarket expMkt) {
 
 		Consumers consumers = firm.market.consumers;
+		PriceBuffers buffers = PriceBuffers.get();
 
 		double perceivedQ = firm.getPerceivedQuality(realQ);
 		double cost = firm.getUnitCost(realQ);
 
 		Neighbors currNeighbors;
-		OptimalPriceResult returnResult = null;
+		OptimalPriceResult returnResult = buffers.best, tempResult = buffers.segment;
 
 		double minPrice = consumers.getMinPrice(cost, perceivedQ);
 		double maxPrice = consumers.getMaxPriceForRichestConsumer(firm, perceivedQ);
@@ -41,132 +37,104 @@ public class OptimalPrice {
 		 * - firms that have price to be expelled higher than maxprice
 		 * 
 		 */
-		expMkt.removeIf(f -> {
-			Optional<Double> pToE = expMkt.getPriceToExpel(perceivedQ, Optional.of(f));
-			if (pToE.isPresent())
-				return pToE.get().compareTo(maxPrice) >= 0;
-			else
-				return false;
-		});
+		expMkt.removeNotExpelledBelow(perceivedQ, maxPrice);
+
+		// Note that a neighbor that is expelled with any price is not in the sweep
+		ExpulsionSweep sweep = buffers.sweep.start(firm, expMkt, perceivedQ, minPrice);
 
 		// Get first optimal price (ie without expelling any neighbor)
-		try {
-			currNeighbors = new Neighbors(firm, expMkt, perceivedQ, minPrice, Optional.of(maxPrice));
-		} catch (NoMarketSegmentForFirm e) {
-			return Optional.empty();
-		}
-		returnResult = getSegmentOptimalResult(firm, realQ, currNeighbors);
-
-		// Note that a neighbor that is expelled with any price has an empty
-		// priceToBeExpelled
-		// They are taken out of the iterator
-		Iterator<ToBeExpelled> itToBeExpelled;
-		itToBeExpelled = expMkt.stream().map(new AddPriceToBeExpelled(expMkt, perceivedQ))
-				.filter(toBeExp -> toBeExp.optPriceToBeExpelled.isPresent())
-				.filter(toBeExp -> toBeExp.getPriceToBeExpelled() >= minPrice)
-				.sorted(new CompareByPriceToExpel())
-				.iterator();
-		
-
-		Optional<Double> prevPriceToBeExpelled;
-		ToBeExpelled toBeExpelled;
-		while (itToBeExpelled.hasNext()) {
-
-			toBeExpelled = itToBeExpelled.next();
-			prevPriceToBeExpelled = toBeExpelled.optPriceToBeExpelled;
-			expMkt.remove(toBeExpelled.f);
-
-			try {
-				currNeighbors = new Neighbors(firm, expMkt, perceivedQ, minPrice, prevPriceToBeExpelled);
-			} catch (NoMarketSegmentForFirm e) {
+		currNeighbors = sweep.getNeighbors(minPrice, maxPrice);
+		if (currNeighbors == null)
+			return null;
+
+		getSegmentOptimalResult(firm, realQ, currNeighbors, buffers.solver, returnResult);
+
+		// Neighbors are updated as firms are expelled, without searching the market
+		while (sweep.hasNext()) {
+
+			double prevPriceToBeExpelled = sweep.expelNext();
+
+			currNeighbors = sweep.getNeighbors(minPrice, prevPriceToBeExpelled);
+			if (currNeighbors == null)
 				continue;
-			}
 
-			OptimalPriceResult tempResult = getSegmentOptimalResult(firm, realQ, currNeighbors);
-			if (tempResult.expInf.profit > returnResult.expInf.profit)
+			getSegmentOptimalResult(firm, realQ, currNeighbors, buffers.solver, tempResult);
+			if (tempResult.expInf.profit > returnResult.expInf.profit) {
+				OptimalPriceResult swap = returnResult;
 				returnResult = tempResult;
+				tempResult = swap;
+			}
 
 		}
 
-		return Optional.of(returnResult);
+		return returnResult;
 
 	}
 
-	private static OptimalPriceResult getSegmentOptimalResult(Firm firm, double realQ, Neighbors currNeighbors) {
+	/*
+	 * Upper bound of the expected profit that get() could return for realQ
+	 * 
+	 * Price is never above the max price for the richest consumer, and demand
+	 * is never above the consumers that would accept the offer at min price if
+	 * there were no competitors, as a lower neighbor only raises the low limit.
+	 * Returns NEGATIVE_INFINITY if there is no price between both
+	 */
+	public static double getProfitBound(Firm firm, double realQ) {
 
 		Consumers consumers = firm.market.consumers;
 
-		assert (currNeighbors.getLoPriceLimit() < currNeighbors.getHiPriceLimit());
-
 		double perceivedQ = firm.getPerceivedQuality(realQ);
 		double cost = firm.getUnitCost(realQ);
 
-		OptimalPriceResult result = new OptimalPriceResult();
-
-		result.price = getSegmentOptimalPrice(firm, realQ, currNeighbors);
+		double minPrice = consumers.getMinPrice(cost, perceivedQ);
+		double maxPrice = consumers.getMaxPriceForRichestConsumer(firm, perceivedQ);
 
-		Optional<Offer> loOffer = currNeighbors.getLoF().map(f -> firm.getCompetitorPerceivedOffer(f));
-		Optional<Offer> hiOffer = currNeighbors.getHiF().map(f -> firm.getCompetitorPerceivedOffer(f));
+		if (minPrice >= maxPrice)
+			return Double.NEGATIVE_INFINITY;
 
-		// Collect expected data
-		double fullDemand = consumers.getExpectedQuantity(new Offer(result.price, perceivedQ), loOffer, hiOffer);
-		result.expInf.demand = firm.getAdjustedDemand(fullDemand);
+		double fullDemand = consumers.getExpectedQuantity(minPrice, perceivedQ, null, null);
 
-		result.expInf.profit = Firm.calcProfit(result.price, cost, result.expInf.demand, firm.getFixedCost());
-
-		// Collect
-		Optional<Offer> currOf = Optional.of(new Offer(result.price, perceivedQ));
-		result.expInf.loLimit = consumers.limitingWelfareParamPerceivedByFirms(loOffer, currOf);
-		result.expInf.hiLimit = consumers.limitingWelfareParamPerceivedByFirms(currOf, hiOffer);
-
-		return result;
+		return Firm.calcProfit(maxPrice, cost, firm.getAdjustedDemand(fullDemand), firm.getFixedCost());
 
 	}
 
-	private static double getSegmentOptimalPrice(Firm firm, double realQ, Neighbors currNeighbors) {
-
-		double loPriceLimit = currNeighbors.getLoPriceLimit();
-		double hiPriceLimit = currNeighbors.getHiPriceLimit();
-
-		assert (loPriceLimit < hiPriceLimit);
+	/*
+	 * Sets result to the optimal price of the segment between currNeighbors
+	 */
+	private static void getSegmentOptimalResult(Firm firm, double realQ, Neighbors currNeighbors,
+			SegmentPriceSolver solver, OptimalPriceResult result) {
 
-		double retval;
-
-		Optional<Offer> loOffer = currNeighbors.getLoF().map(f -> firm.getCompetitorPerceivedOffer(f));
-		Optional<Offer> hiOffer = currNeighbors.getHiF().map(f -> firm.getCompetitorPerceivedOffer(f));
-
-		// This function returns zero when expected demand is smaller than
-		// minExpectedDemand
-		ExpectedProfitForMaximization expectedGrossProfitForMaxim = new ExpectedProfitForMaximization(firm, realQ,
-				loOffer, hiOffer);
+		Consumers consumers = firm.market.consumers;
 
-		// Setting the optimizer
-		double rel = 1.e-12; // Relative threshold.
-		double abs = 1.e-12; // Absolute threshold.
+		assert (currNeighbors.getLoPriceLimit() < currNeighbors.getHiPriceLimit());
 
-		BrentOptimizer optim = new BrentOptimizer(rel, abs);
+		double perceivedQ = firm.getPerceivedQuality(realQ);
+		double cost = firm.getUnitCost(realQ);
 
-		MaxEval maxEval = new MaxEval(1000);
-		MaxIter maxIter = new MaxIter(1000);
+		Offer loOffer = getPerceivedOffer(firm, currNeighbors.getLoF());
+		Offer hiOffer = getPerceivedOffer(firm, currNeighbors.getHiF());
 
-		try {
-			UnivariatePointValuePair optimRetval = optim.optimize(
-					new SearchInterval(loPriceLimit, hiPriceLimit), GoalType.MAXIMIZE,
-					new UnivariateObjectiveFunction(expectedGrossProfitForMaxim), maxIter, maxEval);
+		solver.set(firm, realQ, loOffer, hiOffer, firm.market.params.priceSolverAccuracy);
+		result.price = solver.solve(currNeighbors.getLoPriceLimit(), currNeighbors.getHiPriceLimit());
+		result.expInf.priceError = solver.getError();
 
-			double optPrice = optimRetval.getPoint();
-			assert (loPriceLimit <= optPrice) && (optPrice <= hiPriceLimit);
+		// Collect expected data
+		double fullDemand = consumers.getExpectedQuantity(result.price, perceivedQ, loOffer, hiOffer);
+		result.expInf.demand = firm.getAdjustedDemand(fullDemand);
 
-			retval = optPrice;
+		result.expInf.profit = Firm.calcProfit(result.price, cost, result.expInf.demand, firm.getFixedCost());
 
-		} catch (TooManyEvaluationsException e) {
-			// it should return best value obtained, but we don't have it
-			// returning the middle value of segment
-			retval = loPriceLimit + hiPriceLimit / 2.0;
-		}
+		// Collect
+		result.expInf.loLimit = consumers.limitingWelfareParamPerceivedByFirms(loOffer, result.price, perceivedQ);
+		result.expInf.hiLimit = consumers.limitingWelfareParamPerceivedByFirms(result.price, perceivedQ, hiOffer);
 
-		return retval;
+	}
 
+	/*
+	 * Offer of neighbor as firm perceives it, null if there is no neighbor
+	 */
+	private static Offer getPerceivedOffer(Firm firm, Firm neighbor) {
+		return (neighbor == null) ? null : firm.getCompetitorPerceivedOffer(neighbor);
 	}
 
 }
\ No newline at end of file
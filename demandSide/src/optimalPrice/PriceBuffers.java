@@ -0,0 +1,25 @@
+package optimalPrice;
+
+/*
+ * Buffers of the optimal price a thread is searching
+ *
+ * Firms decide on the worker threads, one quality option at a time on each,
+ * thus the buffers are per thread and reused from one option to the next, see
+ * firms.DecisionBuffers
+ */
+class PriceBuffers {
+
+	private static final ThreadLocal<PriceBuffers> BUFFERS = ThreadLocal.withInitial(PriceBuffers::new);
+
+	final ExpulsionSweep sweep = new ExpulsionSweep();
+	final SegmentPriceSolver solver = new SegmentPriceSolver();
+
+	// The best result of the option, and the one of the segment being solved
+	final OptimalPriceResult best = new OptimalPriceResult();
+	final OptimalPriceResult segment = new OptimalPriceResult();
+
+	static PriceBuffers get() {
+		return BUFFERS.get();
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,244 @@
+package optimalPrice;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.exception.TooManyEvaluationsException;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.MaxIter;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.univariate.BrentOptimizer;
+import org.apache.commons.math3.optim.univariate.SearchInterval;
+import org.apache.commons.math3.optim.univariate.UnivariateObjectiveFunction;
+import org.apache.commons.math3.optim.univariate.UnivariatePointValuePair;
+import org.apache.commons.math3.util.FastMath;
+
+import consumers.SegmentDemand;
+import firms.Firm;
+import firms.Offer;
+
+/*
+ * Price that maximizes expected profit in a segment
+ * 
+ * Profit is (p - cost) * knownByPerc * demand(p) - fixedCost. The segment is cut
+ * at the breakpoints of demand, and on each piece the maximum is at an end or
+ * where the derivative of profit is zero:
+ * 
+ * - Where only the lower limit moves with price, zero is at p = (lambda * cost
+ * - loP) / (lambda - 1)
+ * 
+ * - Otherwise it is found by Newton's method, kept inside the bracket where the
+ * derivative changes sign, with bisection steps when Newton leaves it
+ * 
+ * Brent's method is used if Newton doesn't converge, and on all the segment
+ * when accuracy is BRENT
+ * 
+ * Each thread reuses one solver, see PriceBuffers, that is set for every
+ * segment
+ */
+public class SegmentPriceSolver {
+
+	public enum Accuracy {
+		FAST(1.e-8), STANDARD(1.e-12), BRENT(1.e-12);
+
+		final double tolerance;
+
+		Accuracy(double tolerance) {
+			this.tolerance = tolerance;
+		}
+	}
+
+	private static final int MAX_NEWTON_ITER = 100;
+
+	// Breakpoints of the demand
+	private final double[] cuts = new double[6];
+
+	private Accuracy accuracy;
+	private double cost, fixedCost, knownByPerc, lambda;
+	private double loP;
+
+	private final SegmentDemand demand = new SegmentDemand();
+	private final ExpectedProfitForMaximization profit = new ExpectedProfitForMaximization();
+
+	private double price, error;
+	private double brentError;
+
+	/*
+	 * Sets the segment between loOffer and hiOffer, missing neighbors being
+	 * null
+	 */
+	SegmentPriceSolver set(Firm firm, double realQ, Offer loOffer, Offer hiOffer, Accuracy accuracy) {
+
+		this.accuracy = accuracy;
+
+		double perceivedQ = firm.getPerceivedQuality(realQ);
+		cost = firm.getUnitCost(realQ);
+		fixedCost = firm.getFixedCost();
+		knownByPerc = firm.getAdjustedDemand(1.0);
+		lambda = firm.market.consumers.getLambda();
+
+		loP = (loOffer == null) ? 0.0 : loOffer.getPrice();
+
+		firm.market.consumers.getSegmentDemand(perceivedQ, loOffer, hiOffer, demand);
+		profit.set(firm, realQ, loOffer, hiOffer);
+
+		return this;
+
+	}
+
+	/*
+	 * Returns the optimal price between loPriceLimit and hiPriceLimit
+	 */
+	double solve(double loPriceLimit, double hiPriceLimit) {
+
+		assert (loPriceLimit < hiPriceLimit);
+
+		if (accuracy == Accuracy.BRENT) {
+			price = brent(loPriceLimit, hiPriceLimit);
+			error = brentError;
+			return price;
+		}
+
+		int n = demand.getBreakpoints(cuts);
+		Arrays.sort(cuts, 0, n);
+
+		price = loPriceLimit;
+		error = 0.0;
+		double best = value(loPriceLimit);
+
+		double from = loPriceLimit;
+		for (int k = 0; k <= n; k++) {
+			double to = (k < n) ? cuts[k] : hiPriceLimit;
+			if (to <= from)
+				continue;
+			if (to > hiPriceLimit)
+				to = hiPriceLimit;
+
+			best = solvePiece(from, to, best);
+
+			from = to;
+			if (from >= hiPriceLimit)
+				break;
+		}
+
+		assert (loPriceLimit <= price) && (price <= hiPriceLimit);
+		return price;
+
+	}
+
+	/*
+	 * Upper bound of the distance to the optimal price
+	 */
+	double getError() {
+		return error;
+	}
+
+	private double solvePiece(double a, double b, double best) {
+
+		best = consider(b, 0.0, best);
+
+		double ga = slope(a, b);
+		double gb = slope(b, a);
+
+		// The maximum is at an end unless the slope goes from up to down
+		if ((ga <= 0.0) || (gb >= 0.0))
+			return best;
+
+		if (lambda > 1.0) {
+			// Only valid if the higher limit doesn't move on this piece
+			double p = (lambda * cost - loP) / (lambda - 1.0);
+			if ((a < p) && (p < b)
+					&& (FastMath.abs(derivative(p)) <= accuracy.tolerance * knownByPerc * demand.value(p)))
+				return consider(p, FastMath.ulp(p), best);
+		}
+
+		return newton(a, b, best);
+
+	}
+
+	private double newton(double a, double b, double best) {
+
+		double tol = accuracy.tolerance;
+		double x = 0.5 * (a + b);
+
+		for (int iter = 0; iter < MAX_NEWTON_ITER; iter++) {
+
+			double g = derivative(x);
+			if (g > 0.0)
+				a = x;
+			else
+				b = x;
+
+			double h = secondDerivative(x);
+			double next = x - g / h;
+			if (!(h < 0.0) || (next <= a) || (next >= b))
+				next = 0.5 * (a + b);
+
+			double step = FastMath.abs(next - x);
+			x = next;
+
+			if ((step <= tol * (1.0 + FastMath.abs(x))) || (b - a <= tol * (1.0 + FastMath.abs(x))))
+				return consider(x, FastMath.min(step, b - a), best);
+		}
+
+		// Newton didn't converge, Brent is used on the bracket
+		double retval = brent(a, b);
+		return consider(retval, brentError, best);
+
+	}
+
+	/*
+	 * Derivative inside [from, to], taken a bit inside when from is a breakpoint
+	 */
+	private double slope(double from, double to) {
+		double x = from + 1.e-9 * (to - from);
+		return derivative(x);
+	}
+
+	private double consider(double p, double err, double best) {
+
+		double v = value(p);
+		if (v > best) {
+			price = p;
+			error = err;
+			return v;
+		} else
+			return best;
+
+	}
+
+	private double value(double p) {
+		return (p - cost) * knownByPerc * demand.value(p) - fixedCost;
+	}
+
+	private double derivative(double p) {
+		return knownByPerc * (demand.value(p) + (p - cost) * demand.derivative(p));
+	}
+
+	private double secondDerivative(double p) {
+		return knownByPerc * (2.0 * demand.derivative(p) + (p - cost) * demand.secondDerivative(p));
+	}
+
+	private double brent(double a, double b) {
+
+		double rel = accuracy.tolerance;
+		double abs = accuracy.tolerance;
+
+		BrentOptimizer optim = new BrentOptimizer(rel, abs);
+
+		try {
+			UnivariatePointValuePair optimRetval = optim.optimize(new SearchInterval(a, b), GoalType.MAXIMIZE,
+					new UnivariateObjectiveFunction(profit), new MaxIter(1000), new MaxEval(1000));
+
+			double retval = optimRetval.getPoint();
+			brentError = rel * FastMath.abs(retval) + abs;
+			return retval;
+
+		} catch (TooManyEvaluationsException e) {
+			// Best end of the interval
+			brentError = b - a;
+			return (profit.value(a) >= profit.value(b)) ? a : b;
+		}
+
+	}
+
+}